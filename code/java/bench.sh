@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./bench.sh flightDB 5432 user --threads 4 --ops 5000 --seed ../data --scale 10
+java -cp lib/*:bin/ MenuBenchmark $DBNAME $PORT $USER "$@"
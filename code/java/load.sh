@@ -0,0 +1,7 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+
+# Example: source ./load.sh flightDB 5432 user
+java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER ../data --truncate
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+SCRIPT=$4
+FORMAT=${5:-json}
+
+# Example: source ./script.sh flightDB 5432 user commands.txt csv
+java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --script $SCRIPT $FORMAT
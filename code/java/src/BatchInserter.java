@@ -0,0 +1,379 @@
+/*
+ * Batched inserts for Ship, Captain and Cruise
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class adds many ships, captains or cruises at once.  Records are
+ * taken in chunks; each chunk is validated with the same rules as the
+ * interactive AddShip/AddCaptain/AddCruise, its ids are checked against the
+ * table with one id = ANY(?) query, and the remaining rows are inserted
+ * with addBatch/executeBatch in one transaction (the driver rewrites the
+ * batch into multi-row INSERTs, see reWriteBatchedInserts in DBproject).
+ * Every rejected record is reported with its line number and the reason.
+ * Cruise dates are DD/MM/YYYY as in the menu, or YYYY-MM-DD HH:MM as in
+ * code/data/Cruises.csv.  After each chunk the caches drop what they held
+ * about the new ids, as they do after a single add.
+ *
+ */
+
+public class BatchInserter{
+
+	/**
+	 * A record that was not inserted.
+	 */
+	public static final class Rejected{
+		public final long line;
+		public final String record;
+		public final String reason;
+
+		Rejected(long line, String record, String reason){
+			this.line = line;
+			this.record = record;
+			this.reason = reason;
+		}
+
+		public String toString(){
+			return "line " + line + ": " + reason + ": " + record;
+		}
+	}
+
+	//one input record and where it came from
+	private static final class Record{
+		final long line;
+		final String raw;
+		final String[] fields;
+		final int id;
+
+		Record(long line, String raw, String[] fields, int id){
+			this.line = line;
+			this.raw = raw;
+			this.fields = fields;
+			this.id = id;
+		}
+	}
+
+	private final DBproject esql;
+	private final String table;
+	private final String idColumn;
+	private final String insert;
+	private final int chunkSize;
+
+	private final List<Rejected> rejected = new ArrayList<Rejected>();
+	private final LatencyHistogram batchLatency = new LatencyHistogram();
+	//ids seen earlier in the same input, so duplicates inside a file are rejected too
+	private final Set<Integer> seen = new HashSet<Integer>();
+	private long inserted = 0;
+	private long line = 0;
+
+	public BatchInserter(DBproject esql, String table, int chunkSize){
+		this.esql = esql;
+		this.chunkSize = Math.max(1, chunkSize);
+		if (table.equals("Ship")){
+			this.idColumn = "id";
+			this.insert = "INSERT INTO Ship VALUES(?, ?, ?, ?, ?)";
+		}else if (table.equals("Captain")){
+			this.idColumn = "id";
+			this.insert = "INSERT INTO Captain VALUES(?, ?, ?)";
+		}else if (table.equals("Cruise")){
+			this.idColumn = "cnum";
+			this.insert = "INSERT INTO Cruise VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+		}else{
+			throw new IllegalArgumentException("Batch insert supports Ship, Captain and Cruise, not " + table);
+		}
+		this.table = table;
+	}
+
+	public List<Rejected> getRejected(){ return rejected; }
+	public long getInserted(){ return inserted; }
+	public LatencyHistogram getBatchLatency(){ return batchLatency; }
+
+	/**
+	 * Method to insert every comma separated record of a file, in the
+	 * column order of the table (the format of code/data/Ships.csv,
+	 * Captains.csv and Cruises.csv).
+	 *
+	 * @param file the input file
+	 * @return the number of rows inserted
+	 */
+	public long insertFile(String file) throws IOException, SQLException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)){
+			List<String> chunk = new ArrayList<String>(chunkSize);
+			String row;
+			while ((row = reader.readLine()) != null){
+				chunk.add(row);
+				if (chunk.size() == chunkSize){
+					insertChunk(chunk);
+					chunk.clear();
+				}
+			}
+			if (!chunk.isEmpty())
+				insertChunk(chunk);
+		}
+		return inserted;
+	}
+
+	/**
+	 * Method to insert records handed over by a caller, e.g. an import API.
+	 *
+	 * @param rows comma separated records in the column order of the table
+	 * @return the number of rows inserted by this call
+	 */
+	public long insertAll(List<String> rows) throws SQLException {
+		long before = inserted;
+		for (int from = 0; from < rows.size(); from += chunkSize)
+			insertChunk(rows.subList(from, Math.min(rows.size(), from + chunkSize)));
+		return inserted - before;
+	}
+
+	private void insertChunk(List<String> rows) throws SQLException {
+		long start = System.nanoTime();
+		List<Record> records = new ArrayList<Record>(rows.size());
+		for (String raw : rows){
+			++line;
+			if (raw.trim().isEmpty())
+				continue;
+			String[] fields = raw.split(",", -1);
+			String reason = validate(fields);
+			if (reason != null){
+				rejected.add(new Rejected(line, raw, reason));
+				continue;
+			}
+			int id = Integer.parseInt(fields[0].trim());
+			if (!seen.add(id)){
+				rejected.add(new Rejected(line, raw, "duplicate " + table + " ID in input"));
+				continue;
+			}
+			records.add(new Record(line, raw, fields, id));
+		}
+		if (records.isEmpty())
+			return;
+
+		ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+		try{
+			Set<Integer> existing = existingIds(conn, records);
+			List<Record> batch = new ArrayList<Record>(records.size());
+			for (Record r : records){
+				if (existing.contains(r.id))
+					rejected.add(new Rejected(r.line, r.raw, table + " ID already exists"));
+				else
+					batch.add(r);
+			}
+			if (!batch.isEmpty())
+				executeBatch(conn, batch);
+		}finally{
+			esql.getPool().release(conn);
+		}
+		long nanos = System.nanoTime() - start;
+		batchLatency.record(nanos);
+		System.out.println(String.format("%s batch of %d: %.2fms", table, rows.size(), nanos / 1e6));
+	}
+
+	private Set<Integer> existingIds(ConnectionPool.PooledConnection conn, List<Record> records) throws SQLException {
+		Integer[] ids = new Integer[records.size()];
+		for (int i = 0; i < ids.length; ++i)
+			ids[i] = records.get(i).id;
+		Array array = conn.getConnection().createArrayOf("int4", ids);
+		Set<Integer> existing = new HashSet<Integer>();
+		try (ResultSet rs = DBproject.query(conn, "SELECT " + idColumn + " FROM " + table + " WHERE " + idColumn + " = ANY(?)", array)){
+			while (rs.next())
+				existing.add(rs.getInt(1));
+		}finally{
+			array.free();
+		}
+		return existing;
+	}
+
+	private void executeBatch(ConnectionPool.PooledConnection conn, List<Record> batch) throws SQLException {
+		Connection c = conn.getConnection();
+		PreparedStatement stmt = conn.prepare(insert);
+		c.setAutoCommit(false);
+		boolean committed = false;
+		try{
+			for (Record r : batch){
+				bindRecord(stmt, r.fields);
+				stmt.addBatch();
+			}
+			long start = System.nanoTime();
+			stmt.executeBatch();
+			Metrics.executed(insert, start, batch.size());
+			c.commit();
+			inserted += batch.size();
+			committed = true;
+		}catch (BatchUpdateException e){
+			// a row the checks above could not catch (e.g. a concurrent insert of
+			// the same id) failed the whole batch; retry row by row to find it
+			c.rollback();
+			stmt.clearBatch();
+			insertOneByOne(conn, batch);
+		}catch (SQLException e){
+			c.rollback();
+			throw e;
+		}finally{
+			c.setAutoCommit(true);
+		}
+		if (committed)
+			added(conn, batch);
+	}
+
+	private void insertOneByOne(ConnectionPool.PooledConnection conn, List<Record> batch) throws SQLException {
+		Connection c = conn.getConnection();
+		c.setAutoCommit(true);
+		PreparedStatement stmt = conn.prepare(insert);
+		List<Record> done = new ArrayList<Record>(batch.size());
+		for (Record r : batch){
+			try{
+				bindRecord(stmt, r.fields);
+				stmt.executeUpdate();
+				++inserted;
+				done.add(r);
+			}catch (SQLException e){
+				rejected.add(new Rejected(r.line, r.raw, e.getMessage()));
+			}
+		}
+		added(conn, done);
+	}
+
+	//same replica routing and cache maintenance as DBproject.addShip/addCaptain/addCruise
+	private void added(ConnectionPool.PooledConnection conn, List<Record> records) throws SQLException {
+		int[] ids = new int[records.size()];
+		for (int i = 0; i < ids.length; ++i)
+			ids[i] = records.get(i).id;
+		if (ids.length > 0){
+			esql.wrote(conn);
+			esql.added(table, ids);
+		}
+	}
+
+	private void bindRecord(PreparedStatement stmt, String[] f) throws SQLException {
+		stmt.clearParameters();
+		if (table.equals("Ship")){
+			stmt.setInt(1, Integer.parseInt(f[0].trim()));
+			stmt.setString(2, f[1]);
+			stmt.setString(3, f[2]);
+			stmt.setInt(4, Integer.parseInt(f[3].trim()));
+			stmt.setInt(5, Integer.parseInt(f[4].trim()));
+		}else if (table.equals("Captain")){
+			stmt.setInt(1, Integer.parseInt(f[0].trim()));
+			stmt.setString(2, f[1]);
+			stmt.setString(3, f[2]);
+		}else{
+			for (int i = 0; i < 4; ++i)
+				stmt.setInt(i + 1, Integer.parseInt(f[i].trim()));
+			stmt.setDate(5, date(f[4]));
+			stmt.setDate(6, date(f[5]));
+			stmt.setString(7, f[6]);
+			stmt.setString(8, f[7]);
+		}
+	}
+
+	//returns why the record is invalid, or null; same limits as the interactive add operations
+	private String validate(String[] f){
+		if (table.equals("Ship")){
+			if (f.length != 5) return "expected 5 fields";
+			if (!isInt(f[0], 0, Integer.MAX_VALUE)) return "invalid id";
+			if (f[1].isEmpty() || f[1].length() > 32) return "make must be 1-32 characters";
+			if (f[2].isEmpty() || f[2].length() > 64) return "model must be 1-64 characters";
+			if (!isInt(f[3], 0, 500)) return "age must be between 0 and 500";
+			if (!isInt(f[4], 1, 500)) return "seats must be between 1 and 499";
+		}else if (table.equals("Captain")){
+			if (f.length != 3) return "expected 3 fields";
+			if (!isInt(f[0], 0, Integer.MAX_VALUE)) return "invalid id";
+			if (f[1].isEmpty() || f[1].length() > 128) return "full name must be 1-128 characters";
+			if (f[2].isEmpty() || f[2].length() > 24) return "nationality must be 1-24 characters";
+		}else{
+			if (f.length != 8) return "expected 8 fields";
+			if (!isInt(f[0], 0, Integer.MAX_VALUE)) return "invalid cruise number";
+			if (!isInt(f[1], 1, Integer.MAX_VALUE)) return "cost must be positive";
+			if (!isInt(f[2], 0, Integer.MAX_VALUE)) return "invalid number of tickets sold";
+			if (!isInt(f[3], 0, Integer.MAX_VALUE)) return "invalid number of stops";
+			if (!isDate(f[4])) return "departure date must be DD/MM/YYYY or YYYY-MM-DD HH:MM";
+			if (!isDate(f[5])) return "arrival date must be DD/MM/YYYY or YYYY-MM-DD HH:MM";
+			if (f[6].isEmpty() || f[6].length() > 5) return "arrival port must be 1-5 characters";
+			if (f[7].isEmpty() || f[7].length() > 5) return "departure port must be 1-5 characters";
+		}
+		return null;
+	}
+
+	//DD/MM/YYYY from the menu, or the timestamps of code/data/Cruises.csv
+	private static String dateFormat(String value){
+		return value.indexOf('/') >= 0 ? "dd/MM/yyyy" : "yyyy-MM-dd HH:mm";
+	}
+
+	private static boolean isDate(String value){
+		String v = value.trim();
+		return !v.isEmpty() && DBproject.isValidDate(dateFormat(v), v);
+	}
+
+	//only called for records validate() accepted
+	private static java.sql.Date date(String value){
+		String v = value.trim();
+		try{
+			return new java.sql.Date(new SimpleDateFormat(dateFormat(v)).parse(v).getTime());
+		}catch (ParseException e){
+			throw new IllegalArgumentException("not a date: " + v, e);
+		}
+	}
+
+	private static boolean isInt(String value, int min, int max){
+		String v = value.trim();
+		if (v.isEmpty() || v.length() > 10 || !DBproject.isInteger(v))
+			return false;
+		long n = Long.parseLong(v);
+		return n >= min && n < max;
+	}
+
+	/**
+	 * @return a one-line summary of the run
+	 */
+	public String stats(){
+		return String.format("%s: inserted=%d rejected=%d batches %s",
+			table, inserted, rejected.size(), batchLatency.summary());
+	}
+
+	/**
+	 * Inserts a file of ships, captains or cruises.
+	 *
+	 * @param args <dbname> <port> <user> <Ship|Captain|Cruise> <file> [chunk size]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BatchInserter.class.getName () +
+		            " <dbname> <port> <user> <Ship|Captain|Cruise> <file> [chunk size]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		int chunk = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			BatchInserter inserter = new BatchInserter(esql, args[3], chunk);
+			inserter.insertFile(args[4]);
+			for (Rejected r : inserter.getRejected())
+				System.out.println("rejected " + r);
+			System.out.println(inserter.stats());
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Outcome of booking a cruise
+ * ===========================
+ */
+
+
+/**
+ * This class holds the result of one call to the book_cruise function: the
+ * reservation that was created or changed, its status before and after the
+ * call and the number of seats left on the cruise afterwards.
+ *
+ */
+
+public class Booking{
+	//status used for previous when the customer had no reservation yet
+	public static final char NONE = '-';
+
+	public final int customerId;
+	public final int cruiseNum;
+	public final int rnum;
+	public final char previous;
+	public final char status;
+	public final int available;
+
+	public Booking(int customerId, int cruiseNum, int rnum, char previous, char status, int available){
+		this.customerId = customerId;
+		this.cruiseNum = cruiseNum;
+		this.rnum = rnum;
+		this.previous = previous;
+		this.status = status;
+		this.available = available;
+	}
+
+	/**
+	 * @return true if the call inserted a new reservation
+	 */
+	public boolean isNew(){
+		return previous == NONE;
+	}
+
+	/**
+	 * @return true if the call took a seat on the cruise, i.e. num_sold was incremented
+	 */
+	public boolean tookSeat(){
+		return status == 'R' && previous != 'R';
+	}
+
+	/**
+	 * @return true if the call changed the reservation
+	 */
+	public boolean changed(){
+		return previous != status;
+	}
+
+	public String toString(){
+		return "rnum=" + rnum + " customer=" + customerId + " cruise=" + cruiseNum +
+			" status=" + previous + "->" + status + " available=" + available;
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Concurrent booking service
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class books cruises for many callers at once.  Every request runs on
+ * its own worker (a virtual thread when the JVM has them) and takes the lock
+ * stripe of its cruise, so bookings of the same cruise are serialized in the
+ * client while bookings of different cruises run in parallel.  Serializing
+ * here means a request never holds a pooled connection while it waits on the
+ * Cruise row lock taken by book_cruise.  The W/R/C rules themselves are
+ * applied by book_cruise, exactly as for the interactive menu.
+ *
+ */
+
+public class BookingService implements AutoCloseable{
+	private final DBproject esql;
+	private final ReentrantLock[] stripes;
+	//bounds the requests talking to the database to the pool size so callers
+	//park here instead of overflowing the pool's wait queue
+	private final Semaphore inFlight;
+	private final ExecutorService workers;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long startNanos = System.nanoTime();
+
+	public BookingService(DBproject esql, int stripeCount){
+		this.esql = esql;
+		this.stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1];
+		for (int i = 0; i < stripes.length; ++i)
+			stripes[i] = new ReentrantLock();
+		int dbSlots = esql.getPool().getMaxSize();
+		this.inFlight = new Semaphore(dbSlots);
+		this.workers = newWorkerExecutor(dbSlots);
+	}
+
+	/**
+	 * Method to create the executor that runs booking requests: one virtual
+	 * thread per request on JDK 21 and later, otherwise a fixed pool of
+	 * platform threads as large as the connection pool.
+	 *
+	 * @param platformThreads the pool size used without virtual threads
+	 * @return the executor
+	 */
+	static ExecutorService newWorkerExecutor(int platformThreads){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			ThreadFactory daemons = r -> {
+				Thread t = new Thread(r, "booking-worker");
+				t.setDaemon(true);
+				return t;
+			};
+			return Executors.newFixedThreadPool(platformThreads, daemons);
+		}
+	}
+
+	private ReentrantLock stripeOf(int cnum){
+		int h = cnum * 0x9E3779B9;
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	/**
+	 * Method to queue a booking request.
+	 *
+	 * @param ccid the customer id
+	 * @param cnum the cruise number
+	 * @return a future completed with the outcome (null when the customer or
+	 *         cruise does not exist) or with the SQLException that failed it
+	 */
+	public CompletableFuture<Booking> submit(int ccid, int cnum){
+		//the worker books for the submitter's replica session
+		ReplicaRouter router = esql.getReplicaRouter();
+		ReplicaRouter.Session session = router == null ? null : router.current();
+		return CompletableFuture.supplyAsync(() -> {
+			ReplicaRouter.Session previous = router == null ? null : router.bind(session);
+			try{
+				return book(ccid, cnum);
+			}catch (SQLException e){
+				throw new CompletionException(e);
+			}finally{
+				if (router != null)
+					router.bind(previous);
+			}
+		}, workers);
+	}
+
+	/**
+	 * Method to book a cruise on the calling thread, serialized with every
+	 * other request for the same cruise.
+	 *
+	 * @param ccid the customer id
+	 * @param cnum the cruise number
+	 * @return the outcome, or null when the customer or cruise does not exist
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	public Booking book(int ccid, int cnum) throws SQLException {
+		long start = System.nanoTime();
+		ReentrantLock stripe = stripeOf(cnum);
+		boolean ok = false;
+		Metrics.begin("book");
+		stripe.lock();
+		try{
+			inFlight.acquireUninterruptibly();
+			try{
+				Booking booking = esql.bookCruise(ccid, cnum);
+				ok = true;
+				return booking;
+			}finally{
+				inFlight.release();
+			}
+		}finally{
+			stripe.unlock();
+			Metrics.end();
+			latency.record(System.nanoTime() - start);
+			(ok ? completed : failed).incrementAndGet();
+		}
+	}
+
+	public LatencyHistogram getLatency(){ return latency; }
+	public long getCompleted(){ return completed.get(); }
+	public long getFailed(){ return failed.get(); }
+
+	/**
+	 * @return completed bookings per second since the service started or was last reset
+	 */
+	public double getThroughput(){
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0.0 : completed.get() / seconds;
+	}
+
+	/**
+	 * Method to clear the counters and latencies, e.g. after a warm-up.
+	 */
+	public void resetStats(){
+		latency.reset();
+		completed.set(0);
+		failed.set(0);
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return a one-line summary of throughput and latency
+	 */
+	public String stats(){
+		return String.format("bookings: completed=%d failed=%d throughput=%.1f/s latency %s",
+			completed.get(), failed.get(), getThroughput(), latency.summary());
+	}
+
+	public void close(){
+		workers.shutdown();
+		try{
+			workers.awaitTermination(30, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Books random (customer, cruise) pairs from the database concurrently and
+	 * prints throughput and latency.
+	 *
+	 * @param args <dbname> <port> <user> <requests> [stripes]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingService.class.getName () +
+		            " <dbname> <port> <user> <requests> [stripes]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		int requests = Integer.parseInt(args[3]);
+		int stripeCount = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try (BookingService service = new BookingService(esql, stripeCount)){
+			List<List<String>> customers = esql.executeQueryAndReturnResult("SELECT id FROM Customer");
+			List<List<String>> cruises = esql.executeQueryAndReturnResult("SELECT cnum FROM Cruise");
+			Random random = new Random(42);
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+			for (int i = 0; i < requests; ++i){
+				int ccid = Integer.parseInt(customers.get(random.nextInt(customers.size())).get(0));
+				int cnum = Integer.parseInt(cruises.get(random.nextInt(cruises.size())).get(0));
+				futures[i] = service.submit(ccid, cnum).exceptionally(e -> {
+					System.err.println(e.getMessage());
+					return null;
+				});
+			}
+			CompletableFuture.allOf(futures).join();
+			System.out.println(service.stats());
+			System.out.println(esql.getPool().stats());
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
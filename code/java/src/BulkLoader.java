@@ -0,0 +1,310 @@
+/*
+ * Bulk CSV loader
+ * ===============
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class loads the CSV files in code/data into the database with the
+ * COPY protocol.  Unlike the COPY ... FROM 'file' statements in create.sql
+ * the file is read by the client and streamed to the server, so no
+ * superuser file access is needed and the input is never held in memory.
+ * Tables without foreign keys are loaded in parallel, each on its own pooled
+ * connection, and the tables that reference them are loaded afterwards.
+ *
+ */
+
+public class BulkLoader{
+
+	/**
+	 * A table, the CSV file it is loaded from and its columns in file order.
+	 */
+	public static final class TableSpec{
+		public final String table;
+		public final String file;
+		public final String columns;
+
+		TableSpec(String table, String file, String columns){
+			this.table = table;
+			this.file = file;
+			this.columns = columns;
+		}
+	}
+
+	//tables without foreign keys
+	public static final TableSpec[] INDEPENDENT = {
+		new TableSpec("Customer", "customer.csv", "id, fname, lname, gtype, dob, address, phone, zipcode"),
+		new TableSpec("Captain", "Captains.csv", "id, fullname, nationality"),
+		new TableSpec("Ship", "Ships.csv", "id, make, model, age, seats"),
+		new TableSpec("Technician", "technician.csv", "id, full_name"),
+		new TableSpec("Cruise", "Cruises.csv", "cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port")
+	};
+
+	//tables whose foreign keys point into INDEPENDENT
+	public static final TableSpec[] DEPENDENT = {
+		new TableSpec("Reservation", "reservation.csv", "rnum, ccid, cid, status"),
+		new TableSpec("CruiseInfo", "Cruiseinfo.csv", "ciid, cruise_id, captain_id, ship_id"),
+		new TableSpec("Repairs", "repairs.csv", "rid, repair_date, repair_code, captain_id, ship_id, technician_id"),
+		new TableSpec("Schedule", "schedule.csv", "id, cruiseNum, departure_time, arrival_time")
+	};
+
+	//read buffer for each CSV file and for the COPY stream
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Producer of rows for copyRows().
+	 */
+	public interface RowWriter{
+		/**
+		 * Appends the next comma separated row, without a line break.
+		 *
+		 * @param row the buffer to append to, empty on entry
+		 * @return false when there are no more rows
+		 */
+		boolean next(StringBuilder row) throws IOException;
+	}
+
+	/**
+	 * Loader for one table, used by loadAll().
+	 */
+	public interface TableLoad{
+		long load(TableSpec spec) throws SQLException, IOException;
+	}
+
+	private final ConnectionPool pool;
+
+	public BulkLoader(ConnectionPool pool){
+		this.pool = pool;
+	}
+
+	/**
+	 * Method to stream comma separated rows into a table with COPY FROM STDIN.
+	 *
+	 * @param spec the table and its columns
+	 * @param data the rows, read incrementally
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when the server rejects the data
+	 * @throws java.io.IOException when reading the data fails
+	 */
+	public long copyIn(TableSpec spec, Reader data) throws SQLException, IOException {
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		try{
+			PGConnection pg = conn.getConnection().unwrap(PGConnection.class);
+			return pg.getCopyAPI().copyIn(
+				"COPY " + spec.table + " (" + spec.columns + ") FROM STDIN WITH DELIMITER ','", data, BUFFER_SIZE);
+		}finally{
+			pool.release(conn);
+		}
+	}//end copyIn
+
+	/**
+	 * Method to stream rows produced in memory into a table with COPY FROM
+	 * STDIN.  Rows are encoded into a fixed buffer that is sent whenever it
+	 * fills, so any number of rows is loaded in constant memory.
+	 *
+	 * @param spec the table and its columns
+	 * @param rows the producer of the rows
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when the server rejects the data
+	 * @throws java.io.IOException when producing the rows fails
+	 */
+	public long copyRows(TableSpec spec, RowWriter rows) throws SQLException, IOException {
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		CopyIn copy = null;
+		try{
+			PGConnection pg = conn.getConnection().unwrap(PGConnection.class);
+			copy = pg.getCopyAPI().copyIn(
+				"COPY " + spec.table + " (" + spec.columns + ") FROM STDIN WITH DELIMITER ','");
+			StringBuilder row = new StringBuilder(256);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int used = 0;
+			while (true){
+				row.setLength(0);
+				if (!rows.next(row))
+					break;
+				row.append('\n');
+				byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+				if (used + bytes.length > buffer.length){
+					copy.writeToCopy(buffer, 0, used);
+					used = 0;
+				}
+				if (bytes.length > buffer.length){
+					copy.writeToCopy(bytes, 0, bytes.length);
+				}else{
+					System.arraycopy(bytes, 0, buffer, used, bytes.length);
+					used += bytes.length;
+				}
+			}
+			if (used > 0)
+				copy.writeToCopy(buffer, 0, used);
+			long loaded = copy.endCopy();
+			copy = null;
+			return loaded;
+		}finally{
+			if (copy != null && copy.isActive()){
+				try{
+					copy.cancelCopy();
+				}catch (SQLException e){
+					// ignored.
+				}
+			}
+			pool.release(conn);
+		}
+	}//end copyRows
+
+	/**
+	 * Method to load one table from its CSV file and report the load rate.
+	 *
+	 * @param dir the directory holding the CSV files
+	 * @param spec the table to load
+	 * @return the number of rows loaded
+	 */
+	public long loadFile(File dir, TableSpec spec) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long rows;
+		try (Reader data = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(dir, spec.file)), StandardCharsets.UTF_8), BUFFER_SIZE)){
+			rows = copyIn(spec, data);
+		}
+		report(spec.table, rows, System.nanoTime() - start);
+		return rows;
+	}
+
+	static void report(String table, long rows, long nanos){
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-12s %10d rows in %7.2fs (%.0f rows/s)",
+			table, rows, seconds, seconds == 0 ? 0.0 : rows / seconds));
+	}
+
+	/**
+	 * Method to load every table from a directory of CSV files, the
+	 * independent tables in parallel first and the dependent ones after.
+	 *
+	 * @param dir the directory holding the CSV files
+	 * @param truncate empty every table before loading
+	 * @return the total number of rows loaded
+	 */
+	public long loadDirectory(File dir, boolean truncate) throws SQLException, IOException {
+		if (truncate)
+			truncateAll();
+		return loadAll(spec -> loadFile(dir, spec));
+	}
+
+	/**
+	 * Method to load every table with the given loader, the independent
+	 * tables in parallel first and the dependent ones after, then move
+	 * reservation_rnum_seq past the loaded reservations.
+	 *
+	 * @param loader loads one table and returns its row count
+	 * @return the total number of rows loaded
+	 */
+	public long loadAll(TableLoad loader) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long rows = loadParallel(INDEPENDENT, loader) + loadParallel(DEPENDENT, loader);
+		resetReservationSequence();
+		report("total", rows, System.nanoTime() - start);
+		return rows;
+	}
+
+	private long loadParallel(TableSpec[] specs, TableLoad loader) throws SQLException, IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(specs.length, pool.getMaxSize()));
+		try{
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (TableSpec spec : specs)
+				results.add(workers.submit(() -> loader.load(spec)));
+			long rows = 0;
+			for (Future<Long> result : results)
+				rows += result.get();
+			return rows;
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading", e);
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new SQLException(cause);
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Method to empty every table loaded by this class.
+	 */
+	public void truncateAll() throws SQLException {
+		StringBuilder tables = new StringBuilder();
+		for (TableSpec spec : DEPENDENT)
+			tables.append(spec.table).append(", ");
+		for (TableSpec spec : INDEPENDENT)
+			tables.append(spec.table).append(", ");
+		tables.setLength(tables.length() - 2);
+		execute("TRUNCATE " + tables + " CASCADE");
+	}
+
+	/**
+	 * Method to move reservation_rnum_seq past the highest loaded rnum so
+	 * new bookings do not collide with loaded reservations.
+	 */
+	public void resetReservationSequence() throws SQLException {
+		execute("SELECT setval('reservation_rnum_seq', (SELECT COALESCE(MAX(rnum), 0) + 1 FROM Reservation), false)");
+	}
+
+	private void execute(String sql) throws SQLException {
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		try (Statement stmt = conn.getConnection().createStatement()){
+			stmt.execute(sql);
+		}finally{
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Loads code/data style CSV files into the database.
+	 *
+	 * @param args <dbname> <port> <user> <datadir> [--truncate]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName () +
+		            " <dbname> <port> <user> <datadir> [--truncate]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		boolean truncate = args.length > 4 && args[4].equals("--truncate");
+		//only a pool is needed, not the caches and promoter of a full client;
+		//migrations still run first, they create reservation_rnum_seq
+		ConnectionPool pool = ConnectionPool.fromSystemProperties(DBproject.url(args[0], args[1]), args[2], "");
+		try{
+			Migrator.fromSystemProperties(pool).migrate();
+			new BulkLoader(pool).loadDirectory(new File(args[3]), truncate);
+		}finally{
+			pool.close();
+		}
+	}
+}
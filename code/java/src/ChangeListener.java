@@ -0,0 +1,487 @@
+/*
+ * Cache invalidation from change notifications
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the caches of one client in step with the writes of
+ * every other client.  The triggers of migrations/V005 send a NOTIFY on
+ * the 'changes' channel for each statement that changes a table, naming
+ * the table, the operation and the keys it touched.  Since they make every
+ * commit take the server's notify lock, they are only installed while a
+ * client listens: the LISTEN connection registers with
+ * add_change_listener(), again after every reconnect, and close() calls
+ * remove_change_listener(), which drops the triggers when no other
+ * listener is left.
+ * A daemon thread LISTENs on its own connection, collects notifications
+ * for up to batchDelay and applies them together:
+ *
+ *   Ship, Captain, Technician, Customer, Cruise   entity cache entries dropped
+ *   Cruise, CruiseInfo, Ship                      seat cache entries dropped and
+ *                                                 the cruises re-read into the search index
+ *   Schedule                                      cruises re-read into the search index
+ *   Reservation                                   rows re-read into the reservation index
+ *
+ * with one query per table for the whole batch.  Of the notifications sent
+ * by this client's own pooled connections only the reservation inserts and
+ * updates and the cruise updates are skipped: they come from bookings and
+ * waitlist promotions, which update the caches themselves.  Every other
+ * write of this client is applied like another client's.  A '*' key, a
+ * deleted reservation or a batch that cannot be applied reloads the
+ * affected caches as a whole, as does a notification that cannot be parsed.
+ *
+ * Notifications are only delivered while the connection LISTENs, so after
+ * the connection is lost the listener reconnects, LISTENs again and then
+ * reloads every cache, since whatever was sent in between is gone.  Lag is
+ * the time from the trigger running on the server to the notification
+ * being read here, so it includes the writer's commit and assumes the
+ * client and server clocks agree.
+ *
+ */
+
+public class ChangeListener implements AutoCloseable{
+
+	public static final String CHANNEL = "changes";
+
+	private static final String RESERVATIONS_SQL =
+		"SELECT rnum, ccid, cid, status FROM Reservation WHERE rnum = ANY (?)";
+	private static final String SHIP_CRUISES_SQL =
+		"SELECT DISTINCT cruise_id FROM CruiseInfo WHERE ship_id = ANY (?)";
+	//tables with an entity cache, by the name the triggers send
+	private static final String[][] ENTITY_TABLES = {
+		{"ship", "Ship"}, {"captain", "Captain"}, {"technician", "Technician"},
+		{"customer", "Customer"}, {"cruise", "Cruise"}
+	};
+
+	//the changes of one batch: keys per table, and the tables to reload whole
+	private static final class Batch{
+		final Map<String, Set<Integer>> keys = new HashMap<String, Set<Integer>>();
+		final Set<String> reload = new HashSet<String>();
+		boolean reservationsDeleted = false;
+		int notifications = 0;
+
+		Set<Integer> keys(String table){
+			Set<Integer> k = keys.get(table);
+			return k == null ? new HashSet<Integer>() : k;
+		}
+	}
+
+	private final DBproject esql;
+	private final long batchDelayMillis;
+	private final int maxBatch;
+	private final long heartbeatMillis;
+	private final long retryMillis;
+	private Thread thread = null;
+	private volatile boolean closed = false;
+	//only used by the listener thread once started
+	private Connection conn = null;
+	private volatile boolean recoveryPending = false;
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder own = new LongAdder();
+	private final LongAdder keys = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder tableReloads = new LongAdder();
+	private final LongAdder recoveries = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LatencyHistogram lag = new LatencyHistogram();
+	private final LatencyHistogram applyLatency = new LatencyHistogram();
+	private volatile long lastLagMillis = 0;
+	private volatile long lastReceived = 0;
+	private volatile double queueUsage = 0;
+
+	/**
+	 * @param esql the database whose caches are kept in step
+	 * @param batchDelayMillis how long notifications are collected before they are applied
+	 * @param maxBatch the most notifications applied together
+	 * @param heartbeatMillis how long the connection may be quiet before it is checked
+	 * @param retryMillis the pause before reconnecting after the connection was lost
+	 */
+	public ChangeListener(DBproject esql, long batchDelayMillis, int maxBatch, long heartbeatMillis, long retryMillis){
+		if (maxBatch < 1 || heartbeatMillis < 1)
+			throw new IllegalArgumentException("maxBatch and heartbeatMillis must be at least 1");
+		this.esql = esql;
+		this.batchDelayMillis = batchDelayMillis;
+		this.maxBatch = maxBatch;
+		this.heartbeatMillis = heartbeatMillis;
+		this.retryMillis = retryMillis;
+	}
+
+	/**
+	 * Method to build a listener from the changes.batchMs (20),
+	 * changes.maxBatch (10000), changes.heartbeatMs (5000) and
+	 * changes.retryMs (1000) system properties.
+	 *
+	 * @param esql the database
+	 * @return the listener, not started yet
+	 */
+	public static ChangeListener fromSystemProperties(DBproject esql){
+		return new ChangeListener(esql, Long.getLong("changes.batchMs", 20L), Integer.getInteger("changes.maxBatch", 10000),
+			Long.getLong("changes.heartbeatMs", 5000L), Long.getLong("changes.retryMs", 1000L));
+	}
+
+	/**
+	 * Method to LISTEN and start applying notifications on a background
+	 * thread.  The LISTEN is in place when this returns, so caches loaded
+	 * afterwards miss nothing.  Calling it again has no effect.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public synchronized void start() throws SQLException {
+		if (thread != null)
+			return;
+		listen();
+		thread = new Thread(this::run, "change-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//LISTENs and installs the triggers; the registration ends with the connection
+	private void listen() throws SQLException {
+		conn = esql.getPool().connect();
+		try (Statement stmt = conn.createStatement()){
+			stmt.execute("LISTEN " + CHANNEL);
+			stmt.execute("SELECT add_change_listener()");
+		}catch (SQLException e){
+			disconnect();
+			throw e;
+		}
+	}
+
+	private void disconnect(){
+		if (conn == null)
+			return;
+		try{
+			conn.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+		conn = null;
+	}
+
+	//reads and applies notifications until closed, reconnecting as needed
+	private void run(){
+		while (!closed){
+			try{
+				if (conn == null){
+					listen();
+					reconnects.increment();
+					// anything sent while the connection was down is lost
+					recoveryPending = true;
+				}
+				if (recoveryPending)
+					recover();
+				poll();
+			}catch (SQLException e){
+				failures.increment();
+				if (conn != null && !isOpen())
+					disconnect();
+				sleep(retryMillis);
+			}catch (RuntimeException e){
+				// a bug must not end the thread; what was being applied may be lost
+				failures.increment();
+				recoveryPending = true;
+				sleep(retryMillis);
+			}
+		}
+		unregister();
+		disconnect();
+	}
+
+	//drops the triggers if no other client listens; closing the connection alone would leave them
+	private void unregister(){
+		if (conn == null)
+			return;
+		try (Statement stmt = conn.createStatement()){
+			stmt.execute("SELECT remove_change_listener()");
+		}catch (SQLException e){
+			// the next listener to leave drops them
+		}
+	}
+
+	private boolean isOpen(){
+		try{
+			return !conn.isClosed() && conn.isValid(2);
+		}catch (SQLException e){
+			return false;
+		}
+	}
+
+	private static void sleep(long millis){
+		try{
+			Thread.sleep(millis);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void poll() throws SQLException {
+		PGConnection pg = conn.unwrap(PGConnection.class);
+		PGNotification[] first = pg.getNotifications((int) heartbeatMillis);
+		if (first == null || first.length == 0){
+			heartbeat();
+			return;
+		}
+		Batch batch = new Batch();
+		add(batch, first);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelayMillis);
+		while (batch.notifications < maxBatch){
+			long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (wait <= 0)
+				break;
+			PGNotification[] more = pg.getNotifications((int) wait);
+			if (more == null || more.length == 0)
+				break;
+			add(batch, more);
+		}
+		apply(batch);
+	}
+
+	//checks a quiet connection and how full the server's notification queue is
+	private void heartbeat() throws SQLException {
+		try (Statement stmt = conn.createStatement()){
+			stmt.setQueryTimeout(10);
+			try (ResultSet rs = stmt.executeQuery("SELECT pg_notification_queue_usage()")){
+				rs.next();
+				queueUsage = rs.getDouble(1);
+			}
+		}
+	}
+
+	//payload: <table>:<op>:<keys or *>:<epoch ms>
+	private void add(Batch batch, PGNotification[] notifications){
+		long now = System.currentTimeMillis();
+		for (PGNotification n : notifications){
+			received.increment();
+			lastReceived = now;
+			String payload = n.getParameter();
+			int op = payload.indexOf(':');
+			int at = payload.lastIndexOf(':');
+			if (op < 0 || at < op + 3)
+				continue;
+			String table = payload.substring(0, op);
+			char operation = payload.charAt(op + 1);
+			String list = payload.substring(op + 3, at);
+			if (esql.getPool().isPoolBackend(n.getPID())){
+				own.increment();
+				if (!list.equals("*") && isCached(table, operation))
+					continue;
+			}
+			++batch.notifications;
+
+			try{
+				long lagMillis = Math.max(0, now - Long.parseLong(payload.substring(at + 1)));
+				lastLagMillis = lagMillis;
+				lag.record(TimeUnit.MILLISECONDS.toNanos(lagMillis));
+			}catch (NumberFormatException e){
+				// no lag for this one; its keys still count
+			}
+
+			if (list.equals("*")){
+				batch.reload.add(table);
+				continue;
+			}
+			if (operation == 'D' && table.equals("reservation"))
+				batch.reservationsDeleted = true;
+			Set<Integer> k = batch.keys.get(table);
+			if (k == null)
+				batch.keys.put(table, k = new HashSet<Integer>());
+			try{
+				for (int start = 0, end; start < list.length(); start = end + 1){
+					end = list.indexOf(',', start);
+					if (end < 0)
+						end = list.length();
+					k.add(Integer.parseInt(list.substring(start, end)));
+					keys.increment();
+				}
+			}catch (NumberFormatException e){
+				failures.increment();
+				batch.reload.add(table);
+			}
+		}
+	}
+
+	//writes of this client that already updated its caches: bookings and promotions
+	private static boolean isCached(String table, char operation){
+		if (table.equals("reservation"))
+			return operation == 'I' || operation == 'U';
+		return table.equals("cruise") && operation == 'U';
+	}
+
+	//drops or re-reads what the batch changed, one query per table
+	private void apply(Batch batch){
+		if (batch.notifications == 0)
+			return;
+		long start = System.nanoTime();
+		Metrics.begin("ChangeListener");
+		try{
+			tableReloads.add(batch.reload.size());
+			for (String[] t : ENTITY_TABLES){
+				EntityCache<?> cache = esql.getEntityCache(t[1]);
+				if (batch.reload.contains(t[0]))
+					cache.invalidateAll();
+				else
+					for (int id : batch.keys(t[0]))
+						cache.invalidate(id);
+			}
+
+			SeatCache seats = esql.getSeatCache();
+			CruiseSearchIndex search = esql.getSearchIndex();
+			boolean allCruises = batch.reload.contains("cruise") || batch.reload.contains("cruiseinfo")
+				|| batch.reload.contains("ship");
+			if (allCruises){
+				seats.invalidateAll();
+				if (search != null)
+					search.reload(esql);
+			}else{
+				Set<Integer> cruises = batch.keys("cruise");
+				cruises.addAll(batch.keys("cruiseinfo"));
+				cruises.addAll(cruisesOfShips(batch.keys("ship")));
+				for (int cnum : cruises)
+					seats.invalidate(cnum);
+				if (search != null){
+					if (batch.reload.contains("schedule")){
+						search.reload(esql);
+					}else{
+						cruises.addAll(batch.keys("schedule"));
+						if (!cruises.isEmpty())
+							search.refresh(esql, toArray(cruises));
+					}
+				}
+			}
+
+			ReservationIndex index = esql.getReservationIndex();
+			if (index != null){
+				// the index cannot drop a reservation, so a delete reloads it
+				if (batch.reload.contains("reservation") || batch.reservationsDeleted)
+					index.reload(esql);
+				else if (!batch.keys("reservation").isEmpty())
+					reread(index, batch.keys("reservation"));
+			}
+			batches.increment();
+		}catch (SQLException e){
+			// the caches may now miss a change; reload them all
+			failures.increment();
+			recoveryPending = true;
+		}finally{
+			Metrics.end();
+			applyLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private Set<Integer> cruisesOfShips(Set<Integer> ships) throws SQLException {
+		Set<Integer> cruises = new HashSet<Integer>();
+		if (ships.isEmpty())
+			return cruises;
+		ConnectionPool.PooledConnection c = esql.getPool().borrow();
+		try (ResultSet rs = DBproject.query(c, SHIP_CRUISES_SQL, c.getConnection().createArrayOf("int4", ships.toArray()))){
+			while (rs.next())
+				cruises.add(rs.getInt(1));
+		}finally{
+			esql.getPool().release(c);
+		}
+		return cruises;
+	}
+
+	private void reread(ReservationIndex index, Set<Integer> rnums) throws SQLException {
+		ConnectionPool.PooledConnection c = esql.getPool().borrow();
+		try (ResultSet rs = DBproject.query(c, RESERVATIONS_SQL, c.getConnection().createArrayOf("int4", rnums.toArray()))){
+			while (rs.next()){
+				String status = rs.getString(4);
+				index.put(rs.getInt(1), rs.getInt(2), rs.getInt(3), status == null ? ' ' : status.charAt(0));
+			}
+		}finally{
+			esql.getPool().release(c);
+		}
+	}
+
+	private static int[] toArray(Set<Integer> set){
+		int[] a = new int[set.size()];
+		int i = 0;
+		for (int v : set)
+			a[i++] = v;
+		return a;
+	}
+
+	/**
+	 * Method to reload every cache from the database, for when notifications
+	 * may have been missed.  Runs on the listener thread after a reconnect.
+	 *
+	 * @throws java.sql.SQLException when a cache could not be reloaded; the
+	 *         listener tries again after retryMillis
+	 */
+	public void recover() throws SQLException {
+		Metrics.begin("ChangeRecovery");
+		try{
+			recoveryPending = true;
+			esql.reloadCaches();
+			recoveryPending = false;
+			recoveries.increment();
+		}finally{
+			Metrics.end();
+		}
+	}
+
+	/**
+	 * Method to stop listening and wait for the thread to finish.  The thread
+	 * drops the notification triggers on its way out when no other client
+	 * listens any more.
+	 */
+	public void close(){
+		closed = true;
+		Thread t;
+		synchronized (this){
+			t = thread;
+		}
+		if (t == null){
+			disconnect();
+			return;
+		}
+		try{
+			t.join(heartbeatMillis + 5000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getReceived(){ return received.sum(); }
+	public long getRecoveries(){ return recoveries.sum(); }
+	public LatencyHistogram getLag(){ return lag; }
+
+	/**
+	 * @return the lag of the last notification read, in milliseconds
+	 */
+	public long getLastLagMillis(){ return lastLagMillis; }
+
+	/**
+	 * @return a one-line summary of the notifications and their lag
+	 */
+	public String stats(){
+		long last = lastReceived;
+		return String.format("change listener: notifications=%d own=%d keys=%d batches=%d tableReloads=%d " +
+			"recoveries=%d reconnects=%d failures=%d queueUsage=%.1f%% last=%s lastLag=%dms lag %s apply %s",
+			received.sum(), own.sum(), keys.sum(), batches.sum(), tableReloads.sum(),
+			recoveries.sum(), reconnects.sum(), failures.sum(), queueUsage * 100,
+			last == 0 ? "never" : (System.currentTimeMillis() - last) + "ms ago", lastLagMillis,
+			lag.summary(), applyLatency.summary());
+	}
+}
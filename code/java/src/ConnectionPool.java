@@ -0,0 +1,487 @@
+/*
+ * Connection pool for the cruise booking client
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class keeps a bounded set of physical connections to the database so
+ * that several clients can run statements at the same time without sharing a
+ * connection.  The pool opens coreSize connections up front, grows up to
+ * maxSize under load, closes connections above the core size once they have
+ * been idle for idleTimeoutMillis, validates connections that sat idle before
+ * handing them out, and lets at most maxWaiters callers queue for a
+ * connection when every one of them is in use.
+ *
+ */
+
+public class ConnectionPool{
+
+	/**
+	 * A physical connection together with the prepared statements opened on
+	 * it.  Prepared statements belong to a connection, so each pooled
+	 * connection keeps its own statement cache.
+	 */
+	public static class PooledConnection{
+		//upper bound on the number of prepared statements kept open on the connection
+		private static final int STATEMENT_CACHE_SIZE = 64;
+
+		private final ConnectionPool pool;
+		private final Connection connection;
+		//the server process serving this connection
+		private final int backendPid;
+		private long lastUsed;
+
+		//prepared statements keyed by their SQL text, least recently used first
+		private final Map<String, PreparedStatement> statements =
+			new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() <= STATEMENT_CACHE_SIZE)
+						return false;
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+			};
+
+		private PooledConnection(ConnectionPool pool, Connection connection, int backendPid){
+			this.pool = pool;
+			this.connection = connection;
+			this.backendPid = backendPid;
+			this.lastUsed = System.nanoTime();
+		}
+
+		/**
+		 * @return the physical connection
+		 */
+		public Connection getConnection(){
+			return connection;
+		}
+
+		/**
+		 * @return the pool this connection is released to
+		 */
+		public ConnectionPool getPool(){
+			return pool;
+		}
+
+		/**
+		 * Method to fetch the prepared statement for a SQL string.  The
+		 * statement is prepared the first time the string is seen on this
+		 * connection and reused afterwards, so the DBMS does not re-parse
+		 * and re-plan it.
+		 *
+		 * @param sql the SQL string, with ? placeholders for parameters
+		 * @return the cached prepared statement
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = statements.get(sql);
+			if (stmt != null && !stmt.isClosed()){
+				pool.statementHits.incrementAndGet();
+				return stmt;
+			}
+			pool.statementMisses.incrementAndGet();
+			stmt = connection.prepareStatement(sql);
+			statements.put(sql, stmt);
+			return stmt;
+		}
+
+		private void close(){
+			for (PreparedStatement stmt : statements.values())
+				closeQuietly(stmt);
+			statements.clear();
+			pool.backends.remove(backendPid);
+			try{
+				connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}
+
+	private final String url;
+	private final String user;
+	private final String passwd;
+	private final int coreSize;
+	private final int maxSize;
+	private final long idleTimeoutNanos;
+	private final long validateAfterNanos;
+	private final int maxWaiters;
+	private final long maxWaitNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	//idle connections, most recently released first
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private int total = 0;
+	private int waiting = 0;
+	private boolean closed = false;
+	private final ScheduledExecutorService evictor;
+	//backend process ids of the open connections
+	private final Set<Integer> backends = ConcurrentHashMap.newKeySet();
+
+	//metrics
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitObservedNanos = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong validationFailures = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	public ConnectionPool(String url, String user, String passwd, int coreSize, int maxSize,
+			long idleTimeoutMillis, long validateAfterMillis, int maxWaiters, long maxWaitMillis) throws SQLException {
+		if (coreSize < 0 || maxSize < 1 || coreSize > maxSize)
+			throw new IllegalArgumentException("invalid pool size: core=" + coreSize + " max=" + maxSize);
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.coreSize = coreSize;
+		this.maxSize = maxSize;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+		this.maxWaiters = maxWaiters;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+		// opens the core connections up front so the first requests do not pay for them
+		try{
+			for (int i = 0; i < coreSize; ++i){
+				idle.push(open());
+				++total;
+			}
+		}catch (SQLException | RuntimeException e){
+			// the pool is never returned, so nobody else would close the ones already open
+			while (!idle.isEmpty())
+				idle.pop().close();
+			throw e;
+		}
+
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000L, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to build a pool from system properties, falling back to
+	 * defaults suitable for a handful of concurrent clients:
+	 * pool.core (2), pool.max (8), pool.idleTimeoutMs (60000),
+	 * pool.validateAfterMs (5000), pool.maxWaiters (64), pool.maxWaitMs (5000).
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @return the new pool
+	 * @throws java.sql.SQLException when the core connections cannot be opened
+	 */
+	public static ConnectionPool fromSystemProperties(String url, String user, String passwd) throws SQLException {
+		return new ConnectionPool(url, user, passwd,
+			Integer.getInteger("pool.core", 2),
+			Integer.getInteger("pool.max", 8),
+			Long.getLong("pool.idleTimeoutMs", 60000L),
+			Long.getLong("pool.validateAfterMs", 5000L),
+			Integer.getInteger("pool.maxWaiters", 64),
+			Long.getLong("pool.maxWaitMs", 5000L));
+	}
+
+	/**
+	 * Method to borrow a connection.  An idle connection is reused if there
+	 * is one, a new connection is opened if the pool is below its maximum
+	 * size, and otherwise the caller waits for a connection to be released.
+	 * Every borrowed connection must be handed back with release().
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when the wait queue is full, the wait
+	 *         times out or a new connection cannot be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		boolean waited = false;
+		while (true){
+			PooledConnection conn = null;
+			boolean grow = false;
+			lock.lock();
+			try{
+				if (closed)
+					throw new SQLException("Connection pool is closed", "08003");
+				if (!idle.isEmpty()){
+					conn = idle.pop();
+				}else if (total < maxSize){
+					++total;
+					grow = true;
+				}else{
+					if (waiting >= maxWaiters){
+						rejections.incrementAndGet();
+						throw new SQLException("Connection pool saturated: " + waiting + " waiting", "53300");
+					}
+					long remaining = maxWaitNanos - (System.nanoTime() - start);
+					if (remaining <= 0){
+						timeouts.incrementAndGet();
+						throw new SQLException("Timed out waiting for a connection", "08001");
+					}
+					waited = true;
+					++waiting;
+					try{
+						available.awaitNanos(remaining);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted waiting for a connection", "08001", e);
+					}finally{
+						--waiting;
+					}
+					continue;
+				}
+			}finally{
+				lock.unlock();
+			}
+
+			if (grow){
+				try{
+					conn = open();
+				}catch (SQLException e){
+					discard(null);
+					throw e;
+				}
+			}else if (System.nanoTime() - conn.lastUsed >= validateAfterNanos && !isValid(conn)){
+				validationFailures.incrementAndGet();
+				discard(conn);
+				continue;
+			}
+
+			long elapsed = System.nanoTime() - start;
+			borrows.incrementAndGet();
+			if (waited){
+				waits.incrementAndGet();
+				waitNanos.addAndGet(elapsed);
+				maxWaitObservedNanos.accumulateAndGet(elapsed, Math::max);
+			}
+			return conn;
+		}
+	}//end borrow
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  An open
+	 * transaction left behind by the caller is rolled back.
+	 *
+	 * @param conn the connection returned by borrow()
+	 */
+	public void release(PooledConnection conn){
+		if (conn == null)
+			return;
+		try{
+			if (conn.connection.isClosed()){
+				discard(conn);
+				return;
+			}
+			if (!conn.connection.getAutoCommit()){
+				conn.connection.rollback();
+				conn.connection.setAutoCommit(true);
+			}
+		}catch (SQLException e){
+			discard(conn);
+			return;
+		}
+		conn.lastUsed = System.nanoTime();
+		lock.lock();
+		try{
+			if (closed){
+				--total;
+				destroyed.incrementAndGet();
+				conn.close();
+				return;
+			}
+			idle.push(conn);
+			available.signal();
+		}finally{
+			lock.unlock();
+		}
+	}//end release
+
+	/**
+	 * Method to close idle connections above the core size that have not
+	 * been used for the idle timeout.  Runs periodically on a daemon thread.
+	 */
+	void evictIdle(){
+		long now = System.nanoTime();
+		lock.lock();
+		try{
+			// the least recently used connections sit at the tail of the deque
+			while (total > coreSize && !idle.isEmpty() && now - idle.peekLast().lastUsed >= idleTimeoutNanos){
+				idle.pollLast().close();
+				--total;
+				destroyed.incrementAndGet();
+			}
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to close every connection.  Connections that are still borrowed
+	 * are closed when they are released.
+	 */
+	public void close(){
+		evictor.shutdownNow();
+		lock.lock();
+		try{
+			closed = true;
+			while (!idle.isEmpty()){
+				idle.pop().close();
+				--total;
+				destroyed.incrementAndGet();
+			}
+			available.signalAll();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(url, user, passwd);
+		created.incrementAndGet();
+		int pid;
+		try{
+			pid = c.unwrap(PGConnection.class).getBackendPID();
+		}catch (SQLException | RuntimeException e){
+			c.close();
+			throw e;
+		}
+		backends.add(pid);
+		return new PooledConnection(this, c, pid);
+	}
+
+	/**
+	 * Method to open a connection outside the pool, for a session that
+	 * must stay open indefinitely, e.g. one that LISTENs.  The caller
+	 * closes it.
+	 *
+	 * @return a new connection in autocommit mode
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(url, user, passwd);
+	}
+
+	/**
+	 * @param pid a backend process id, e.g. the sender of a notification
+	 * @return true if one of this pool's connections is served by that process
+	 */
+	public boolean isPoolBackend(int pid){
+		return backends.contains(pid);
+	}
+
+	private boolean isValid(PooledConnection conn){
+		try{
+			return conn.connection.isValid(2);
+		}catch (SQLException e){
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection conn){
+		if (conn != null){
+			conn.close();
+			destroyed.incrementAndGet();
+		}
+		lock.lock();
+		try{
+			--total;
+			available.signal();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	private static void closeQuietly(java.sql.Statement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+
+	public String getUrl(){ return url; }
+	public int getMaxSize(){ return maxSize; }
+
+	public int getTotal(){
+		lock.lock();
+		try{ return total; }finally{ lock.unlock(); }
+	}
+
+	public int getIdle(){
+		lock.lock();
+		try{ return idle.size(); }finally{ lock.unlock(); }
+	}
+
+	public int getActive(){
+		lock.lock();
+		try{ return total - idle.size(); }finally{ lock.unlock(); }
+	}
+
+	public int getWaiting(){
+		lock.lock();
+		try{ return waiting; }finally{ lock.unlock(); }
+	}
+
+	/**
+	 * @return the fraction of the maximum pool size currently borrowed
+	 */
+	public double getSaturation(){
+		return (double) getActive() / maxSize;
+	}
+
+	public long getBorrows(){ return borrows.get(); }
+	public long getWaits(){ return waits.get(); }
+	public long getWaitNanos(){ return waitNanos.get(); }
+	public long getMaxWaitNanos(){ return maxWaitObservedNanos.get(); }
+	public long getTimeouts(){ return timeouts.get(); }
+	public long getRejections(){ return rejections.get(); }
+	public long getCreated(){ return created.get(); }
+	public long getDestroyed(){ return destroyed.get(); }
+	public long getValidationFailures(){ return validationFailures.get(); }
+	public long getStatementCacheHits(){ return statementHits.get(); }
+	public long getStatementCacheMisses(){ return statementMisses.get(); }
+
+	/**
+	 * @return a one-line summary of the pool metrics
+	 */
+	public String stats(){
+		long w = waits.get();
+		return String.format("pool: active=%d idle=%d total=%d/%d waiting=%d saturation=%.0f%% | " +
+				"borrows=%d waits=%d avgWait=%.2fms maxWait=%.2fms timeouts=%d rejected=%d | " +
+				"created=%d closed=%d invalid=%d | statements hit=%d miss=%d",
+			getActive(), getIdle(), getTotal(), maxSize, getWaiting(), getSaturation() * 100,
+			borrows.get(), w, w == 0 ? 0.0 : waitNanos.get() / 1e6 / w, maxWaitObservedNanos.get() / 1e6,
+			timeouts.get(), rejections.get(),
+			created.get(), destroyed.get(), validationFailures.get(),
+			statementHits.get(), statementMisses.get());
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * In-memory cruise search index
+ * =============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class answers "cruises from port X to port Y departing between two
+ * dates with at least N free seats" from memory.  Every (departure port,
+ * arrival port) pair has a route holding its cruises as one sorted long
+ * array of (departure day, cnum) keys, so a search is a hash lookup, a
+ * binary search for the first day and a scan of the window.  The free
+ * seats, departure day and scheduled departure of each cruise sit in int
+ * columns reached through an IntIntMap from cnum to slot.
+ *
+ * Results are paged with a cursor, the key of the last cruise returned,
+ * so the next page starts right after it even if cruises were added in
+ * between.  Bookings made through DBproject update the free seats as they
+ * commit, refresh() re-reads one cruise and reload() rebuilds the whole
+ * index without blocking readers.
+ *
+ */
+
+public class CruiseSearchIndex{
+
+	//cursor for the first page
+	public static final long FIRST = Long.MIN_VALUE;
+	//a cruise with no ship never has free seats
+	private static final int NO_SEATS = Integer.MIN_VALUE;
+	//scheduled departure of a cruise missing from Schedule
+	private static final int NO_DAY = Integer.MIN_VALUE;
+
+	private static final String LOAD_SQL =
+		"SELECT C.cnum, C.departure_port, C.arrival_port, C.actual_departure_date, " +
+		"(SELECT MAX(S.seats) FROM CruiseInfo CI, Ship S WHERE CI.cruise_id = C.cnum AND S.id = CI.ship_id) - C.num_sold, " +
+		"(SELECT MIN(Sch.departure_time) FROM Schedule Sch WHERE Sch.cruiseNum = C.cnum) " +
+		"FROM Cruise C";
+	private static final String REFRESH_SQL = LOAD_SQL + " WHERE C.cnum = ANY (?)";
+
+	/**
+	 * One cruise in a search result.
+	 */
+	public static final class Hit{
+		public final int cnum;
+		public final LocalDate departure;
+		//null when the cruise has no Schedule row
+		public final LocalDate scheduled;
+		public final int available;
+
+		Hit(int cnum, LocalDate departure, LocalDate scheduled, int available){
+			this.cnum = cnum;
+			this.departure = departure;
+			this.scheduled = scheduled;
+			this.available = available;
+		}
+
+		public String toString(){
+			return cnum + " departs " + departure + " available " + available;
+		}
+	}
+
+	/**
+	 * One page of a search result.
+	 */
+	public static final class Page{
+		public final List<Hit> hits;
+		//cursor for the next page, or FIRST when this is the last one
+		public final long next;
+
+		Page(List<Hit> hits, long next){
+			this.hits = hits;
+			this.next = next;
+		}
+	}
+
+	//the cruises of one port pair, ordered by (departure day, cnum)
+	private static final class Route{
+		long[] keys = new long[4];
+		int size = 0;
+
+		int lowerBound(long key){
+			int lo = 0, hi = size;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		void insert(long key){
+			int i = lowerBound(key);
+			if (size == keys.length)
+				keys = Arrays.copyOf(keys, size * 2);
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			keys[i] = key;
+			++size;
+		}
+
+		void remove(long key){
+			int i = lowerBound(key);
+			if (i < size && keys[i] == key){
+				System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+				--size;
+			}
+		}
+	}
+
+	//the routes and cruise columns; replaced as a whole by reload()
+	private static final class Store{
+		final Map<String, Route> routes = new HashMap<String, Route>();
+		final IntIntMap slots;
+		int[] days, scheduled, available;
+		Route[] routeOf;
+		int size = 0;
+
+		Store(int capacity){
+			capacity = Math.max(16, capacity);
+			slots = new IntIntMap(capacity);
+			days = new int[capacity];
+			scheduled = new int[capacity];
+			available = new int[capacity];
+			routeOf = new Route[capacity];
+		}
+
+		void put(int cnum, String from, String to, int day, int scheduledDay, int seats){
+			int slot = slots.get(cnum);
+			if (slot == IntIntMap.NONE){
+				if (size == days.length){
+					int capacity = size * 2;
+					days = Arrays.copyOf(days, capacity);
+					scheduled = Arrays.copyOf(scheduled, capacity);
+					available = Arrays.copyOf(available, capacity);
+					routeOf = Arrays.copyOf(routeOf, capacity);
+				}
+				slot = size++;
+				slots.put(cnum, slot);
+			}else{
+				routeOf[slot].remove(key(days[slot], cnum));
+			}
+			Route route = routes.computeIfAbsent(routeKey(from, to), k -> new Route());
+			route.insert(key(day, cnum));
+			days[slot] = day;
+			scheduled[slot] = scheduledDay;
+			available[slot] = seats;
+			routeOf[slot] = route;
+		}
+
+		void seats(int cnum, int seats){
+			int slot = slots.get(cnum);
+			if (slot != IntIntMap.NONE)
+				available[slot] = seats;
+		}
+
+		long bytes(){
+			long keys = 0;
+			for (Route r : routes.values())
+				keys += 8L * r.keys.length;
+			return keys + slots.bytes() + 20L * days.length;
+		}
+	}
+
+	private final StampedLock lock = new StampedLock();
+	private Store store = new Store(16);
+	//writes made while reload() reads the table, replayed on the new store
+	private List<Consumer<Store>> pending = null;
+
+	private static long key(int day, int cnum){
+		return ((long) day << 32) | (cnum & 0xFFFFFFFFL);
+	}
+
+	private static String routeKey(String from, String to){
+		return from.trim().toUpperCase() + '>' + to.trim().toUpperCase();
+	}
+
+	private void write(Consumer<Store> change){
+		long stamp = lock.writeLock();
+		try{
+			change.accept(store);
+			if (pending != null)
+				pending.add(change);
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Method to add a cruise or replace what the index holds about it.
+	 *
+	 * @param cnum the cruise number
+	 * @param from the departure port
+	 * @param to the arrival port
+	 * @param departure the departure date
+	 * @param scheduled the scheduled departure date, or null
+	 * @param available the free seats, or SeatCache.NO_SHIP
+	 */
+	public void put(int cnum, String from, String to, LocalDate departure, LocalDate scheduled, int available){
+		int day = (int) departure.toEpochDay();
+		int scheduledDay = scheduled == null ? NO_DAY : (int) scheduled.toEpochDay();
+		int seats = available == SeatCache.NO_SHIP ? NO_SEATS : available;
+		write(s -> s.put(cnum, from, to, day, scheduledDay, seats));
+	}
+
+	/**
+	 * Method to record the free seats of a cruise after a booking.
+	 *
+	 * @param cnum the cruise number
+	 * @param available the free seats, or SeatCache.NO_SHIP
+	 */
+	public void seats(int cnum, int available){
+		int seats = available == SeatCache.NO_SHIP ? NO_SEATS : available;
+		write(s -> s.seats(cnum, seats));
+	}
+
+	/**
+	 * Method to re-read one cruise, e.g. after it was added.
+	 *
+	 * @param esql the database to read
+	 * @param cnum the cruise number
+	 * @return false if the cruise does not exist
+	 * @throws java.sql.SQLException when failed to read the cruise
+	 */
+	public boolean refresh(DBproject esql, int cnum) throws SQLException {
+		return refresh(esql, new int[]{cnum}) == 1;
+	}
+
+	/**
+	 * Method to re-read several cruises with one query, e.g. after another
+	 * client changed them.
+	 *
+	 * @param esql the database to read
+	 * @param cnums the cruise numbers
+	 * @return the number of cruises that exist
+	 * @throws java.sql.SQLException when failed to read the cruises
+	 */
+	public int refresh(DBproject esql, int[] cnums) throws SQLException {
+		Integer[] keys = new Integer[cnums.length];
+		for (int i = 0; i < cnums.length; ++i)
+			keys[i] = cnums[i];
+		IntIntMap found = new IntIntMap(Math.max(16, cnums.length));
+		ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+		try (ResultSet rs = DBproject.query(conn, REFRESH_SQL, conn.getConnection().createArrayOf("int4", keys))){
+			while (rs.next()){
+				found.put(rs.getInt(1), 1);
+				put(rs);
+			}
+		}finally{
+			esql.getPool().release(conn);
+		}
+		// a cruise that is gone is never found again
+		for (int cnum : cnums)
+			if (found.get(cnum) == IntIntMap.NONE)
+				seats(cnum, SeatCache.NO_SHIP);
+		return found.size;
+	}
+
+	private void put(ResultSet rs) throws SQLException {
+		int seats = rs.getInt(5);
+		if (rs.wasNull())
+			seats = SeatCache.NO_SHIP;
+		Date scheduled = rs.getDate(6);
+		put(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getDate(4).toLocalDate(),
+			scheduled == null ? null : scheduled.toLocalDate(), seats);
+	}
+
+	/**
+	 * Method to replace the index with the current contents of Cruise,
+	 * read with one streamed query.  Searches keep using the old index
+	 * until the new one is complete; writes made meanwhile are carried over.
+	 *
+	 * @param esql the database to read
+	 * @return the number of cruises loaded
+	 * @throws java.sql.SQLException when failed to read the table
+	 */
+	public int reload(DBproject esql) throws SQLException {
+		long stamp = lock.writeLock();
+		try{
+			pending = new ArrayList<Consumer<Store>>();
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		Store fresh = null;
+		try{
+			Store loading = new Store(size() + size() / 4);
+			esql.streamQuery(LOAD_SQL, 10000, rs -> {
+				int seats = rs.getInt(5);
+				if (rs.wasNull())
+					seats = NO_SEATS;
+				Date scheduled = rs.getDate(6);
+				loading.put(rs.getInt(1), rs.getString(2), rs.getString(3), (int) rs.getDate(4).toLocalDate().toEpochDay(),
+					scheduled == null ? NO_DAY : (int) scheduled.toLocalDate().toEpochDay(), seats);
+			});
+			fresh = loading;
+		}finally{
+			stamp = lock.writeLock();
+			try{
+				if (fresh != null){
+					for (Consumer<Store> change : pending)
+						change.accept(fresh);
+					store = fresh;
+				}
+				pending = null;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		return size();
+	}//end reload
+
+	/**
+	 * Method to find the cruises on a route departing within a window and
+	 * with enough free seats, in departure order.
+	 *
+	 * @param from the departure port
+	 * @param to the arrival port
+	 * @param earliest the first departure date, inclusive
+	 * @param latest the last departure date, inclusive
+	 * @param minSeats the free seats a cruise must have
+	 * @param after FIRST, or the next cursor of the previous page
+	 * @param limit the most cruises returned
+	 * @return the page
+	 */
+	public Page search(String from, String to, LocalDate earliest, LocalDate latest, int minSeats, long after, int limit){
+		if (limit < 1)
+			throw new IllegalArgumentException("limit must be at least 1");
+		int first = (int) earliest.toEpochDay(), last = (int) latest.toEpochDay();
+		String routeKey = routeKey(from, to);
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			Route route = s.routes.get(routeKey);
+			if (route == null || first > last)
+				return new Page(Collections.<Hit>emptyList(), FIRST);
+			List<Hit> hits = new ArrayList<Hit>(Math.min(limit, 64));
+			long start = after == FIRST ? key(first, 0) : Math.max(key(first, 0), after + 1);
+			for (int i = route.lowerBound(start); i < route.size; ++i){
+				long k = route.keys[i];
+				if ((int) (k >> 32) > last)
+					break;
+				int cnum = (int) k;
+				int slot = s.slots.get(cnum);
+				int seats = s.available[slot];
+				if (seats == NO_SEATS || seats < minSeats)
+					continue;
+				if (hits.size() == limit)
+					return new Page(hits, lastKey(hits));
+				hits.add(new Hit(cnum, LocalDate.ofEpochDay(s.days[slot]),
+					s.scheduled[slot] == NO_DAY ? null : LocalDate.ofEpochDay(s.scheduled[slot]), seats));
+			}
+			return new Page(hits, FIRST);
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}//end search
+
+	private static long lastKey(List<Hit> hits){
+		Hit h = hits.get(hits.size() - 1);
+		return key((int) h.departure.toEpochDay(), h.cnum);
+	}
+
+	public int size(){
+		long stamp = lock.readLock();
+		try{
+			return store.size;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return a one-line summary of the index
+	 */
+	public String stats(){
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			return String.format("cruise search index: cruises=%d routes=%d memory=%.1fMB",
+				s.size, s.routes.size(), s.bytes() / 1048576.0);
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+}
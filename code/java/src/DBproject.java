@@ -13,6 +13,7 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -21,11 +22,20 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -34,19 +44,125 @@ import java.util.Date;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by every caller of this object
+	private ConnectionPool _pool = null;
+	//available seats per cruise, kept in step with bookings made through this object
+	private SeatCache _seats = null;
+	//rows of the mostly static tables by primary key, for lookups and existence checks
+	private EntityCache<Entities.Ship> _ships = null;
+	private EntityCache<Entities.Captain> _captains = null;
+	private EntityCache<Entities.Technician> _technicians = null;
+	private EntityCache<Entities.Customer> _customers = null;
+	private EntityCache<Entities.Cruise> _cruises = null;
+	//every reservation in packed arrays when reservations.index=true, otherwise null
+	private ReservationIndex _reservations = null;
+	//cruises by route and departure day, or null when search.index=false
+	private CruiseSearchIndex _search = null;
+	//background waitlist promotion, or null unless waitlist.intervalMs is set
+	private WaitlistPromoter _promoter = null;
+	//applies other clients' writes to the caches, or null unless changes.listen=true
+	private ChangeListener _changes = null;
+	//sends reads to the replicas listed in replicas, or null when there are none
+	private ReplicaRouter _router = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//buffered writer on standard out for query results; flushed once per query
+	//instead of once per line
+	static final PrintWriter out = new PrintWriter(new BufferedWriter(
+		new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 1 << 16), false);
+	//writes query results to standard out as bytes; guarded by the lock on out
+	private static final ResultRenderer renderer = ResultRenderer.fromSystemProperties(new FileOutputStream(FileDescriptor.out));
+
+	//rows fetched per round trip when a query is read through a cursor
+	public static final int FETCH_SIZE = 1000;
+
+	//queries behind the menu reports, shared with the benchmarks and Migrator.check();
+	//string parameters are cast to the CHAR column type so the indexes on those columns apply
+	public static final String RESERVATIONS_BY_NAME_SQL =
+		"SELECT * FROM Reservation, Customer C WHERE ccid = C.id AND C.fname = CAST(? AS bpchar) AND C.lname = CAST(? AS bpchar)";
+	//both reports read the counters kept by the triggers in migrations/V002 (per statement and
+	//lock-ordered for Reservation, per row for Repairs); a status sums its 16 slots; see ReportCounters
+	public static final String REPAIRS_PER_SHIP_SQL =
+		"SELECT ship_id, total AS Total_Repairs FROM ship_repair_counts WHERE total > 0 ORDER BY Total_Repairs DESC";
+	public static final String PASSENGERS_WITH_STATUS_SQL =
+		"SELECT status, SUM(total) AS Total FROM reservation_status_counts WHERE status = CAST(? AS bpchar) GROUP BY status HAVING SUM(total) > 0 ORDER BY Total DESC";
+	//inserts behind Add Ship/Captain/Cruise, shared with the script mode
+	public static final String ADD_SHIP_SQL = "INSERT INTO Ship VALUES(?, ?, ?, ?, ?)";
+	public static final String ADD_CAPTAIN_SQL = "INSERT INTO Captain VALUES(?, ?, ?)";
+	public static final String ADD_CRUISE_SQL =
+		"INSERT INTO Cruise VALUES(?, ?, ?, ?, TO_DATE(?, 'DD/MM/YYYY'), TO_DATE(?, 'DD/MM/YYYY'), ?, ?)";
+	public static final String AVAILABLE_SEATS_SQL =
+		"SELECT S.seats - C.num_sold FROM Ship S, CruiseInfo CI, Cruise C WHERE C.cnum = ? AND C.cnum = CI.cruise_id AND S.id = CI.ship_id";
+
+	/**
+	 * Callback for streamed query results.  It is called once per row with
+	 * the result set positioned on that row; it must not move the cursor.
+	 */
+	public interface RowHandler{
+		void row (ResultSet rs) throws SQLException;
+	}
 	
+	// prepareThreshold=1 makes the driver use a named server-side statement
+	// from the first execution so the plan is reused by every later call, and
+	// reWriteBatchedInserts turns a batch of single-row INSERTs into
+	// multi-row INSERTs
+	private static final String URL_PARAMS = "?prepareThreshold=1&reWriteBatchedInserts=true";
+
+	/**
+	 * Method to build the connection URL of a local database.
+	 *
+	 * @param dbname the database name
+	 * @param dbport the port of the local server
+	 * @return the JDBC URL
+	 */
+	static String url (String dbname, String dbport){
+		return "jdbc:postgresql://localhost:" + dbport + "/" + dbname + URL_PARAMS;
+	}
+
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = url (dbname, dbport);
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the pool of physical connections
+	        this._pool = ConnectionPool.fromSystemProperties(url, user, passwd);
+	        // replicas=host:port,... sends read-only statements to streaming replicas
+	        if (System.getProperty("replicas", "").trim().length() > 0)
+	        	this._router = ReplicaRouter.fromSystemProperties(_pool,
+	        		ReplicaRouter.urls(System.getProperty("replicas"), dbname, URL_PARAMS), user, passwd);
+	        Metrics.startReporting();
+	        // logs statements over slowlog.thresholdMs, when set
+	        SlowQueryLog.start(this._pool);
+	        // brings the schema up to the latest migration in code/sql/migrations
+	        Migrator.fromSystemProperties(this._pool).migrate();
+	        this._seats = SeatCache.fromSystemProperties();
+	        // entities.maxSize rows per table, least recently used evicted first
+	        int entities = Integer.getInteger("entities.maxSize", 10000);
+	        this._ships = new EntityCache<Entities.Ship>("Ship", _pool, Entities.Ship.SELECT_SQL, Entities.Ship::from, entities);
+	        this._captains = new EntityCache<Entities.Captain>("Captain", _pool, Entities.Captain.SELECT_SQL, Entities.Captain::from, entities);
+	        this._technicians = new EntityCache<Entities.Technician>("Technician", _pool, Entities.Technician.SELECT_SQL, Entities.Technician::from, entities);
+	        this._customers = new EntityCache<Entities.Customer>("Customer", _pool, Entities.Customer.SELECT_SQL, Entities.Customer::from, entities);
+	        this._cruises = new EntityCache<Entities.Cruise>("Cruise", _pool, Entities.Cruise.SELECT_SQL, Entities.Cruise::from, entities);
+	        // LISTENs before the caches below are loaded, so no change falls in between
+	        if (Boolean.getBoolean("changes.listen")){
+	        	this._changes = ChangeListener.fromSystemProperties(this);
+	        	this._changes.start();
+	        }
+	        if (this._seats.getMode() == SeatCache.Mode.CACHED)
+	        	warmSeatCache();
+	        if (Boolean.parseBoolean(System.getProperty("reservations.index", "false"))){
+	        	this._reservations = new ReservationIndex();
+	        	this._reservations.reload(this);
+	        }
+	        if (Boolean.parseBoolean(System.getProperty("search.index", "true"))){
+	        	this._search = new CruiseSearchIndex();
+	        	this._search.reload(this);
+	        }
+	        if (System.getProperty("waitlist.intervalMs") != null){
+	        	this._promoter = WaitlistPromoter.fromSystemProperties(this);
+	        	this._promoter.start();
+	        }
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -54,176 +170,591 @@ public class DBproject{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * @return the connection pool behind this object
+	 */
+	public ConnectionPool getPool(){
+		return _pool;
+	}
+
+	/**
+	 * @return the read replica router, or null when no replicas are configured
+	 */
+	public ReplicaRouter getReplicaRouter(){
+		return _router;
+	}
+
+	/**
+	 * @return the seat availability cache behind this object
+	 */
+	public SeatCache getSeatCache(){
+		return _seats;
+	}
+
+	public EntityCache<Entities.Ship> getShips(){ return _ships; }
+	public EntityCache<Entities.Captain> getCaptains(){ return _captains; }
+	public EntityCache<Entities.Technician> getTechnicians(){ return _technicians; }
+	public EntityCache<Entities.Customer> getCustomers(){ return _customers; }
+	public EntityCache<Entities.Cruise> getCruises(){ return _cruises; }
+
+	/**
+	 * @return the in-memory reservation index, or null when it is disabled
+	 */
+	public ReservationIndex getReservationIndex(){
+		return _reservations;
+	}
+
+	/**
+	 * @return the in-memory cruise search index, or null when it is disabled
+	 */
+	public CruiseSearchIndex getSearchIndex(){
+		return _search;
+	}
+
+	/**
+	 * Method to record the free seats of a cruise after a committed change,
+	 * in the seat cache and the search index.  A value the cache refuses as
+	 * older than what it holds does not reach the search index either; the
+	 * writer that invalidated the entry refreshes both.
+	 *
+	 * @param cnum the cruise number
+	 * @param available the free seats, or SeatCache.NO_SHIP
+	 * @param since the SeatCache version taken before the value was read
+	 */
+	void seatsChanged (int cnum, int available, long since){
+		int stored = _seats.put (cnum, available, since);
+		if (stored != SeatCache.MISSING && _search != null)
+			_search.seats (cnum, stored);
+	}
+
+	/**
+	 * @return the background waitlist promoter, or null when it is not running
+	 */
+	public WaitlistPromoter getWaitlistPromoter(){
+		return _promoter;
+	}
+
+	/**
+	 * @return the change notification listener, or null when it is not running
+	 */
+	public ChangeListener getChangeListener(){
+		return _changes;
+	}
+
+	/**
+	 * Method to find the entity cache of a table.
+	 *
+	 * @param relation Ship, Captain, Technician, Customer or Cruise
+	 * @return the cache, or null for any other table
+	 */
+	public EntityCache<?> getEntityCache(String relation){
+		switch (relation){
+			case "Ship": return _ships;
+			case "Captain": return _captains;
+			case "Technician": return _technicians;
+			case "Customer": return _customers;
+			case "Cruise": return _cruises;
+			default: return null;
+		}
+	}
+
+	/**
+	 * @return one line of metrics per entity cache
+	 */
+	public String entityStats(){
+		return _ships.stats() + "\n" + _captains.stats() + "\n" + _technicians.stats() + "\n"
+			+ _customers.stats() + "\n" + _cruises.stats();
+	}
+
+	/**
+	 * Method to bind parameter values, in order, to a prepared statement.
+	 *
+	 * @param stmt the prepared statement
+	 * @param params the values for the ? placeholders
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+		stmt.clearParameters();
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject(i + 1, params[i]);
+	}//end bind
+
+	/**
+	 * Method to run a query on a borrowed connection through its statement
+	 * cache.  The caller closes the result set and releases the connection.
+	 *
+	 * @param conn the borrowed connection
+	 * @param sql the query string, with ? placeholders for parameters
+	 * @param params the values for the ? placeholders
+	 * @return the open result set
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	static ResultSet query (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		try{
+			PreparedStatement stmt = conn.prepare (sql);
+			bind (stmt, params);
+			ResultSet rs = stmt.executeQuery ();
+			Metrics.executed (sql, start, 0);
+			SlowQueryLog.observe (sql, params, start);
+			return rs;
+		}catch (SQLException e){
+			Metrics.failed (sql, e);
+			throw e;
+		}
+	}//end query
+
+	/**
+	 * @return the number of statement lookups answered from the cache
+	 */
+	public long getStatementCacheHits(){
+		return _pool.getStatementCacheHits();
+	}
+
+	/**
+	 * @return the number of statement lookups that had to prepare a new statement
+	 */
+	public long getStatementCacheMisses(){
+		return _pool.getStatementCacheMisses();
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for parameters
+	 * @param params the values for the ? placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection conn = _pool.borrow ();
+		long start = System.nanoTime ();
+		try{
+			// fetches the cached statement object
+			PreparedStatement stmt = conn.prepare (sql);
+			bind (stmt, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			int rowCount = stmt.executeUpdate ();
+			Metrics.executed (sql, start, rowCount);
+			SlowQueryLog.observe (sql, params, start);
+			wrote (conn);
+			return rowCount;
+		}catch (SQLException e){
+			Metrics.failed (sql, e);
+			throw e;
+		}finally{
+			_pool.release (conn);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to let the replica router route the next reads of the calling
+	 * thread's session so they see a write committed on conn.  Writers that
+	 * commit on a borrowed connection of their own call it after the commit.
+	 *
+	 * @param conn the primary connection the write was committed on
+	 */
+	void wrote (ConnectionPool.PooledConnection conn){
+		if (_router != null)
+			_router.wrote (conn);
+	}
+
+	/**
+	 * Method to record one commit on conn for the sessions of every request
+	 * it carried, e.g. a batch of queued bookings.
+	 *
+	 * @param conn the primary connection the write was committed on
+	 * @param sessions the sessions the requests were queued from
+	 */
+	void wrote (ConnectionPool.PooledConnection conn, Collection<ReplicaRouter.Session> sessions){
+		if (_router != null)
+			_router.wrote (conn, sessions);
+	}
+
+	/**
+	 * A read-only unit of work on one borrowed connection.
+	 */
+	private interface Read<T>{
+		T run (ConnectionPool.PooledConnection conn) throws SQLException;
+	}
+
+	/**
+	 * Method to run a read-only unit of work on a replica when replicas are
+	 * configured, or on the primary.  A read whose replica fails is run
+	 * again on the primary.
+	 *
+	 * @param work the statements to run
+	 * @return what the work returned
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	private <T> T read (Read<T> work) throws SQLException {
+		if (_router != null){
+			ConnectionPool.PooledConnection conn = _router.borrowRead ();
+			try{
+				return work.run (conn);
+			}catch (SQLException e){
+				if (!_router.failedOver (conn, e))
+					throw e;
+			}finally{
+				conn.getPool ().release (conn);
+			}
+		}
+		ConnectionPool.PooledConnection conn = _pool.borrow ();
+		try{
+			return work.run (conn);
+		}finally{
+			_pool.release (conn);
+		}
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out.  Rows are read through a server-side cursor FETCH_SIZE
+	 * at a time and printed through a buffered writer, so a result of any
+	 * size is printed in constant memory.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values for the ? placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return read (conn -> {
+			try (ResultSet rs = openCursor (conn, query, FETCH_SIZE, params)){
+				int rowCount = printResult (rs);
+				Metrics.fetched (query, rowCount, FETCH_SIZE);
+				return rowCount;
+			}
+		});
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * hand every row to a callback as it arrives.  Rows are read through a
+	 * server-side cursor (autocommit off plus a fetch size), so only
+	 * fetchSize rows are held in memory at a time.  The callback reads the
+	 * columns with the typed ResultSet getters.
+	 *
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler the callback invoked once per row
+	 * @param params the values for the ? placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long streamQuery (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection conn = _pool.borrow ();
+		try (ResultSet rs = openCursor (conn, query, fetchSize, params)){
+			long rowCount = 0;
+			while (rs.next ()){
+				handler.row (rs);
+				++rowCount;
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			Metrics.fetched (query, rowCount, fetchSize);
+			return rowCount;
+		}finally{
+			// releasing the connection ends the read-only transaction
+			_pool.release (conn);
+		}
+	}//end streamQuery
+
+	//the driver only uses a cursor inside a transaction, so autocommit is
+	//switched off here; ConnectionPool.release() rolls back and restores it
+	private static ResultSet openCursor (ConnectionPool.PooledConnection conn, String query, int fetchSize, Object... params) throws SQLException {
+		conn.getConnection ().setAutoCommit (false);
+		long start = System.nanoTime ();
+		try{
+			PreparedStatement stmt = conn.prepare (query);
+			bind (stmt, params);
+			stmt.setFetchSize (fetchSize);
+			ResultSet rs = stmt.executeQuery ();
+			Metrics.executed (query, start, 0);
+			SlowQueryLog.observe (query, params, start);
+			return rs;
+		}catch (SQLException e){
+			Metrics.failed (query, e);
+			throw e;
+		}
 	}
+
+	/**
+	 * Method to print a result set to standard out, a header line followed
+	 * by one line per row, in the output.format layout (tsv by default).
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	static int printResult (ResultSet rs) throws SQLException {
+		// prompts written with System.out must appear before the rows
+		System.out.flush ();
+		synchronized (out){
+			out.flush ();
+			long before = renderer.getWritten ();
+			try{
+				int rowCount = renderer.render (rs);
+				Metrics.printed (renderer.getWritten () - before);
+				return rowCount;
+			}catch (IOException e){
+				throw new SQLException ("Could not write the result: " + e.getMessage (), e);
+			}
+		}
+	}//end printResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * The whole result is held in memory; use streamQuery for large results.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values for the ? placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		return read (conn -> {
+			//issues the query instruction through the cached statement; the result set is closed even if reading fails
+			try (ResultSet rs = query (conn, query, params)){
+				/*
+				 * obtains the metadata object for the returned result set.  The metadata 
+				 * contains row and column info. 
+				*/ 
+				ResultSetMetaData rsmd = rs.getMetaData (); 
+				int numCol = rsmd.getColumnCount (); 
+			 
+				//iterates through the result set and saves the data returned by the query. 
+				List<List<String>> result  = new ArrayList<List<String>>(); 
+				while (rs.next()){
+					List<String> record = new ArrayList<String>(); 
+					for (int i=1; i<=numCol; ++i) 
+						record.add(rs.getString (i)); 
+					result.add(record); 
+				}//end while 
+				Metrics.fetched (query, result.size (), 0);
+				return result; 
+			}
+		});
 	}//end executeQueryAndReturnResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
+	 * method issues the query to the DBMS, outputs the results to standard
+	 * out and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for parameters
+	 * @param params the values for the ? placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-  
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-  
-		/*
-		 ** obtains the metadata object for the returned result set.  The metadata
-		 ** contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-  
-		// iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-	   if(outputHeader){
-		  for(int i = 1; i <= numCol; i++){
-		  System.out.print(rsmd.getColumnName(i) + "\t");
-		  }
-		  System.out.println();
-		  outputHeader = false;
-	   }
-		   for (int i=1; i<=numCol; ++i)
-			  System.out.print (rs.getString (i) + "\t");
-		   System.out.println ();
-		   ++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQuery (String query, Object... params) throws SQLException {
+		return read (conn -> {
+			// issues the query instruction through the cached statement; the result set is closed even if reading fails
+			try (ResultSet rs = query (conn, query, params)){
+				int rowCount = printResult (rs);
+				Metrics.fetched (query, rowCount, 0);
+				return rowCount;
+			}
+		});
 	 }//end executeQuery
 	
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to add a ship and drop any cached copy of its id.
+	 *
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public int addShip (int id, String make, String model, int age, int seats) throws SQLException {
+		int rowCount = executeUpdate (ADD_SHIP_SQL, id, make, model, age, seats);
+		added ("Ship", id);
+		return rowCount;
+	}
+
+	/**
+	 * Method to add a captain and drop any cached copy of its id.
+	 *
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addCaptain (int id, String fullname, String nationality) throws SQLException {
+		int rowCount = executeUpdate (ADD_CAPTAIN_SQL, id, fullname, nationality);
+		added ("Captain", id);
+		return rowCount;
+	}
+
+	/**
+	 * Method to add a cruise and drop its cached seats and record.
+	 *
+	 * @param departure the departure date as DD/MM/YYYY
+	 * @param arrival the arrival date as DD/MM/YYYY
+	 * @return the number of rows inserted
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addCruise (int cnum, int cost, int numSold, int numStops, String departure, String arrival,
+			String arrivalPort, String departurePort) throws SQLException {
+		int rowCount = executeUpdate (ADD_CRUISE_SQL, cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort);
+		added ("Cruise", cnum);
+		return rowCount;
+	}
+
+	/**
+	 * Method to drop what the caches hold about rows just added to Ship,
+	 * Captain or Cruise, e.g. a cached "does not exist", and to read new
+	 * cruises into the search index.
+	 *
+	 * @param table Ship, Captain or Cruise
+	 * @param ids the primary keys added
+	 * @throws java.sql.SQLException when the new cruises cannot be read
+	 */
+	void added (String table, int... ids) throws SQLException {
+		EntityCache<?> cache = getEntityCache (table);
+		for (int id : ids)
+			cache.invalidate (id);
+		if (table.equals ("Cruise")){
+			for (int cnum : ids)
+				_seats.invalidate (cnum);
+			if (_search != null)
+				_search.refresh (this, ids);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to delete a ship or captain by id and drop what the caches
+	 * hold about it.
+	 *
+	 * @param table Ship or Captain
+	 * @param id the primary key
+	 * @return the number of rows deleted
+	 * @throws java.sql.SQLException when the delete failed
+	 */
+	public int deleteRecord (String table, int id) throws SQLException {
+		if (!table.equals ("Ship") && !table.equals ("Captain"))
+			throw new IllegalArgumentException ("Records can only be deleted from Ship or Captain, not " + table);
+		//table is one of the two names checked above, only the key is user data
+		int rowCount = executeUpdate ("DELETE FROM " + table + " WHERE id = ?", id);
+		//removing a ship changes the seats of every cruise it served
+		if (table.equals ("Ship"))
+			_seats.invalidateAll ();
+		getEntityCache (table).invalidate (id);
+		return rowCount;
+	}
+
+	/**
+	 * Method to book a cruise for a customer.  The book_cruise function
+	 * applies the W/R/C rules, takes a seat with a conditional update of
+	 * Cruise.num_sold and assigns rnum from reservation_rnum_seq, all in one
+	 * transaction and one round trip.
+	 *
+	 * @param ccid the customer id
+	 * @param cnum the cruise number
+	 * @return the outcome, or null when the customer or cruise does not exist
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	public Booking bookCruise (int ccid, int cnum) throws SQLException {
+		long since = _seats.version ();
+		ConnectionPool.PooledConnection conn = _pool.borrow ();
+		try (ResultSet rs = query (conn, "SELECT o_rnum, o_previous, o_status, o_available FROM book_cruise(?, ?)", ccid, cnum)){
+			rs.next ();
+			String status = rs.getString (3);
+			if (status == null)
+				return null;
+			String previous = rs.getString (2);
+			int available = rs.getInt (4);
+			if (rs.wasNull ())
+				available = SeatCache.NO_SHIP;
+			//the function has committed by now, so the new count can be written through
+			seatsChanged (cnum, available, since);
+			Booking booking = new Booking (ccid, cnum, rs.getInt (1),
+				previous == null ? Booking.NONE : previous.charAt (0), status.charAt (0), available);
+			wrote (conn);
+			if (_reservations != null)
+				_reservations.apply (booking);
+			return booking;
+		}finally{
+			_pool.release (conn);
+		}
+	}//end bookCruise
+
+	/**
+	 * Method to find the number of available seats on a cruise, i.e. the
+	 * ship's seats minus Cruise.num_sold.  In cached mode the answer comes
+	 * from the seat cache when it holds a fresh entry; otherwise the
+	 * database is read and the cache refreshed.  That read goes to the
+	 * primary even when replicas are configured: a lagging replica's count
+	 * would be kept in the cache after it had caught up.
+	 *
+	 * @param cnum the cruise number
+	 * @return the available seats, or SeatCache.NO_SHIP when the cruise has
+	 *         no ship (or does not exist)
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int availableSeats (int cnum) throws SQLException {
+		int seats = _seats.get (cnum);
+		if (seats != SeatCache.MISSING)
+			return seats;
+		long since = _seats.version ();
+		ConnectionPool.PooledConnection conn = _pool.borrow ();
+		try (ResultSet rs = query (conn, AVAILABLE_SEATS_SQL, cnum)){
+			seats = rs.next () ? rs.getInt (1) : SeatCache.NO_SHIP;
+		}finally{
+			_pool.release (conn);
+		}
+		seatsChanged (cnum, seats, since);
+		return seats;
+	}//end availableSeats
+
+	/**
+	 * Method to load the available seats of every cruise into the seat cache
+	 * with a single streamed query.
+	 *
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public void warmSeatCache () throws SQLException {
+		long since = _seats.version ();
+		streamQuery ("SELECT C.cnum, S.seats - C.num_sold FROM Ship S, CruiseInfo CI, Cruise C WHERE C.cnum = CI.cruise_id AND S.id = CI.ship_id",
+			10000, rs -> _seats.put (rs.getInt (1), rs.getInt (2), since));
+	}//end warmSeatCache
+
+	/**
+	 * Method to drop and reload everything the client caches, e.g. after the
+	 * tables were truncated and reloaded behind its back: the entity caches,
+	 * the seat cache, the reservation index and the search index.
+	 *
+	 * @throws java.sql.SQLException when failed to reload a cache
+	 */
+	public void reloadCaches () throws SQLException {
+		_ships.invalidateAll ();
+		_captains.invalidateAll ();
+		_technicians.invalidateAll ();
+		_customers.invalidateAll ();
+		_cruises.invalidateAll ();
+		_seats.invalidateAll ();
+		if (_seats.getMode () == SeatCache.Mode.CACHED)
+			warmSeatCache ();
+		if (_reservations != null)
+			_reservations.reload (this);
+		if (_search != null)
+			_search.reload (this);
+	}//end reloadCaches
+
+	/**
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		SlowQueryLog.close ();
+		if (this._promoter != null)
+			this._promoter.close ();
+		if (this._changes != null)
+			this._changes.close ();
+		if (this._router != null)
+			this._router.close ();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -232,12 +763,16 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3 || (args.length > 3 && !args[3].equals("--script"))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--script <file|-> [csv|json] [window]]");
 			return;
 		}//end if
+		if (args.length > 3){
+			runScript(args);
+			return;
+		}
 		
 		DBproject esql = null;
 		
@@ -273,19 +808,28 @@ public class DBproject{
 				System.out.println("7. Find total number of passengers with a given status");
 				System.out.println("8. Delete Record from Table");
                                 System.out.println("9. Print Reservations");
-                                System.out.println("10. < EXIT");
+                                System.out.println("10. Search Cruises");
+                                System.out.println("11. < EXIT");
 				
-				switch (readChoice()){
-					case 1: AddShip(esql); break;
-					case 2: AddCaptain(esql); break;
-					case 3: AddCruise(esql); break;
-					case 4: BookCruise(esql); break;
-					case 5: ListNumberOfAvailableSeats(esql); break;
-					case 6: ListsTotalNumberOfRepairsPerShip(esql); break;
-					case 7: FindPassengersCountWithStatus(esql); break;
-					case 8: Delete(esql); break;
-                                        case 9: Print(esql); break;
-                                        case 10: keepon = false; break;
+				int choice = readChoice();
+				//times the whole menu operation, prompts included, and counts its round trips
+				Metrics.begin(choice >= 1 && choice <= MENU_OPERATIONS.length ? MENU_OPERATIONS[choice - 1] : "Other");
+				try{
+					switch (choice){
+						case 1: AddShip(esql); break;
+						case 2: AddCaptain(esql); break;
+						case 3: AddCruise(esql); break;
+						case 4: BookCruise(esql); break;
+						case 5: ListNumberOfAvailableSeats(esql); break;
+						case 6: ListsTotalNumberOfRepairsPerShip(esql); break;
+						case 7: FindPassengersCountWithStatus(esql); break;
+						case 8: Delete(esql); break;
+						case 9: Print(esql); break;
+						case 10: SearchCruises(esql); break;
+						case 11: keepon = false; break;
+					}
+				}finally{
+					Metrics.end();
 				}
 			}
 		}catch(Exception e){
@@ -293,6 +837,22 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.print(Metrics.dump());
+					if(SlowQueryLog.isEnabled())
+						System.out.print(SlowQueryLog.report(10));
+					System.out.println(esql.getPool().stats());
+					System.out.println(esql.getSeatCache().stats());
+					System.out.println(esql.entityStats());
+					if(esql.getReservationIndex() != null)
+						System.out.println(esql.getReservationIndex().stats());
+					if(esql.getSearchIndex() != null)
+						System.out.println(esql.getSearchIndex().stats());
+					if(esql.getWaitlistPromoter() != null)
+						System.out.println(esql.getWaitlistPromoter().stats());
+					if(esql.getChangeListener() != null)
+						System.out.println(esql.getChangeListener().stats());
+					if(esql.getReplicaRouter() != null)
+						System.out.println(esql.getReplicaRouter().stats());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -303,6 +863,52 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Runs commands from a file, or standard in for -, without the menu.
+	 * Results go to standard out; everything else goes to standard error.
+	 *
+	 * @param args <dbname> <port> <user> --script <file|-> [csv|json] [window]
+	 */
+	static void runScript(String[] args) {
+		if (args.length < 5) {
+			System.err.println("--script needs a command file, or - for standard in");
+			return;
+		}
+		// keeps connection messages and stats off the result stream
+		System.setOut(System.err);
+		ScriptRunner.Format format = args.length > 5 && args[5].equalsIgnoreCase("csv") ? ScriptRunner.Format.CSV : ScriptRunner.Format.JSON;
+		int window = args.length > 6 ? Integer.parseInt(args[6]) : 8;
+		DBproject esql = null;
+		long failed = 0;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject (args[0], args[1], args[2], "");
+			BufferedReader commands = args[4].equals("-") ? in : new BufferedReader(new FileReader(args[4]), 1 << 16);
+			try{
+				failed = new ScriptRunner(esql, format, window, out).run(commands);
+			}finally{
+				commands.close();
+			}
+			System.err.println(esql.getPool().stats());
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+			failed = 1;
+		}finally{
+			if(esql != null)
+				esql.cleanup ();
+		}
+		if (failed > 0)
+			System.exit(1);
+	}
+
+	//the DD/MM/YYYY dates the prompts take
+	private static final DateTimeFormatter DAY_MONTH_YEAR = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+	//metric names of menu choices 1-10
+	private static final String[] MENU_OPERATIONS = {"AddShip", "AddCaptain", "AddCruise", "BookCruise",
+		"ListNumberOfAvailableSeats", "ListsTotalNumberOfRepairsPerShip", "FindPassengersCountWithStatus", "Delete", "Print",
+		"SearchCruises"};
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -331,8 +937,8 @@ public static void Delete(DBproject esql){
                 }
                 System.out.println("Enter primary key");
                 String id = validateInteger(in.readLine(), 0,Integer.MAX_VALUE);
-                String query = "DELETE FROM " + table + " WHERE id = " +id;
-                int rowCount = esql.executeQuery(query);
+                int rowCount = esql.deleteRecord(table, Integer.parseInt(id));
+                System.out.println("total row(s):" + rowCount);
                 }
 
                 catch(Exception e) {
@@ -342,15 +948,16 @@ public static void Delete(DBproject esql){
 public static void Print(DBproject esql){
         try{
         System.out.println("Please enter your First Name ");
-        String first = "\'"+in.readLine() + "\'";//validateString(in.readLine(),1,32);
+        String first = in.readLine();//validateString(in.readLine(),1,32);
         System.out.println("Please enter your Last Name ");
-        String last = "\'"+in.readLine() + "\'";//validateString(in.readLine(),1,32);
+        String last = in.readLine();//validateString(in.readLine(),1,32);
 
                 //System.out.println("Enter primary key");
                 //String id = validateInteger(in.readLine(), 0,Integer.MAX_VALUE);
-                String query = "SELECT * FROM Reservation, Customer C WHERE ccid = C.id AND C.fname = " + first + " AND C.lname = " + last;
+                String query = RESERVATIONS_BY_NAME_SQL;
 
-                int rowCount = esql.executeQuery(query);
+                //streamed, so a customer with many reservations is printed in constant memory
+                int rowCount = esql.executeQueryAndPrintResult(query, first, last);
         }
         catch(Exception e) {
         System.err.println(e.getMessage());
@@ -362,27 +969,25 @@ public static void Print(DBproject esql){
 	//3. model and make are both strings (with less <= 32 and 64 respectively)
 	public static void AddShip(DBproject esql) {//1
 		try{
-			String query = "INSERT INTO Ship VALUES(";
 			System.out.println("Input Ship ID:");
-			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE) + ",";
-			while(checkIDExists(input.substring(0,input.length()-1), "Ship", esql)){
+			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE);
+			while(checkIDExists(input, "Ship", esql)){
 				System.out.println("Please enter an non-existing Ship ID or enter q to quit: ");
 				input = in.readLine();
 				if(input.equals("q"))
 					return;
-                                input = validateInteger(input,0,Integer.MAX_VALUE) + ",";
+                                input = validateInteger(input,0,Integer.MAX_VALUE);
 			}
+			int id = Integer.parseInt(input);
 			System.out.println("Input Ship make:");
-			input+= "\'" + validateString(in.readLine(),1,32) + "\',";
+			String make = validateString(in.readLine(),1,32);
 			System.out.println("Input Ship model:");
-			input+= "\'" + validateString(in.readLine(),1,64) + "\',";
+			String model = validateString(in.readLine(),1,64);
 			System.out.println("Input Ship age:");
-			input+= validateInteger(in.readLine(),0,500) + ",";
+			int age = Integer.parseInt(validateInteger(in.readLine(),0,500));
 			System.out.println("Input Number of seats:");
-			input+= validateInteger(in.readLine(),0,500) + ")";
-			query+= input; 
-			System.out.println(query);
-			int rowCount = esql.executeQuery(query);
+			int seats = Integer.parseInt(validateInteger(in.readLine(),0,500));
+			int rowCount = esql.addShip(id, make, model, age, seats);
 			System.out.println("total row(s):" + rowCount);
 		 }catch(Exception e){
 			System.err.println(e.getMessage());
@@ -391,23 +996,21 @@ public static void Print(DBproject esql){
 
 	public static void AddCaptain(DBproject esql) {//2
 		try {
-			String query = "INSERT INTO Captain VALUES(";
 			System.out.println("Input Captain ID:");
-			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE) + ",";
-			while(checkIDExists(input.substring(0,input.length()-1), "Captain",esql)){
+			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE);
+			while(checkIDExists(input, "Captain",esql)){
 				System.out.println("Please enter an non-existing Captain ID or enter q to quit: ");
                                 input = in.readLine();
 				if(input.equals("q"))
                                         return;
-                                input = validateInteger(input,0,Integer.MAX_VALUE) + ",";
+                                input = validateInteger(input,0,Integer.MAX_VALUE);
 			}
+			int id = Integer.parseInt(input);
 			System.out.println("Input Captain Full Name:");
-			input+= "\'" + validateString(in.readLine(),1,128) + "\',";
+			String fullname = validateString(in.readLine(),1,128);
 			System.out.println("Input Captain nationality:");
-			input+= "\'" + validateString(in.readLine(),1,24) + "\')";
-			query+= input; 
-			System.out.println(query);
-			int rowCount = esql.executeQuery(query);
+			String nationality = validateString(in.readLine(),1,24);
+			int rowCount = esql.addCaptain(id, fullname, nationality);
 			System.out.println("total row(s):" + rowCount);
 		}
 		catch(Exception e){
@@ -417,33 +1020,31 @@ public static void Print(DBproject esql){
 
 	public static void AddCruise(DBproject esql) {//3
 		try {
-			String query = "INSERT INTO Cruise VALUES(";
 			System.out.println("Input Cruise number:");
-			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE) + ",";
-			while(checkIDExists(input.substring(0,input.length()-1), "Cruise",esql)){
+			String input = validateInteger(in.readLine(),0,Integer.MAX_VALUE);
+			while(checkIDExists(input, "Cruise",esql)){
 				System.out.println("Please enter an non-existing Cruise ID or enter q to quit: ");
                                 input = in.readLine();
                                 if(input.equals("q"))
                                         return;
-                                input = validateInteger(input,0,Integer.MAX_VALUE) + ",";
+                                input = validateInteger(input,0,Integer.MAX_VALUE);
 			}
+			int cnum = Integer.parseInt(input);
 			System.out.println("Input Cruise ticket cost:");
-			input+= validateInteger(in.readLine(),1,Integer.MAX_VALUE) + ",";
+			int cost = Integer.parseInt(validateInteger(in.readLine(),1,Integer.MAX_VALUE));
 			System.out.println("Input Cruise number of tickets sold:");
-			input+= validateInteger(in.readLine(),0,Integer.MAX_VALUE) + ",";
+			int num_sold = Integer.parseInt(validateInteger(in.readLine(),0,Integer.MAX_VALUE));
 			System.out.println("Input Cruise number of stops:");
-			input+= validateInteger(in.readLine(),0,Integer.MAX_VALUE) + ",";
+			int num_stops = Integer.parseInt(validateInteger(in.readLine(),0,Integer.MAX_VALUE));
 			System.out.println("Input Cruise actual_departure_date as DD/MM/YYYY:");
-			input+= "TO_DATE(" + "\'" + validateDate(in.readLine()) + "\', \'DD/MM/YYYY\'),";
+			String departure = validateDate(in.readLine());
 			System.out.println("Input Cruise actual_arrival_date as DD/MM/YYYY:");
-			input+= "TO_DATE(" + "\'" + validateDate(in.readLine()) + "\', \'DD/MM/YYYY\'),";
+			String arrival = validateDate(in.readLine());
 			System.out.println("Input Cruise arrival_port:");
-			input+= "\'" + validateString(in.readLine(),1,5) + "\',";
+			String arrival_port = validateString(in.readLine(),1,5);
 			System.out.println("Input Cruise departure_port:");
-			input+= "\'" + validateString(in.readLine(),1,5) + "\')";
-			query+= input; 
-			System.out.println(query);
-			int rowCount = esql.executeQuery(query);
+			String departure_port = validateString(in.readLine(),1,5);
+			int rowCount = esql.addCruise(cnum, cost, num_sold, num_stops, departure, arrival, arrival_port, departure_port);
 			System.out.println("total row(s):" + rowCount);
 		}
 		catch(Exception e){
@@ -452,7 +1053,6 @@ public static void Print(DBproject esql){
 	}
 
 
-	public static int max_rows[] = {9999};
 	public static void BookCruise(DBproject esql) {//4
 		// Given a customer and a Cruise that he/she wants to book, add a reservation to the DB
         	try {
@@ -478,45 +1078,17 @@ public static void Print(DBproject esql){
 				cruise_id = validateInteger(cruise_id,0,Integer.MAX_VALUE);
 			}
 
-			String available_seats = "SELECT S.seats - C.num_sold AS Num_available FROM Ship S, CruiseInfo CI, Cruise C WHERE C.cnum = " + cruise_id + " AND C.cnum = CI.cruise_id AND S.id = CI.ship_id ";
-			//Determine status of reservation (W/R/C)
-			String query = "SELECT status FROM Reservation WHERE cid = " + cruise_id + " AND ccid = " + cust_id;
-			//Update Reserved to Confirmed
-			String query2 = "UPDATE Reservation SET status = CASE WHEN status = 'R' THEN 'C' WHEN status = 'W' THEN 'R' ELSE status END WHERE ccid = "+ cust_id+ "AND cid= " + cruise_id;
-			
-			if(esql.executeQuery(available_seats)<1){
-			System.out.println("Sorry, there are no available seats.");
-			query2 = "UPDATE Reservation SET status = CASE WHEN status = 'R' THEN 'C' ELSE status END WHERE ccid = " + cust_id + "AND cid= " +cruise_id;
+			//the W/R/C transition, seat count and insert all happen in one transaction
+			Booking booking = esql.bookCruise(Integer.parseInt(cust_id), Integer.parseInt(cruise_id));
+			if(booking == null){
+				System.out.println("Customer or Cruise no longer exists.");
+				return;
 			}
-
-							
-			//create if customer's reservation doesnt exist
-			if(!checkReservation(cust_id, cruise_id, esql)){
+			if(booking.isNew())
 				System.out.println("Thank you for booking");
-			
-				int insert_row;
-				//adds to database if doesnt exist
-				if(esql.executeQuery(available_seats)>0){
-					max_rows[0] += 1;
-					String query4 = "INSERT INTO Reservation VALUES ("+ max_rows[0] + "," +cust_id + "," + cruise_id + ", 'R')";
-					insert_row = esql.executeQuery(query4);
-					//update #tickets sold in cruises
-					String query6 = "Update Cruise SET num_sold = num_sold + 1 WHERE cnum = " +cruise_id;
-					int update = esql.executeQuery(query6);
-				}
-				if(esql.executeQuery(available_seats)<=0){
-					max_rows[0] += 1;
-					String query4 = "INSERT INTO Reservation VALUES ("+ max_rows[0] + "," +cust_id + "," + cruise_id + ", 'W')";
-					insert_row = esql.executeQuery(query4);
-				}
-				int check = esql.executeQuery(query);
-
-			}
-			else{
-				
-				int rowCount = esql.executeQuery(query) + esql.executeQuery(query2);//+esql.executeQuery(query3);
-			}
-	
+			if(booking.status == 'W')
+				System.out.println("Sorry, there are no available seats.");
+			System.out.println("Reservation " + booking.rnum + " status: " + booking.status);
         	}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -527,7 +1099,6 @@ public static void Print(DBproject esql){
 	public static void ListNumberOfAvailableSeats(DBproject esql) {//5
 		// For Cruise number and date, find the number of availalbe seats (i.e. total Ship capacity minus booked seats )
 		try{
-			String query = ""; //gives #seats available on cruise
 
 			System.out.println("Input Cruise Number");
 			String cruise_num = validateInteger(in.readLine(),0,Integer.MAX_VALUE);
@@ -540,9 +1111,14 @@ public static void Print(DBproject esql){
 			}
 			//System.out.println("Input Cruise Departure Date as YYYY-MM-DD");
 			//String date = "\'" + validateDate(in.readLine()) + "\'";
-			query += "SELECT S.seats - C.num_sold AS Num_available FROM Ship S, CruiseInfo CI, Cruise C WHERE C.cnum = " + cruise_num + 
-					" AND C.cnum = CI.cruise_id AND S.id = CI.ship_id";			
-			int rowCount = esql.executeQuery(query);
+			//served from the seat cache when it has a fresh entry for the cruise
+			int seats = esql.availableSeats(Integer.parseInt(cruise_num));
+			int rowCount = 0;
+			if(seats != SeatCache.NO_SHIP){
+				System.out.println("num_available\t");
+				System.out.println(seats + "\t");
+				rowCount = 1;
+			}
 			System.out.println("total row(s):" + rowCount);
 		}
 		catch(Exception e){
@@ -554,7 +1130,7 @@ public static void Print(DBproject esql){
 	public static void ListsTotalNumberOfRepairsPerShip(DBproject esql) {//6
 		// Count number of repairs per Ships and list them in descending order
 		try{
-			String query = "SELECT ship_id ,COUNT(rid) AS Total_Repairs FROM Repairs GROUP BY ship_id ORDER BY Total_Repairs DESC";
+			String query = REPAIRS_PER_SHIP_SQL;
 			int rowCount = esql.executeQuery(query);
         	        System.out.println("total row(s):" + rowCount);
 		}
@@ -567,7 +1143,7 @@ public static void Print(DBproject esql){
 	public static void FindPassengersCountWithStatus(DBproject esql) {//7
 		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
 		try{
-			String query = "SELECT status, COUNT(ccid) AS Total FROM Reservation WHERE STATUS = " ;
+			String query = PASSENGERS_WITH_STATUS_SQL;
 			System.out.println("Which status (W,C,R) do you want to check?: ");
 			String input = in.readLine();
 
@@ -578,9 +1154,7 @@ public static void Print(DBproject esql){
 				System.out.println();
 			}
 
-			query += "\'" + input + "\'";
-			query += " GROUP BY status ORDER BY Total DESC";
-			int rowCount = esql.executeQuery(query);
+			int rowCount = esql.executeQuery(query, input);
         	System.out.println("total row(s):" + rowCount);
 		}
 		catch(Exception e){
@@ -590,6 +1164,49 @@ public static void Print(DBproject esql){
 
 	//additional methods added
 
+	public static void SearchCruises(DBproject esql) {//10
+		// Find cruises on a route departing within a date window with enough free seats, 10 per page
+		try{
+			CruiseSearchIndex index = esql.getSearchIndex();
+			if(index == null){
+				System.out.println("Cruise search needs the search index (search.index=true)");
+				return;
+			}
+			System.out.println("Input departure_port:");
+			String from = validateString(in.readLine(),1,5);
+			System.out.println("Input arrival_port:");
+			String to = validateString(in.readLine(),1,5);
+			System.out.println("Input earliest departure date as DD/MM/YYYY:");
+			LocalDate earliest = LocalDate.parse(validateDate(in.readLine()), DAY_MONTH_YEAR);
+			System.out.println("Input latest departure date as DD/MM/YYYY:");
+			LocalDate latest = LocalDate.parse(validateDate(in.readLine()), DAY_MONTH_YEAR);
+			System.out.println("Input minimum number of available seats:");
+			int seats = Integer.parseInt(validateInteger(in.readLine(),0,Integer.MAX_VALUE));
+
+			long after = CruiseSearchIndex.FIRST;
+			int rowCount = 0;
+			while(true){
+				CruiseSearchIndex.Page page = index.search(from, to, earliest, latest, seats, after, 10);
+				if(rowCount == 0 && !page.hits.isEmpty())
+					System.out.println("cnum\tdeparture\tscheduled\tnum_available\t");
+				for(CruiseSearchIndex.Hit hit : page.hits)
+					System.out.println(hit.cnum + "\t" + hit.departure.format(DAY_MONTH_YEAR) + "\t" +
+						(hit.scheduled == null ? "" : hit.scheduled.format(DAY_MONTH_YEAR)) + "\t" + hit.available + "\t");
+				rowCount += page.hits.size();
+				if(page.next == CruiseSearchIndex.FIRST)
+					break;
+				System.out.println("Enter n for the next page, anything else to stop:");
+				if(!"n".equals(in.readLine()))
+					break;
+				after = page.next;
+			}
+			System.out.println("total row(s):" + rowCount);
+		}
+		catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
 	public static String validateString(String value, int min, int max){
 		String toReturn = value;
 		while(toReturn.length() < min || toReturn.length() > max){
@@ -630,18 +1247,26 @@ public static void Print(DBproject esql){
 		return true;
 	}
 
-	//to check if an ID already exists
+	//to check if an ID already exists; the cached tables are answered from memory
 	public static boolean checkIDExists(String value, String relation, DBproject esql){
+			EntityCache<?> cache = esql.getEntityCache(relation);
+			if(cache != null){
+				try{
+					return cache.exists(Integer.parseInt(value));
+				}
+				catch(Exception e){
+					System.err.println(e.getMessage());
+					return false;
+				}
+			}
 			String query;
 			int rowCount = 0; 
-			if(relation.equals("Cruise"))
-				query = "SELECT * FROM Cruise WHERE cnum = " + value;
-			else if(relation.equals("Reservation"))
-				query = "SELECT * FROM Reservation WHERE cid = " + value;
+			if(relation.equals("Reservation"))
+				query = "SELECT * FROM Reservation WHERE cid = ?";
 			else
-				query = "SELECT * FROM " + relation + " WHERE id = " + value;
+				query = "SELECT * FROM " + relation + " WHERE id = ?";
 			try{
-				rowCount = esql.executeQuery(query);
+				rowCount = esql.executeQuery(query, Integer.parseInt(value));
 			}
 			catch(Exception e){
 				System.err.println(e.getMessage());
@@ -650,22 +1275,6 @@ public static void Print(DBproject esql){
 					return true;
 			return false;
 	}
-	public static boolean checkReservation(String id, String cnum, DBproject esql) {
-		String query;
-		int rowCount = 0;
-		query = "SELECT * FROM Reservation WHERE ccid = " + id + " AND cid = " + cnum;
-		try{
-			rowCount = esql.executeQuery(query);
-		}
-		catch(Exception e){
-			System.err.println(e.getMessage());
-		}
-		if(rowCount >0){
-			return true;
-		}
-		return false;
-	}
-
 	public static String validateDate(String value){
 		String toReturn = value;
 		while(!isValidDate("dd/MM/yyyy",toReturn)){
@@ -690,7 +1299,7 @@ public static void Print(DBproject esql){
                 date = null;
             }
         } catch (ParseException ex) {
-            ex.printStackTrace();
+            // not a date in this format
         }
         return date != null;
     }
@@ -0,0 +1,408 @@
+/*
+ * Synthetic cruise data generator
+ * ===============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates the nine tables of create.sql at any scale factor.
+ * Scale factor 1 matches the size of code/data (250 customers, 67 ships,
+ * 2000 cruises, about 9k reservations); scale factor 120 gives about 1M
+ * reservations.
+ *
+ * Every value is a pure function of the seed, the table and the row id
+ * (a SplitMix64 hash), so the output is identical no matter how many
+ * threads produce it or in which order, and no table is kept in memory:
+ * a cruise's num_sold is recomputed from the same hash that later decides
+ * how many reservations it gets.  Values respect the domains in create.sql
+ * (_STATUS, _CODE, _SEATS, _GENDER, us_postal_code) and every foreign key
+ * points at a generated row.  Cruise popularity follows a Pareto
+ * distribution, so a few cruises are booked far beyond their ship's
+ * seats and get waitlisted reservations while most have a handful.
+ *
+ */
+
+public class DataGenerator{
+	private static final String[] FIRST = { "Armand", "Alberto", "Wyatt", "Maria", "Chen", "Aisha", "Olga", "Kenji",
+		"Fatima", "Lucas", "Ingrid", "Ravi", "Sofia", "Tomas", "Yara", "Diego" };
+	private static final String[] LAST = { "Enderle", "Scarlett", "Ruoff", "Garcia", "Wang", "Okafor", "Ivanova", "Sato",
+		"Haddad", "Silva", "Larsen", "Patel", "Rossi", "Novak", "Costa", "Moreno" };
+	private static final String[] STREET = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Harbor Road",
+		"Ocean Blvd.", "Pier Lane", "Lighthouse Way", "Anchor Court" };
+	private static final String[] MAKE = { "Carnival", "Royal", "Norwegian", "Princess", "Celebrity", "Holland", "Cunard" };
+	private static final String[] MODEL = { "Voyager", "Explorer", "Navigator", "Majesty", "Horizon", "Serenade", "Breeze" };
+	private static final String[] NATION = { "Australia", "Morocco", "India", "Norway", "Brazil", "Japan", "Greece", "Canada" };
+	private static final String[] STATUS_SEATED = { "R", "C" };
+	private static final String[] CODE = { "MJ", "MN", "SV" };
+
+	//table tags mixed into the hash so tables draw independent values
+	private static final int CUSTOMER = 1, SHIP = 2, CAPTAIN = 3, TECHNICIAN = 4, CRUISE = 5,
+		RESERVATION = 6, CRUISEINFO = 7, REPAIRS = 8, SCHEDULE = 9;
+
+	//first departure date as days since 1970-01-01 (2014-01-01) and the span of departures
+	private static final long FIRST_DAY = 16071;
+	private static final int DAY_SPAN = 365 * 16;
+	//Pareto shape and minimum of the reservations per cruise; after rounding
+	//down the mean is about 5, as in code/data
+	private static final double ALPHA = 1.5;
+	private static final double X_MIN = 11.0 / 6.0;
+
+	private final long seed;
+	final int customers, ships, captains, technicians, cruises, repairs, ports;
+
+	public DataGenerator(long seed, double scale){
+		this.seed = seed;
+		this.customers = count(250, scale);
+		this.ships = count(67, scale);
+		this.captains = count(250, scale);
+		this.technicians = count(250, scale);
+		this.cruises = count(2000, scale);
+		this.repairs = count(549, scale);
+		this.ports = Math.min(count(60, Math.sqrt(scale)), 26 * 26 * 26 * 26 * 26);
+	}
+
+	private static int count(int base, double scale){
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 4, Math.round(base * scale)));
+	}
+
+	//SplitMix64 finalizer over (seed, table, id, field)
+	private long hash(int table, long id, int field){
+		long z = seed + table * 0x9E3779B97F4A7C15L + id * 0xBF58476D1CE4E5B9L + field * 0x94D049BB133111EBL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private int uniform(int table, long id, int field, int bound){
+		return (int) Math.floorMod(hash(table, id, field), (long) bound);
+	}
+
+	private double unit(int table, long id, int field){
+		return (hash(table, id, field) >>> 11) * 0x1.0p-53;
+	}
+
+	private static String pick(String[] values, int index){
+		return values[index % values.length];
+	}
+
+	// -- values shared between tables --
+
+	int shipSeats(int ship){
+		// mostly large ships, a few small ones so popular cruises overflow
+		return 20 + uniform(SHIP, ship, 5, 480);
+	}
+
+	int cruiseShip(int cnum){
+		return uniform(CRUISEINFO, cnum, 3, ships);
+	}
+
+	int cruiseDepartureDay(int cnum){
+		return uniform(CRUISE, cnum, 4, DAY_SPAN);
+	}
+
+	int cruiseLength(int cnum){
+		return 1 + uniform(CRUISE, cnum, 5, 14);
+	}
+
+	//reservations a cruise receives; capped so every one has a distinct customer
+	int cruiseBookings(int cnum){
+		double u = 1.0 - unit(RESERVATION, cnum, 0);
+		double n = X_MIN / Math.pow(u, 1.0 / ALPHA);
+		int cap = Math.min(customers, 2 * shipSeats(cruiseShip(cnum)));
+		return (int) Math.min(cap, Math.floor(n));
+	}
+
+	int cruiseSold(int cnum){
+		return Math.min(cruiseBookings(cnum), shipSeats(cruiseShip(cnum)));
+	}
+
+	String port(int index){
+		char[] code = new char[5];
+		for (int i = 4; i >= 0; --i){
+			code[i] = (char) ('A' + index % 26);
+			index /= 26;
+		}
+		return new String(code);
+	}
+
+	private static void appendDate(StringBuilder row, long epochDay){
+		java.time.LocalDate d = java.time.LocalDate.ofEpochDay(epochDay);
+		row.append(d.getYear()).append('-');
+		if (d.getMonthValue() < 10) row.append('0');
+		row.append(d.getMonthValue()).append('-');
+		if (d.getDayOfMonth() < 10) row.append('0');
+		row.append(d.getDayOfMonth());
+	}
+
+	private static void appendTime(StringBuilder row, int minuteOfDay){
+		row.append(' ');
+		if (minuteOfDay / 60 < 10) row.append('0');
+		row.append(minuteOfDay / 60).append(':');
+		if (minuteOfDay % 60 < 10) row.append('0');
+		row.append(minuteOfDay % 60);
+	}
+
+	// -- row producers, one per table, in the column order of BulkLoader.TableSpec --
+
+	/**
+	 * Method to create the row producer of a table.
+	 *
+	 * @param table the table name as in create.sql
+	 * @return a producer that streams the table's rows in id order
+	 */
+	public BulkLoader.RowWriter rows(String table){
+		if (table.equals("Customer")) return counted(customers, this::customer);
+		if (table.equals("Ship")) return counted(ships, this::ship);
+		if (table.equals("Captain")) return counted(captains, this::captain);
+		if (table.equals("Technician")) return counted(technicians, this::technician);
+		if (table.equals("Cruise")) return counted(cruises, this::cruise);
+		if (table.equals("CruiseInfo")) return counted(cruises, this::cruiseInfo);
+		if (table.equals("Schedule")) return counted(cruises, this::schedule);
+		if (table.equals("Repairs")) return counted(repairs, this::repair);
+		if (table.equals("Reservation")) return new Reservations();
+		throw new IllegalArgumentException("Unknown table " + table);
+	}
+
+	private interface RowFormat{
+		void format(int id, StringBuilder row);
+	}
+
+	private static BulkLoader.RowWriter counted(int rows, RowFormat format){
+		return new BulkLoader.RowWriter(){
+			private int next = 0;
+
+			public boolean next(StringBuilder row){
+				if (next >= rows)
+					return false;
+				format.format(next++, row);
+				return true;
+			}
+		};
+	}
+
+	private void customer(int id, StringBuilder row){
+		row.append(id).append(',')
+			.append(pick(FIRST, uniform(CUSTOMER, id, 1, 1 << 20))).append(',')
+			.append(pick(LAST, uniform(CUSTOMER, id, 2, 1 << 20))).append(id).append(',')
+			.append(uniform(CUSTOMER, id, 3, 2) == 0 ? 'F' : 'M').append(',')
+			.append(1 + uniform(CUSTOMER, id, 4, 12)).append('/')
+			.append(1 + uniform(CUSTOMER, id, 5, 28)).append('/')
+			.append(1940 + uniform(CUSTOMER, id, 6, 65)).append(',')
+			.append(1 + uniform(CUSTOMER, id, 7, 9999)).append(' ')
+			.append(pick(STREET, uniform(CUSTOMER, id, 8, 1 << 20))).append(',');
+		long phone = 2000000000L + Math.floorMod(hash(CUSTOMER, id, 9), 7999999999L);
+		row.append(phone).append(',');
+		// us_postal_code: five digits
+		int zip = 501 + uniform(CUSTOMER, id, 10, 99449);
+		if (zip < 10000) row.append('0');
+		if (zip < 1000) row.append('0');
+		row.append(zip);
+	}
+
+	private void ship(int id, StringBuilder row){
+		row.append(id).append(',')
+			.append(pick(MAKE, uniform(SHIP, id, 1, 1 << 20))).append(',')
+			.append(pick(MODEL, uniform(SHIP, id, 2, 1 << 20))).append(id).append(',')
+			.append(uniform(SHIP, id, 3, 40)).append(',')
+			.append(shipSeats(id));
+	}
+
+	private void captain(int id, StringBuilder row){
+		row.append(id).append(',')
+			.append(pick(FIRST, uniform(CAPTAIN, id, 1, 1 << 20))).append(' ')
+			.append(pick(LAST, uniform(CAPTAIN, id, 2, 1 << 20))).append(',')
+			.append(pick(NATION, uniform(CAPTAIN, id, 3, 1 << 20)));
+	}
+
+	private void technician(int id, StringBuilder row){
+		row.append(id).append(',')
+			.append(pick(FIRST, uniform(TECHNICIAN, id, 1, 1 << 20))).append(' ')
+			.append(pick(LAST, uniform(TECHNICIAN, id, 2, 1 << 20)));
+	}
+
+	private void cruise(int cnum, StringBuilder row){
+		long departure = FIRST_DAY + cruiseDepartureDay(cnum);
+		int departurePort = uniform(CRUISE, cnum, 6, ports);
+		int arrivalPort = (departurePort + 1 + uniform(CRUISE, cnum, 7, Math.max(1, ports - 1))) % ports;
+		row.append(cnum).append(',')
+			.append(100 + uniform(CRUISE, cnum, 1, 2000)).append(',')
+			.append(cruiseSold(cnum)).append(',')
+			.append(uniform(CRUISE, cnum, 3, 6)).append(',');
+		appendDate(row, departure);
+		appendTime(row, uniform(CRUISE, cnum, 8, 1440));
+		row.append(',');
+		appendDate(row, departure + cruiseLength(cnum));
+		appendTime(row, uniform(CRUISE, cnum, 9, 1440));
+		row.append(',').append(port(arrivalPort)).append(',').append(port(departurePort));
+	}
+
+	private void cruiseInfo(int cnum, StringBuilder row){
+		row.append(cnum).append(',').append(cnum).append(',')
+			.append(uniform(CRUISEINFO, cnum, 2, captains)).append(',')
+			.append(cruiseShip(cnum));
+	}
+
+	private void schedule(int cnum, StringBuilder row){
+		long departure = FIRST_DAY + cruiseDepartureDay(cnum);
+		row.append(cnum).append(',').append(cnum).append(',');
+		appendDate(row, departure);
+		appendTime(row, uniform(CRUISE, cnum, 8, 1440));
+		row.append(',');
+		appendDate(row, departure + cruiseLength(cnum));
+		appendTime(row, uniform(CRUISE, cnum, 9, 1440));
+	}
+
+	private void repair(int rid, StringBuilder row){
+		row.append(rid).append(',');
+		appendDate(row, FIRST_DAY + uniform(REPAIRS, rid, 1, DAY_SPAN));
+		row.append(',').append(pick(CODE, uniform(REPAIRS, rid, 2, 3))).append(',')
+			.append(uniform(REPAIRS, rid, 3, captains)).append(',')
+			.append(uniform(REPAIRS, rid, 4, ships)).append(',')
+			.append(uniform(REPAIRS, rid, 5, technicians));
+	}
+
+	/**
+	 * Reservations cruise by cruise: the first cruiseSold(cnum) are seated
+	 * ('R' or 'C') and the rest waitlisted ('W'), each for a different
+	 * customer.
+	 */
+	private final class Reservations implements BulkLoader.RowWriter{
+		private int cnum = -1;
+		private int bookings = 0;
+		private int sold = 0;
+		private int firstCustomer = 0;
+		private int j = 0;
+		private long rnum = 0;
+
+		public boolean next(StringBuilder row){
+			while (j >= bookings){
+				if (++cnum >= cruises)
+					return false;
+				bookings = cruiseBookings(cnum);
+				sold = cruiseSold(cnum);
+				firstCustomer = uniform(RESERVATION, cnum, 1, customers);
+				j = 0;
+			}
+			String status = j < sold ? STATUS_SEATED[uniform(RESERVATION, rnum, 2, 2)] : "W";
+			row.append(rnum++).append(',')
+				.append((firstCustomer + j) % customers).append(',')
+				.append(cnum).append(',')
+				.append(status);
+			++j;
+			return true;
+		}
+	}
+
+	// -- output --
+
+	/**
+	 * Method to write every table to a CSV file named as in code/data, one
+	 * thread per table.
+	 *
+	 * @param dir the output directory
+	 * @param threads the number of tables written at once
+	 */
+	public void writeCsv(File dir, int threads) throws IOException {
+		dir.mkdirs();
+		List<BulkLoader.TableSpec> specs = new ArrayList<BulkLoader.TableSpec>();
+		for (BulkLoader.TableSpec spec : BulkLoader.INDEPENDENT) specs.add(spec);
+		for (BulkLoader.TableSpec spec : BulkLoader.DEPENDENT) specs.add(spec);
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+		try{
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (BulkLoader.TableSpec spec : specs)
+				results.add(workers.submit(() -> writeCsv(new File(dir, spec.file), spec.table)));
+			for (Future<Long> result : results)
+				result.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating", e);
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	private long writeCsv(File file, String table) throws IOException {
+		long start = System.nanoTime();
+		long rows = 0;
+		BulkLoader.RowWriter producer = rows(table);
+		StringBuilder row = new StringBuilder(256);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)){
+			while (true){
+				row.setLength(0);
+				if (!producer.next(row))
+					break;
+				row.append('\n');
+				out.append(row);
+				++rows;
+			}
+		}
+		BulkLoader.report(table, rows, System.nanoTime() - start);
+		return rows;
+	}
+
+	/**
+	 * Method to stream every table straight into the database through the
+	 * bulk loader, replacing the current contents.
+	 *
+	 * @param loader the bulk loader
+	 * @return the number of rows loaded
+	 */
+	public long load(BulkLoader loader) throws SQLException, IOException {
+		loader.truncateAll();
+		return loader.loadAll(spec -> {
+			long start = System.nanoTime();
+			long rows = loader.copyRows(spec, rows(spec.table));
+			BulkLoader.report(spec.table, rows, System.nanoTime() - start);
+			return rows;
+		});
+	}
+
+	/**
+	 * Generates the data set as CSV files or loads it into a database.
+	 *
+	 * @param args csv <dir> <scale> [seed] [threads]
+	 *             | load <dbname> <port> <user> <scale> [seed]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 3 && args[0].equals("csv")){
+			long seed = args.length > 3 ? Long.parseLong(args[3]) : 166;
+			int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+			new DataGenerator(seed, Double.parseDouble(args[2])).writeCsv(new File(args[1]), threads);
+		}else if (args.length >= 5 && args[0].equals("load")){
+			Class.forName("org.postgresql.Driver");
+			long seed = args.length > 5 ? Long.parseLong(args[5]) : 166;
+			DBproject esql = new DBproject(args[1], args[2], args[3], "");
+			try{
+				new DataGenerator(seed, Double.parseDouble(args[4])).load(new BulkLoader(esql.getPool()));
+				esql.getSeatCache().invalidateAll();
+			}finally{
+				esql.cleanup();
+			}
+		}else{
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DataGenerator.class.getName () +
+		            " csv <dir> <scale> [seed] [threads] | load <dbname> <port> <user> <scale> [seed]");
+		}
+	}
+}
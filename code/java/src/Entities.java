@@ -0,0 +1,177 @@
+/*
+ * Typed rows of the mostly static tables
+ * ======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class holds one immutable record type per table cached by
+ * EntityCache.  CHAR columns are stored without their blank padding.
+ * Each record has a SELECT_SQL looking it up by primary key and a from()
+ * method reading the current row of that query.
+ *
+ */
+
+public final class Entities{
+
+	private Entities(){
+	}
+
+	//CHAR(n) values come back blank padded; NULL stays null
+	private static String text(ResultSet rs, String column) throws SQLException {
+		String value = rs.getString(column);
+		return value == null ? null : value.trim();
+	}
+
+	private static LocalDate date(ResultSet rs, String column) throws SQLException {
+		Date value = rs.getDate(column);
+		return value == null ? null : value.toLocalDate();
+	}
+
+	public static final class Ship{
+		public static final String SELECT_SQL = "SELECT id, make, model, age, seats FROM Ship WHERE id = ?";
+
+		public final int id;
+		public final String make;
+		public final String model;
+		public final int age;
+		public final int seats;
+
+		Ship(int id, String make, String model, int age, int seats){
+			this.id = id;
+			this.make = make;
+			this.model = model;
+			this.age = age;
+			this.seats = seats;
+		}
+
+		static Ship from(ResultSet rs) throws SQLException {
+			return new Ship(rs.getInt("id"), text(rs, "make"), text(rs, "model"), rs.getInt("age"), rs.getInt("seats"));
+		}
+
+		public String toString(){
+			return "Ship " + id + " " + make + " " + model + " age=" + age + " seats=" + seats;
+		}
+	}
+
+	public static final class Captain{
+		public static final String SELECT_SQL = "SELECT id, fullname, nationality FROM Captain WHERE id = ?";
+
+		public final int id;
+		public final String fullname;
+		public final String nationality;
+
+		Captain(int id, String fullname, String nationality){
+			this.id = id;
+			this.fullname = fullname;
+			this.nationality = nationality;
+		}
+
+		static Captain from(ResultSet rs) throws SQLException {
+			return new Captain(rs.getInt("id"), text(rs, "fullname"), text(rs, "nationality"));
+		}
+
+		public String toString(){
+			return "Captain " + id + " " + fullname + " (" + nationality + ")";
+		}
+	}
+
+	public static final class Technician{
+		public static final String SELECT_SQL = "SELECT id, full_name FROM Technician WHERE id = ?";
+
+		public final int id;
+		public final String fullName;
+
+		Technician(int id, String fullName){
+			this.id = id;
+			this.fullName = fullName;
+		}
+
+		static Technician from(ResultSet rs) throws SQLException {
+			return new Technician(rs.getInt("id"), text(rs, "full_name"));
+		}
+
+		public String toString(){
+			return "Technician " + id + " " + fullName;
+		}
+	}
+
+	public static final class Customer{
+		public static final String SELECT_SQL =
+			"SELECT id, fname, lname, gtype, dob, address, phone, zipcode FROM Customer WHERE id = ?";
+
+		public final int id;
+		public final String fname;
+		public final String lname;
+		public final char gtype;
+		public final LocalDate dob;
+		public final String address;
+		public final String phone;
+		public final String zipcode;
+
+		Customer(int id, String fname, String lname, char gtype, LocalDate dob, String address, String phone, String zipcode){
+			this.id = id;
+			this.fname = fname;
+			this.lname = lname;
+			this.gtype = gtype;
+			this.dob = dob;
+			this.address = address;
+			this.phone = phone;
+			this.zipcode = zipcode;
+		}
+
+		static Customer from(ResultSet rs) throws SQLException {
+			return new Customer(rs.getInt("id"), text(rs, "fname"), text(rs, "lname"), text(rs, "gtype").charAt(0),
+				date(rs, "dob"), text(rs, "address"), text(rs, "phone"), text(rs, "zipcode"));
+		}
+
+		public String toString(){
+			return "Customer " + id + " " + fname + " " + lname;
+		}
+	}
+
+	/**
+	 * A cruise without num_sold, which changes with every booking; the
+	 * available seats are kept by SeatCache instead.
+	 */
+	public static final class Cruise{
+		public static final String SELECT_SQL =
+			"SELECT cnum, cost, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port FROM Cruise WHERE cnum = ?";
+
+		public final int cnum;
+		public final int cost;
+		public final int numStops;
+		public final LocalDate departure;
+		public final LocalDate arrival;
+		public final String arrivalPort;
+		public final String departurePort;
+
+		Cruise(int cnum, int cost, int numStops, LocalDate departure, LocalDate arrival, String arrivalPort, String departurePort){
+			this.cnum = cnum;
+			this.cost = cost;
+			this.numStops = numStops;
+			this.departure = departure;
+			this.arrival = arrival;
+			this.arrivalPort = arrivalPort;
+			this.departurePort = departurePort;
+		}
+
+		static Cruise from(ResultSet rs) throws SQLException {
+			return new Cruise(rs.getInt("cnum"), rs.getInt("cost"), rs.getInt("num_stops"),
+				date(rs, "actual_departure_date"), date(rs, "actual_arrival_date"),
+				text(rs, "arrival_port"), text(rs, "departure_port"));
+		}
+
+		public String toString(){
+			return "Cruise " + cnum + " " + departurePort + "->" + arrivalPort + " " + departure + ".." + arrival;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Read-through entity cache
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class caches the rows of one mostly static table by primary key.
+ * A lookup that misses reads the row through the pool and keeps it; once
+ * the cache holds maxSize rows the least recently used one is evicted.
+ * Only rows that exist are cached, so an id added by another client is
+ * found on its first lookup.  Writers invalidate the ids they change or
+ * delete.
+ *
+ * @param <T> the record type, one of the classes in Entities
+ */
+
+public class EntityCache<T>{
+
+	/**
+	 * Reads one record from the current row of the lookup query.
+	 */
+	public interface Loader<T>{
+		T load(ResultSet rs) throws SQLException;
+	}
+
+	private final String name;
+	private final ConnectionPool pool;
+	private final String selectSql;
+	private final Loader<T> loader;
+	private final int maxSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	//access ordered, so the eldest entry is the least recently used
+	private final LinkedHashMap<Integer, T> entries;
+	//bumped by every invalidation; a load that started before one is not stored
+	private long generation = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public EntityCache(String name, ConnectionPool pool, String selectSql, Loader<T> loader, int maxSize){
+		this.name = name;
+		this.pool = pool;
+		this.selectSql = selectSql;
+		this.loader = loader;
+		this.maxSize = Math.max(1, maxSize);
+		this.entries = new LinkedHashMap<Integer, T>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Integer, T> eldest){
+				if (size() <= EntityCache.this.maxSize)
+					return false;
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to look up a row by primary key, reading the database on a miss.
+	 *
+	 * @param id the primary key
+	 * @return the record, or null when no row has that key
+	 * @throws java.sql.SQLException when failed to read the row
+	 */
+	public T get(int id) throws SQLException {
+		long loadGeneration;
+		lock.lock();
+		try{
+			T cached = entries.get(id);
+			if (cached != null){
+				hits.increment();
+				return cached;
+			}
+			loadGeneration = generation;
+		}finally{
+			lock.unlock();
+		}
+		misses.increment();
+
+		T loaded = null;
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		try (ResultSet rs = DBproject.query(conn, selectSql, id)){
+			if (rs.next())
+				loaded = loader.load(rs);
+		}finally{
+			pool.release(conn);
+		}
+		if (loaded != null){
+			lock.lock();
+			try{
+				if (generation == loadGeneration)
+					entries.put(id, loaded);
+			}finally{
+				lock.unlock();
+			}
+		}
+		return loaded;
+	}//end get
+
+	/**
+	 * @param id the primary key
+	 * @return true if a row has that key
+	 * @throws java.sql.SQLException when failed to read the row
+	 */
+	public boolean exists(int id) throws SQLException {
+		return get(id) != null;
+	}
+
+	/**
+	 * Method to drop a row after it was added, changed or deleted.
+	 *
+	 * @param id the primary key
+	 */
+	public void invalidate(int id){
+		lock.lock();
+		try{
+			entries.remove(id);
+			++generation;
+		}finally{
+			lock.unlock();
+		}
+		invalidations.increment();
+	}
+
+	/**
+	 * Method to drop every row, e.g. after the table was reloaded.
+	 */
+	public void invalidateAll(){
+		lock.lock();
+		try{
+			entries.clear();
+			++generation;
+		}finally{
+			lock.unlock();
+		}
+		invalidations.increment();
+	}
+
+	public int size(){
+		lock.lock();
+		try{
+			return entries.size();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public long getHits(){ return hits.sum(); }
+	public long getMisses(){ return misses.sum(); }
+	public long getEvictions(){ return evictions.sum(); }
+
+	/**
+	 * @return the fraction of lookups answered from the cache
+	 */
+	public double getHitRate(){
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	/**
+	 * @return a one-line summary of the cache metrics
+	 */
+	public String stats(){
+		return String.format("%s cache: entries=%d/%d hits=%d misses=%d hitRate=%.1f%% evictions=%d invalidations=%d",
+			name, size(), maxSize, hits.sum(), misses.sum(), getHitRate() * 100, evictions.sum(), invalidations.sum());
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Group commit for bookings
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class books cruises for many callers with one transaction per
+ * group of requests instead of one per request, so the database flushes
+ * its log once for the whole group.  Each cruise belongs to one writer
+ * thread (cnum modulo the number of writers), and its requests wait in
+ * that writer's queue until the writer collects maxBatch of them or maxDelay has passed since
+ * the first, then the group is booked with one call to book_cruises
+ * (migrations/V004): one multi-row Reservation insert, one status update
+ * and one num_sold update per cruise.  Every caller's future completes
+ * with its own outcome, exactly as DBproject.bookCruise() would report it.
+ *
+ * A (customer, cruise) pair that is already in the group being collected
+ * waits for the next group of the same writer, and every request for a
+ * cruise goes to that writer, so repeated requests are applied in the
+ * order they were submitted.  Groups of different writers also never
+ * share a cruise, so they do not wait on each other's Cruise row locks.
+ * A full queue fails the request at once with SQLState 53300, which
+ * callers treat like a saturated connection pool.  A group that fails
+ * with a deadlock (40P01) or a serialization failure (40001) was rolled
+ * back as a whole and is booked again, up to MAX_ATTEMPTS times.
+ *
+ */
+
+public class GroupCommitWriter implements AutoCloseable{
+
+	private static final String BOOK_SQL =
+		"SELECT o_i, o_rnum, o_previous, o_status, o_available FROM book_cruises(?, ?)";
+
+	//tries per group when it fails with a deadlock or serialization failure
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static final class Request{
+		final int ccid;
+		final int cnum;
+		final long enqueued = System.nanoTime();
+		final CompletableFuture<Booking> future = new CompletableFuture<Booking>();
+		//whose reads must see the booking once it is committed; null without replicas
+		final ReplicaRouter.Session session;
+
+		Request(int ccid, int cnum, ReplicaRouter.Session session){
+			this.ccid = ccid;
+			this.cnum = cnum;
+			this.session = session;
+		}
+
+		long pair(){
+			return ((long) ccid << 32) | (cnum & 0xFFFFFFFFL);
+		}
+	}
+
+	private final DBproject esql;
+	//one per writer; a request goes to the queue of its cruise's writer
+	private final List<BlockingQueue<Request>> queues;
+	private final int maxBatch;
+	private final long maxDelayNanos;
+	private final Thread[] writers;
+	private volatile boolean closed = false;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder booked = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+	/**
+	 * @param esql the database, whose caches are kept in step
+	 * @param maxBatch the most requests booked per transaction
+	 * @param maxDelayMillis the longest the first request of a group waits for more
+	 * @param writerCount the groups collected and committed at once
+	 * @param queueSize the requests that may wait before new ones are refused, split evenly over the writers
+	 */
+	public GroupCommitWriter(DBproject esql, int maxBatch, long maxDelayMillis, int writerCount, int queueSize){
+		if (maxBatch < 1 || writerCount < 1)
+			throw new IllegalArgumentException("maxBatch and writerCount must be at least 1");
+		this.esql = esql;
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		this.queues = new ArrayList<BlockingQueue<Request>>(writerCount);
+		this.writers = new Thread[writerCount];
+		for (int i = 0; i < writerCount; ++i){
+			BlockingQueue<Request> queue = new ArrayBlockingQueue<Request>(Math.max(maxBatch, (queueSize + writerCount - 1) / writerCount));
+			queues.add(queue);
+			writers[i] = new Thread(() -> run(queue), "group-commit-" + i);
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
+	}
+
+	/**
+	 * Method to build a writer from the groupcommit.maxBatch (256),
+	 * groupcommit.delayMs (2), groupcommit.writers (2) and
+	 * groupcommit.queueSize (65536) system properties.
+	 *
+	 * @param esql the database
+	 * @return the running writer
+	 */
+	public static GroupCommitWriter fromSystemProperties(DBproject esql){
+		return new GroupCommitWriter(esql, Integer.getInteger("groupcommit.maxBatch", 256),
+			Long.getLong("groupcommit.delayMs", 2L), Integer.getInteger("groupcommit.writers", 2),
+			Integer.getInteger("groupcommit.queueSize", 65536));
+	}
+
+	/**
+	 * Method to queue a booking request.
+	 *
+	 * @param ccid the customer id
+	 * @param cnum the cruise number
+	 * @return a future completed with the outcome (null when the customer or
+	 *         cruise does not exist) or with the SQLException that failed it
+	 */
+	public CompletableFuture<Booking> submit(int ccid, int cnum){
+		ReplicaRouter router = esql.getReplicaRouter();
+		Request r = new Request(ccid, cnum, router == null ? null : router.current());
+		if (closed || !queues.get(Math.floorMod(cnum, queues.size())).offer(r)){
+			rejected.increment();
+			r.future.completeExceptionally(new SQLException("booking queue is full", "53300"));
+		}
+		return r.future;
+	}
+
+	//collects groups from one writer's queue and books them until closed and drained
+	private void run(BlockingQueue<Request> queue){
+		List<Request> batch = new ArrayList<Request>(maxBatch);
+		ArrayDeque<Request> deferred = new ArrayDeque<Request>();
+		Set<Long> pairs = new HashSet<Long>();
+		while (!closed || !queue.isEmpty() || !deferred.isEmpty()){
+			try{
+				Request first = deferred.isEmpty() ? queue.poll(100, TimeUnit.MILLISECONDS) : deferred.poll();
+				if (first == null)
+					continue;
+				batch.add(first);
+				pairs.add(first.pair());
+				// repeats held back from the last group go first
+				for (int n = deferred.size(); n > 0 && batch.size() < maxBatch; --n){
+					Request r = deferred.poll();
+					if (pairs.add(r.pair()))
+						batch.add(r);
+					else
+						deferred.add(r);
+				}
+				long deadline = first.enqueued + maxDelayNanos;
+				while (batch.size() < maxBatch){
+					long wait = deadline - System.nanoTime();
+					Request r = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (r == null)
+						break;
+					if (pairs.add(r.pair()))
+						batch.add(r);
+					else
+						deferred.add(r);
+				}
+				flush(batch);
+			}catch (InterruptedException e){
+				closed = true;
+				//the group was collected but never booked
+				fail(batch, new SQLException("group commit writer interrupted", "57014"));
+			}finally{
+				batch.clear();
+				pairs.clear();
+			}
+		}
+	}
+
+	private void flush(List<Request> batch){
+		long start = System.nanoTime();
+		Integer[] ccids = new Integer[batch.size()];
+		Integer[] cnums = new Integer[batch.size()];
+		Set<ReplicaRouter.Session> sessions = new HashSet<ReplicaRouter.Session>();
+		for (int i = 0; i < ccids.length; ++i){
+			ccids[i] = batch.get(i).ccid;
+			cnums[i] = batch.get(i).cnum;
+			if (batch.get(i).session != null)
+				sessions.add(batch.get(i).session);
+		}
+		Booking[] outcomes;
+		long since = esql.getSeatCache().version();
+		Metrics.begin("GroupCommit");
+		try{
+			for (int attempt = 1; ; ++attempt){
+				try{
+					outcomes = book(ccids, cnums, sessions);
+					break;
+				}catch (SQLException e){
+					if (attempt >= MAX_ATTEMPTS || !isRetryable(e))
+						throw e;
+					retries.increment();
+					Thread.sleep(ThreadLocalRandom.current().nextInt(1, 1 + 4 * attempt));
+				}
+			}
+		}catch (SQLException e){
+			fail(batch, e);
+			return;
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			fail(batch, new SQLException("group commit writer interrupted", "57014"));
+			return;
+		}finally{
+			Metrics.end();
+			commitLatency.record(System.nanoTime() - start);
+		}
+		batches.increment();
+		booked.add(batch.size());
+		ReservationIndex index = esql.getReservationIndex();
+		long now = System.nanoTime();
+		for (int i = 0; i < outcomes.length; ++i){
+			Booking b = outcomes[i];
+			if (b != null){
+				esql.seatsChanged(b.cruiseNum, b.available, since);
+				if (index != null)
+					index.apply(b);
+			}
+			requestLatency.record(now - batch.get(i).enqueued);
+			batch.get(i).future.complete(b);
+		}
+	}
+
+	//books one group in one transaction; outcome i is null when request i was not found
+	private Booking[] book(Integer[] ccids, Integer[] cnums, Set<ReplicaRouter.Session> sessions) throws SQLException {
+		Booking[] outcomes = new Booking[ccids.length];
+		ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+		//autocommit is on, so the call is one transaction and one commit
+		try{
+			Array ccidArray = conn.getConnection().createArrayOf("int4", ccids);
+			Array cnumArray = conn.getConnection().createArrayOf("int4", cnums);
+			try (ResultSet rs = DBproject.query(conn, BOOK_SQL, ccidArray, cnumArray)){
+				while (rs.next()){
+					int i = rs.getInt(1) - 1;
+					String previous = rs.getString(3);
+					int available = rs.getInt(5);
+					if (rs.wasNull())
+						available = SeatCache.NO_SHIP;
+					outcomes[i] = new Booking(ccids[i], cnums[i], rs.getInt(2),
+						previous == null ? Booking.NONE : previous.charAt(0), rs.getString(4).charAt(0), available);
+				}
+			}
+			// before any future completes, so a requester's next read sees its booking
+			esql.wrote(conn, sessions);
+		}finally{
+			esql.getPool().release(conn);
+		}
+		return outcomes;
+	}
+
+	//the whole group was rolled back, so booking it again is safe
+	private static boolean isRetryable(SQLException e){
+		return "40P01".equals(e.getSQLState()) || "40001".equals(e.getSQLState());
+	}
+
+	private void fail(List<Request> batch, SQLException e){
+		failed.add(batch.size());
+		for (Request r : batch)
+			r.future.completeExceptionally(e);
+	}
+
+	public long getBooked(){ return booked.sum(); }
+
+	private int queued(){
+		int n = 0;
+		for (BlockingQueue<Request> q : queues)
+			n += q.size();
+		return n;
+	}
+	public LatencyHistogram getRequestLatency(){ return requestLatency; }
+
+	/**
+	 * @return a one-line summary of the groups and their latency
+	 */
+	public String stats(){
+		long n = batches.sum();
+		return String.format("group commit: requests=%d batches=%d avgBatch=%.1f queued=%d rejected=%d failed=%d retries=%d commit %s request %s",
+			booked.sum(), n, n == 0 ? 0.0 : (double) booked.sum() / n, queued(), rejected.sum(), failed.sum(), retries.sum(),
+			commitLatency.summary(), requestLatency.summary());
+	}
+
+	/**
+	 * Method to stop taking requests and wait for the queued ones to be booked.
+	 */
+	public void close(){
+		closed = true;
+		for (Thread t : writers){
+			try{
+				t.join(30000);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Books random (customer, cruise) pairs once per request and then as
+	 * many through group commit, and prints bookings per second for both.
+	 * The two runs draw different pairs so the second does not just turn
+	 * the first run's reservations into confirmations.
+	 *
+	 * @param args <dbname> <port> <user> <requests> [concurrency]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + GroupCommitWriter.class.getName () +
+		            " <dbname> <port> <user> <requests> [concurrency]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		int requests = Integer.parseInt(args[3]);
+		int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> customers = esql.executeQueryAndReturnResult("SELECT id FROM Customer");
+			List<List<String>> cruises = esql.executeQueryAndReturnResult("SELECT cnum FROM Cruise");
+			try (BookingService single = new BookingService(esql, 256)){
+				double seconds = drive(pairs(customers, cruises, requests, 42), concurrency, single::submit);
+				System.out.println(String.format("per request:  %.0f bookings/s  %s", requests / seconds, single.stats()));
+			}
+			try (GroupCommitWriter group = fromSystemProperties(esql)){
+				double seconds = drive(pairs(customers, cruises, requests, 43), concurrency, group::submit);
+				System.out.println(String.format("group commit: %.0f bookings/s  %s", requests / seconds, group.stats()));
+			}
+			System.out.println(esql.getPool().stats());
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	private static int[][] pairs(List<List<String>> customers, List<List<String>> cruises, int requests, long seed){
+		int[][] pairs = new int[2][requests];
+		Random random = new Random(seed);
+		for (int i = 0; i < requests; ++i){
+			pairs[0][i] = Integer.parseInt(customers.get(random.nextInt(customers.size())).get(0));
+			pairs[1][i] = Integer.parseInt(cruises.get(random.nextInt(cruises.size())).get(0));
+		}
+		return pairs;
+	}
+
+	private interface Submitter{
+		CompletableFuture<Booking> submit(int ccid, int cnum);
+	}
+
+	//submits every pair with at most concurrency open and returns the seconds taken
+	private static double drive(int[][] pairs, int concurrency, Submitter submitter){
+		Semaphore open = new Semaphore(concurrency);
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[pairs[0].length];
+		long start = System.nanoTime();
+		for (int i = 0; i < futures.length; ++i){
+			open.acquireUninterruptibly();
+			futures[i] = submitter.submit(pairs[0][i], pairs[1][i]).handle((b, e) -> {
+				open.release();
+				if (e != null)
+					System.err.println(e.getMessage());
+				return null;
+			});
+		}
+		CompletableFuture.allOf(futures).join();
+		return (System.nanoTime() - start) / 1e9;
+	}
+}
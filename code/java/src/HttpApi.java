@@ -0,0 +1,493 @@
+/*
+ * Embedded HTTP API
+ * =================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the booking and report operations of DBproject as
+ * JSON over HTTP with the JDK's built-in server:
+ *
+ * <pre>
+ *   POST /bookings                  {"customer": 42, "cruise": 1907}
+ *   GET  /cruises/&lt;cnum&gt;/seats
+ *   GET  /cruises?from=&lt;port&gt;&amp;to=&lt;port&gt;&amp;earliest=&lt;date&gt;&amp;latest=&lt;date&gt;[&amp;seats=&lt;n&gt;&amp;limit=&lt;n&gt;&amp;after=&lt;cursor&gt;]
+ *   GET  /reports/repairs
+ *   GET  /reports/status/&lt;W|C|R&gt;
+ *   GET  /reservations?first=&lt;name&gt;&amp;last=&lt;name&gt;
+ *   GET  /metrics
+ *   GET  /metrics/prometheus
+ * </pre>
+ *
+ * Each exchange runs on its own worker (a virtual thread when the JVM has
+ * them, otherwise one of maxInFlight platform threads).  Admission happens
+ * when the server's dispatcher hands an exchange over: at most maxInFlight
+ * running plus maxQueued waiting requests are accepted, and any other
+ * exchange is answered 503 with Retry-After on a small shedding pool, so
+ * the worker queue stays bounded.  A request that finds the connection
+ * pool saturated is answered the same way.  Paths match exactly, except
+ * under the prefixes that end in '/'.  Latency is recorded per endpoint.
+ *
+ * With read replicas, each client is its own read-your-writes session,
+ * named by its X-Session header or else by its address; the last
+ * MAX_SESSIONS clients are remembered.
+ *
+ */
+
+public class HttpApi implements AutoCloseable{
+
+	/**
+	 * Handler of one endpoint; returns the status and JSON body.
+	 */
+	private interface Endpoint{
+		Response handle(HttpExchange exchange, String[] path) throws SQLException, IOException;
+	}
+
+	private static final class Response{
+		final int status;
+		final String body;
+
+		Response(int status, String body){
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	//longest a request waits for its group commit
+	private static final long BOOKING_TIMEOUT_SECONDS = 30;
+	private static final int MAX_SESSIONS = 10000;
+
+	private final DBproject esql;
+	private final BookingService bookings;
+	//books through group commit instead when http.groupCommit=true, otherwise null
+	private final GroupCommitWriter groupCommit;
+	private final HttpServer server;
+	private final ExecutorService workers;
+	//answers the exchanges that were not admitted
+	private final ThreadPoolExecutor shedding;
+	private final Semaphore admission;
+	private final int admitted;
+	//set while an exchange that was not admitted runs
+	private final ThreadLocal<Boolean> shed = new ThreadLocal<Boolean>();
+	//replica session per client, least recently used first; null without replicas
+	private final ReplicaRouter router;
+	private final LinkedHashMap<String, ReplicaRouter.Session> sessions =
+		new LinkedHashMap<String, ReplicaRouter.Session>(16, 0.75f, true);
+
+	//fixed when the endpoints are registered, so reads need no lock
+	private final Map<String, LatencyHistogram> latency = new LinkedHashMap<String, LatencyHistogram>();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder clientErrors = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+
+	public HttpApi(DBproject esql, int port, int maxInFlight, int maxQueued) throws IOException {
+		this.esql = esql;
+		this.bookings = new BookingService(esql, 256);
+		this.groupCommit = Boolean.getBoolean("http.groupCommit") ? GroupCommitWriter.fromSystemProperties(esql) : null;
+		this.router = esql.getReplicaRouter();
+		this.admitted = maxInFlight + maxQueued;
+		this.admission = new Semaphore(admitted);
+		this.workers = BookingService.newWorkerExecutor(maxInFlight);
+		this.shedding = new ThreadPoolExecutor(1, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1024), r -> {
+			Thread t = new Thread(r, "http-shedding");
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.setExecutor(this::dispatch);
+
+		endpoint("POST", "/bookings", "book", this::book);
+		endpoint("GET", "/cruises/", "seats", this::seats);
+		endpoint("GET", "/cruises", "search", this::search);
+		endpoint("GET", "/reports/repairs", "repairs", (ex, path) ->
+			new Response(200, "{\"columns\":[\"ship_id\",\"total_repairs\"],\"rows\":" +
+				Json.rows(esql.executeQueryAndReturnResult(DBproject.REPAIRS_PER_SHIP_SQL)) + "}"));
+		endpoint("GET", "/reports/status/", "status", this::status);
+		endpoint("GET", "/reservations", "reservations", this::reservations);
+		//served even when requests are shed, so an overloaded server can be observed
+		text("/metrics", "text/plain; charset=utf-8", this::metrics);
+		text("/metrics/prometheus", "text/plain; version=0.0.4; charset=utf-8", Metrics::prometheus);
+	}
+
+	/**
+	 * Method to build the API from the http.port (8080), http.maxInFlight
+	 * (four times the pool size) and http.maxQueued (as many as
+	 * http.maxInFlight) system properties.
+	 *
+	 * @param esql the database to serve
+	 * @return the API, not started yet
+	 */
+	public static HttpApi fromSystemProperties(DBproject esql) throws IOException {
+		int maxInFlight = Integer.getInteger("http.maxInFlight", 4 * esql.getPool().getMaxSize());
+		return new HttpApi(esql, Integer.getInteger("http.port", 8080), maxInFlight,
+			Integer.getInteger("http.maxQueued", maxInFlight));
+	}
+
+	//runs on the server's dispatcher thread for every exchange, before the
+	//request is parsed; must not block
+	private void dispatch(Runnable exchange){
+		if (admission.tryAcquire()){
+			try{
+				workers.execute(() -> {
+					try{
+						exchange.run();
+					}finally{
+						admission.release();
+					}
+				});
+			}catch (RejectedExecutionException e){
+				admission.release();
+				throw e;
+			}
+		}else{
+			shedding.execute(() -> {
+				shed.set(Boolean.TRUE);
+				try{
+					exchange.run();
+				}finally{
+					shed.remove();
+				}
+			});
+		}
+	}
+
+	//the replica session of the client that sent the exchange
+	private ReplicaRouter.Session session(HttpExchange exchange){
+		String name = exchange.getRequestHeaders().getFirst("X-Session");
+		String key = name != null ? "session:" + name : "address:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+		synchronized (sessions){
+			ReplicaRouter.Session s = sessions.get(key);
+			if (s == null){
+				s = router.newSession();
+				sessions.put(key, s);
+				if (sessions.size() > MAX_SESSIONS)
+					sessions.remove(sessions.keySet().iterator().next());
+			}
+			return s;
+		}
+	}
+
+	//HttpServer matches contexts by prefix, so /cruisesX would reach /cruises
+	private static boolean matches(String prefix, HttpExchange exchange){
+		String path = exchange.getRequestURI().getPath();
+		return prefix.endsWith("/") ? path.startsWith(prefix) : path.equals(prefix);
+	}
+
+	private void text(String path, String type, Supplier<String> body){
+		server.createContext(path, ex -> {
+			if (matches(path, ex))
+				send(ex, 200, type, body.get());
+			else
+				send(ex, 404, "application/json", error("not found"));
+		});
+	}
+
+	public void start(){
+		server.start();
+	}
+
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	private void endpoint(String method, String prefix, String name, Endpoint handler){
+		LatencyHistogram histogram = new LatencyHistogram();
+		latency.put(name, histogram);
+		String operation = "http:" + name;
+		server.createContext(prefix, exchange -> {
+			long start = System.nanoTime();
+			Response response;
+			if (!matches(prefix, exchange)){
+				response = new Response(404, error("not found"));
+			}else if (!exchange.getRequestMethod().equalsIgnoreCase(method)){
+				response = new Response(405, error("use " + method));
+			}else if (shed.get() != null){
+				rejected.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				response = new Response(503, error("server busy"));
+			}else{
+				Metrics.begin(operation);
+				ReplicaRouter.Session previous = router == null ? null : router.bind(session(exchange));
+				try{
+					String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+					response = handler.handle(exchange, path);
+				}catch (IllegalArgumentException e){
+					response = new Response(400, error(e.getMessage()));
+				}catch (SQLException e){
+					response = failure(exchange, e);
+				}catch (RuntimeException e){
+					response = new Response(500, error(String.valueOf(e.getMessage())));
+				}finally{
+					if (router != null)
+						router.bind(previous);
+					Metrics.end();
+				}
+			}
+			if (response.status >= 500)
+				serverErrors.increment();
+			else if (response.status >= 400)
+				clientErrors.increment();
+			send(exchange, response.status, "application/json", response.body);
+			histogram.record(System.nanoTime() - start);
+		});
+	}
+
+	//a saturated or timed out pool is backpressure, not a server fault
+	private Response failure(HttpExchange exchange, SQLException e){
+		if ("53300".equals(e.getSQLState()) || "08001".equals(e.getSQLState())){
+			rejected.increment();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			return new Response(503, error(e.getMessage()));
+		}
+		return new Response(500, error(e.getMessage()));
+	}
+
+	private static String error(String message){
+		return "{\"error\":" + Json.quote(message) + "}";
+	}
+
+	private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()){
+			os.write(bytes);
+		}
+	}
+
+	private Response book(HttpExchange exchange, String[] path) throws SQLException, IOException {
+		Map<String, String> query = query(exchange);
+		String body = read(exchange.getRequestBody());
+		int ccid = intParam(query, body, "customer");
+		int cnum = intParam(query, body, "cruise");
+		Booking b = groupCommit == null ? bookings.book(ccid, cnum) : await(groupCommit.submit(ccid, cnum));
+		if (b == null)
+			return new Response(404, error("customer or cruise does not exist"));
+		return new Response(b.isNew() ? 201 : 200, String.format(
+			"{\"rnum\":%d,\"customer\":%d,\"cruise\":%d,\"previous\":\"%c\",\"status\":\"%c\",\"available\":%s}",
+			b.rnum, b.customerId, b.cruiseNum, b.previous, b.status,
+			b.available == SeatCache.NO_SHIP ? "null" : Integer.toString(b.available)));
+	}
+
+	private static Booking await(CompletableFuture<Booking> future) throws SQLException {
+		try{
+			return future.get(BOOKING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}catch (TimeoutException e){
+			throw new SQLException("booking not committed within " + BOOKING_TIMEOUT_SECONDS + "s", "57014");
+		}catch (ExecutionException e){
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while booking", "57014");
+		}
+	}
+
+	//path: cruises/<cnum>/seats
+	private Response seats(HttpExchange exchange, String[] path) throws SQLException {
+		if (path.length != 3 || !path[2].equals("seats"))
+			return new Response(404, error("not found"));
+		int cnum = parseInt(path[1], "cruise");
+		int seats = esql.availableSeats(cnum);
+		if (seats == SeatCache.NO_SHIP)
+			return new Response(404, error("cruise " + cnum + " has no ship"));
+		return new Response(200, "{\"cruise\":" + cnum + ",\"available\":" + seats + "}");
+	}
+
+	//dates are YYYY-MM-DD; next is the cursor for the following page, null on the last one
+	private Response search(HttpExchange exchange, String[] path) throws SQLException {
+		if (path.length != 1)
+			return new Response(404, error("not found"));
+		CruiseSearchIndex index = esql.getSearchIndex();
+		if (index == null)
+			return new Response(404, error("the search index is disabled"));
+		Map<String, String> query = query(exchange);
+		String from = query.get("from"), to = query.get("to");
+		if (from == null || to == null || query.get("earliest") == null || query.get("latest") == null)
+			throw new IllegalArgumentException("from, to, earliest and latest are required");
+		LocalDate earliest, latest;
+		try{
+			earliest = LocalDate.parse(query.get("earliest"));
+			latest = LocalDate.parse(query.get("latest"));
+		}catch (DateTimeParseException e){
+			throw new IllegalArgumentException("dates must be YYYY-MM-DD");
+		}
+		int seats = query.containsKey("seats") ? parseInt(query.get("seats"), "seats") : 1;
+		int limit = query.containsKey("limit") ? parseInt(query.get("limit"), "limit") : 20;
+		if (limit < 1 || limit > 1000)
+			throw new IllegalArgumentException("limit must be between 1 and 1000");
+		long after = CruiseSearchIndex.FIRST;
+		if (query.containsKey("after")){
+			try{
+				after = Long.parseLong(query.get("after"));
+			}catch (NumberFormatException e){
+				throw new IllegalArgumentException("after must be a cursor returned as next");
+			}
+		}
+		CruiseSearchIndex.Page page = index.search(from, to, earliest, latest, seats, after, limit);
+		StringBuilder s = new StringBuilder(64 + 96 * page.hits.size()).append("{\"cruises\":[");
+		for (int i = 0; i < page.hits.size(); ++i){
+			CruiseSearchIndex.Hit h = page.hits.get(i);
+			s.append(i == 0 ? "{" : ",{").append("\"cnum\":").append(h.cnum)
+				.append(",\"departure\":\"").append(h.departure).append('"')
+				.append(",\"scheduled\":").append(h.scheduled == null ? "null" : "\"" + h.scheduled + "\"")
+				.append(",\"available\":").append(h.available).append('}');
+		}
+		s.append("],\"next\":").append(page.next == CruiseSearchIndex.FIRST ? "null" : "\"" + page.next + "\"").append('}');
+		return new Response(200, s.toString());
+	}
+
+	//path: reports/status/<W|C|R>
+	private Response status(HttpExchange exchange, String[] path) throws SQLException {
+		if (path.length != 3 || !(path[2].equals("W") || path[2].equals("C") || path[2].equals("R")))
+			throw new IllegalArgumentException("status must be W, C or R");
+		long total = 0;
+		for (List<String> row : esql.executeQueryAndReturnResult(DBproject.PASSENGERS_WITH_STATUS_SQL, path[2]))
+			total = Long.parseLong(row.get(1).trim());
+		return new Response(200, "{\"status\":\"" + path[2] + "\",\"total\":" + total + "}");
+	}
+
+	private Response reservations(HttpExchange exchange, String[] path) throws SQLException {
+		Map<String, String> query = query(exchange);
+		String first = query.get("first"), last = query.get("last");
+		if (first == null || last == null)
+			throw new IllegalArgumentException("first and last are required");
+		return new Response(200, "{\"rows\":" +
+			Json.rows(esql.executeQueryAndReturnResult(DBproject.RESERVATIONS_BY_NAME_SQL, first, last)) + "}");
+	}
+
+	private static Map<String, String> query(HttpExchange exchange){
+		Map<String, String> params = new HashMap<String, String>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null)
+			return params;
+		for (String pair : raw.split("&")){
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		byte[] buffer = new byte[1024];
+		for (int n; (n = in.read(buffer)) > 0; ){
+			bytes.write(buffer, 0, n);
+			if (bytes.size() > 1 << 16)
+				throw new IllegalArgumentException("request body too large");
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static int intParam(Map<String, String> query, String body, String name){
+		if (query.containsKey(name))
+			return parseInt(query.get(name), name);
+		Integer value = Json.intField(body, name);
+		if (value == null)
+			throw new IllegalArgumentException(name + " is required");
+		return value;
+	}
+
+	private static int parseInt(String value, String name){
+		try{
+			return Integer.parseInt(value);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException(name + " must be an integer");
+		}
+	}
+
+	/**
+	 * @return request, latency and pool metrics as text
+	 */
+	public String metrics(){
+		StringBuilder s = new StringBuilder(512);
+		s.append(String.format("http: inFlight=%d rejected=%d clientErrors=%d serverErrors=%d%n",
+			admitted - admission.availablePermits(), rejected.sum(), clientErrors.sum(), serverErrors.sum()));
+		for (Map.Entry<String, LatencyHistogram> e : latency.entrySet())
+			s.append(String.format("  %-12s %s%n", e.getKey(), e.getValue().summary()));
+		s.append(bookings.stats()).append('\n');
+		if (groupCommit != null)
+			s.append(groupCommit.stats()).append('\n');
+		s.append(esql.getPool().stats()).append('\n');
+		s.append(esql.getSeatCache().stats()).append('\n');
+		if (esql.getWaitlistPromoter() != null)
+			s.append(esql.getWaitlistPromoter().stats()).append('\n');
+		if (esql.getChangeListener() != null)
+			s.append(esql.getChangeListener().stats()).append('\n');
+		if (esql.getReplicaRouter() != null)
+			s.append(esql.getReplicaRouter().stats()).append('\n');
+		if (SlowQueryLog.isEnabled())
+			s.append(SlowQueryLog.report(10));
+		return s.toString();
+	}
+
+	public void close(){
+		server.stop(1);
+		bookings.close();
+		if (groupCommit != null)
+			groupCommit.close();
+		workers.shutdown();
+		shedding.shutdown();
+	}
+
+	/**
+	 * Serves the API until the process is stopped.
+	 *
+	 * @param args <dbname> <port> <user> [http port]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + HttpApi.class.getName () +
+		            " <dbname> <port> <user> [http port]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		if (args.length > 3)
+			System.setProperty("http.port", args[3]);
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		HttpApi api = fromSystemProperties(esql);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			api.close();
+			System.out.print(api.metrics());
+			esql.cleanup();
+		}));
+		api.start();
+		System.out.println("Serving on http://localhost:" + api.getPort() + "/");
+	}
+}
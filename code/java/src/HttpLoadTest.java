@@ -0,0 +1,120 @@
+/*
+ * Load test for the HTTP API
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class drives many concurrent bookings through the HTTP API.  It
+ * picks random (customer, cruise) pairs from the database, keeps up to
+ * the given number of POST /bookings requests open at once and reports
+ * throughput, client-side latency and the responses by status code.
+ * Without a URL it starts an HttpApi in the same process on a free port.
+ *
+ */
+
+public class HttpLoadTest{
+
+	/**
+	 * Books random pairs over HTTP and prints the results.
+	 *
+	 * @param args <dbname> <port> <user> <requests> [concurrency] [url]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + HttpLoadTest.class.getName () +
+		            " <dbname> <port> <user> <requests> [concurrency] [url]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		int requests = Integer.parseInt(args[3]);
+		int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		HttpApi api = null;
+		try{
+			String url;
+			if (args.length > 5){
+				url = args[5];
+			}else{
+				//queues every open request, so the server is measured rather than shedding
+				api = new HttpApi(esql, 0, Integer.getInteger("http.maxInFlight", 4 * esql.getPool().getMaxSize()),
+					Integer.getInteger("http.maxQueued", concurrency));
+				api.start();
+				url = "http://localhost:" + api.getPort();
+			}
+			List<List<String>> customers = esql.executeQueryAndReturnResult("SELECT id FROM Customer");
+			List<List<String>> cruises = esql.executeQueryAndReturnResult("SELECT cnum FROM Cruise");
+
+			HttpClient client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(10))
+				.build();
+			URI bookings = URI.create(url + "/bookings");
+			Semaphore open = new Semaphore(concurrency);
+			LatencyHistogram latency = new LatencyHistogram();
+			Map<Integer, LongAdder> byStatus = new ConcurrentHashMap<Integer, LongAdder>();
+			LongAdder failures = new LongAdder();
+			Random random = new Random(42);
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+
+			long start = System.nanoTime();
+			for (int i = 0; i < requests; ++i){
+				String body = "{\"customer\":" + customers.get(random.nextInt(customers.size())).get(0) +
+					",\"cruise\":" + cruises.get(random.nextInt(cruises.size())).get(0) + "}";
+				HttpRequest request = HttpRequest.newBuilder(bookings)
+					.timeout(Duration.ofSeconds(30))
+					.header("Content-Type", "application/json")
+					.POST(HttpRequest.BodyPublishers.ofString(body))
+					.build();
+				open.acquire();
+				long sent = System.nanoTime();
+				futures[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+					.handle((response, error) -> {
+						latency.record(System.nanoTime() - sent);
+						if (error != null)
+							failures.increment();
+						else
+							byStatus.computeIfAbsent(response.statusCode(), s -> new LongAdder()).increment();
+						open.release();
+						return null;
+					});
+			}
+			CompletableFuture.allOf(futures).join();
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+			for (Map.Entry<Integer, LongAdder> e : byStatus.entrySet())
+				statuses.put(e.getKey(), e.getValue().sum());
+			System.out.println(String.format("%d requests, %d concurrent, %.2fs, %.0f requests/s",
+				requests, concurrency, seconds, requests / seconds));
+			System.out.println("responses by status " + statuses + ", connection failures " + failures.sum());
+			System.out.println("client latency " + latency.summary());
+			HttpResponse<String> metrics = client.send(HttpRequest.newBuilder(URI.create(url + "/metrics")).build(),
+				HttpResponse.BodyHandlers.ofString());
+			System.out.print(metrics.body());
+		}finally{
+			if (api != null)
+				api.close();
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Open-addressing int map
+ * =======================
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * This class maps int keys to int values with open addressing and linear
+ * probing in two int arrays, so an entry costs 8 bytes at most twice over
+ * and nothing is boxed.  Keys are ids &gt;= 0; get() answers NONE for a
+ * missing key.  It is not thread safe; ReservationIndex and
+ * CruiseSearchIndex use it under their own locks.
+ *
+ */
+
+final class IntIntMap{
+	//returned by get() for a missing key
+	static final int NONE = -1;
+	private static final int EMPTY = Integer.MIN_VALUE;
+	int[] keys;
+	int[] values;
+	int size;
+
+	IntIntMap(int expected){
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	private static int slot(int key, int mask){
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	int get(int key){
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask){
+			if (keys[i] == key)
+				return values[i];
+		}
+		return NONE;
+	}
+
+	void put(int key, int value){
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == EMPTY)
+			++size;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private void grow(){
+		int[] oldKeys = keys, oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; ++i){
+			if (oldKeys[i] != EMPTY)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	long bytes(){
+		return 8L * keys.length;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Array-backed interval trees
+ * ===========================
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * This class holds one interval tree per group (a ship or captain) in
+ * shared int arrays, so millions of intervals cost six ints a node and no
+ * objects.  Each tree is a treap ordered by (start, node) whose nodes keep
+ * the largest end in their subtree, so the intervals overlapping a window
+ * are found in O(log n + hits).  A node's priority is a hash of its number,
+ * which makes the trees balanced in expectation whatever the insertion
+ * order, and lets build() turn an already sorted group into a tree in
+ * linear time.  Intervals are [start, end) days, copied into the node so
+ * a query reads nothing but these arrays.  It is not thread safe;
+ * ScheduleConflicts uses it under its own lock.
+ *
+ */
+
+final class IntervalForest{
+	static final int NIL = -1;
+
+	//per node: the interval it holds, its children and the largest end below it
+	int[] ref, left, right, maxEnd;
+	//per node: the interval's days, copied so queries stay in these arrays
+	int[] start, end;
+	int size = 0;
+	//root per group, NIL for an empty group
+	int[] roots = new int[0];
+
+	IntervalForest(int capacity){
+		capacity = Math.max(16, capacity);
+		ref = new int[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		maxEnd = new int[capacity];
+		start = new int[capacity];
+		end = new int[capacity];
+	}
+
+	/**
+	 * Visits one overlapping interval.
+	 */
+	interface Visitor{
+		void visit(int ref);
+	}
+
+	private static int priority(int node){
+		int h = node * 0x9E3779B9;
+		return h ^ (h >>> 15);
+	}
+
+	int node(int ref, int s, int e){
+		if (size == this.ref.length){
+			int capacity = size * 2;
+			this.ref = Arrays.copyOf(this.ref, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			maxEnd = Arrays.copyOf(maxEnd, capacity);
+			start = Arrays.copyOf(start, capacity);
+			end = Arrays.copyOf(end, capacity);
+		}
+		int n = size++;
+		this.ref[n] = ref;
+		left[n] = right[n] = NIL;
+		start[n] = s;
+		end[n] = maxEnd[n] = e;
+		return n;
+	}
+
+	private void ensureGroup(int group){
+		if (group >= roots.length){
+			int old = roots.length;
+			roots = Arrays.copyOf(roots, Math.max(group + 1, old * 2));
+			Arrays.fill(roots, old, roots.length, NIL);
+		}
+	}
+
+	/**
+	 * Method to make the tree of an empty group from nodes first..last-1,
+	 * which must already be in (start, node) order.
+	 */
+	void build(int group, int first, int last){
+		ensureGroup(group);
+		if (first == last)
+			return;
+		// the Cartesian tree of the priorities over the sorted nodes is the treap
+		int[] stack = new int[last - first];
+		int top = -1;
+		for (int x = first; x < last; ++x){
+			int below = NIL;
+			while (top >= 0 && priority(stack[top]) < priority(x))
+				below = stack[top--];
+			left[x] = below;
+			if (top >= 0)
+				right[stack[top]] = x;
+			stack[++top] = x;
+		}
+		roots[group] = stack[0];
+		fix(stack[0]);
+	}
+
+	private int fix(int n){
+		int m = end[n];
+		if (left[n] != NIL)
+			m = Math.max(m, fix(left[n]));
+		if (right[n] != NIL)
+			m = Math.max(m, fix(right[n]));
+		return maxEnd[n] = m;
+	}
+
+	private void update(int n){
+		int m = end[n];
+		if (left[n] != NIL && maxEnd[left[n]] > m)
+			m = maxEnd[left[n]];
+		if (right[n] != NIL && maxEnd[right[n]] > m)
+			m = maxEnd[right[n]];
+		maxEnd[n] = m;
+	}
+
+	/**
+	 * Method to add a node made by node() to a group's tree.
+	 */
+	void insert(int group, int n){
+		ensureGroup(group);
+		roots[group] = insertAt(roots[group], n);
+	}
+
+	private int insertAt(int t, int n){
+		if (t == NIL)
+			return n;
+		if (start[n] < start[t] || (start[n] == start[t] && n < t)){
+			left[t] = insertAt(left[t], n);
+			if (priority(left[t]) > priority(t)){
+				int l = left[t];
+				left[t] = right[l];
+				right[l] = t;
+				update(t);
+				t = l;
+			}
+		}else{
+			right[t] = insertAt(right[t], n);
+			if (priority(right[t]) > priority(t)){
+				int r = right[t];
+				right[t] = left[r];
+				left[r] = t;
+				update(t);
+				t = r;
+			}
+		}
+		update(t);
+		return t;
+	}
+
+	/**
+	 * Method to visit every interval of a group that overlaps [from, to).
+	 */
+	void overlapping(int group, int from, int to, Visitor visitor){
+		if (group < roots.length)
+			visit(roots[group], from, to, visitor);
+	}
+
+	private void visit(int t, int from, int to, Visitor visitor){
+		while (t != NIL && maxEnd[t] > from){
+			visit(left[t], from, to, visitor);
+			if (start[t] >= to)
+				return;
+			if (end[t] > from)
+				visitor.visit(ref[t]);
+			t = right[t];
+		}
+	}
+
+	/**
+	 * @return the bytes held by the node arrays
+	 */
+	long bytes(){
+		return 24L * ref.length + 4L * roots.length;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Minimal JSON helpers
+ * ====================
+ */
+
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class writes the few JSON shapes the script mode and the HTTP API
+ * produce and reads integer fields from flat request bodies, so the
+ * client needs no JSON library.
+ *
+ */
+
+public final class Json{
+
+	private Json(){
+	}
+
+	/**
+	 * @param value a string, or null
+	 * @return the value as a JSON string literal, or null
+	 */
+	public static String quote(String value){
+		if (value == null)
+			return "null";
+		StringBuilder s = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': s.append("\\\""); break;
+				case '\\': s.append("\\\\"); break;
+				case '\n': s.append("\\n"); break;
+				case '\r': s.append("\\r"); break;
+				case '\t': s.append("\\t"); break;
+				default:
+					if (c < 0x20)
+						s.append(String.format("\\u%04x", (int) c));
+					else
+						s.append(c);
+			}
+		}
+		return s.append('"').toString();
+	}
+
+	/**
+	 * Method to write query rows as an array of arrays of strings, with
+	 * the blank padding of CHAR columns removed.
+	 *
+	 * @param rows the rows, e.g. from DBproject.executeQueryAndReturnResult
+	 * @return the JSON array
+	 */
+	public static String rows(List<List<String>> rows){
+		StringBuilder s = new StringBuilder(32 + rows.size() * 32).append('[');
+		for (int j = 0; j < rows.size(); ++j){
+			s.append(j == 0 ? "[" : ",[");
+			List<String> row = rows.get(j);
+			for (int i = 0; i < row.size(); ++i)
+				s.append(i == 0 ? "" : ",").append(quote(row.get(i) == null ? null : row.get(i).trim()));
+			s.append(']');
+		}
+		return s.append(']').toString();
+	}
+
+	/**
+	 * Method to read an integer field of a flat JSON object such as
+	 * {"customer": 42, "cruise": 1907}.
+	 *
+	 * @param body the JSON text
+	 * @param name the field name
+	 * @return the value, or null when the field is missing or not an integer
+	 */
+	public static Integer intField(String body, String name){
+		Matcher m = Pattern.compile("\"" + Pattern.quote(name) + "\"\\s*:\\s*\"?(-?\\d{1,10})\"?").matcher(body);
+		if (!m.find())
+			return null;
+		long value = Long.parseLong(m.group(1));
+		return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? null : (int) value;
+	}
+}
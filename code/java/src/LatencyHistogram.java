@@ -0,0 +1,136 @@
+/*
+ * Latency histogram
+ * =================
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in nanoseconds into log-linear buckets, the
+ * same layout HdrHistogram uses: every power of two is split into 32 equal
+ * sub-buckets, so a percentile is reported within about 3% of the real value.
+ * Recording is lock-free and does not allocate, so it can sit on hot paths
+ * that many threads share.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (65 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Method to record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos){
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	static int indexOf(long v){
+		if (v < 2 * SUB)
+			return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return (shift + 1) * SUB + (int) (v >>> shift) - SUB;
+	}
+
+	//highest value that falls into the bucket
+	static long valueOf(int index){
+		if (index < 2 * SUB)
+			return index;
+		int shift = index / SUB - 1;
+		long lower = (long) (index % SUB + SUB) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	public long getSum(){
+		return sum.get();
+	}
+
+	public double getMean(){
+		long c = count.get();
+		return c == 0 ? 0.0 : (double) sum.get() / c;
+	}
+
+	/**
+	 * Method to compute a percentile of the recorded latencies.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in nanoseconds at that percentile, 0 if nothing was recorded
+	 */
+	public long percentile(double percentile){
+		long c = count.get();
+		if (c == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * c));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(valueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Method to clear every recorded value.
+	 */
+	public void reset(){
+		for (int i = 0; i < BUCKETS; ++i)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Method to add every value recorded in another histogram to this one.
+	 *
+	 * @param other the histogram to add
+	 */
+	public void add(LatencyHistogram other){
+		for (int i = 0; i < BUCKETS; ++i){
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.addAndGet(i, n);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m = other.max.get();
+		long cur = max.get();
+		while (m > cur && !max.compareAndSet(cur, m))
+			cur = max.get();
+	}
+
+	/**
+	 * @return count, mean and the usual percentiles in milliseconds
+	 */
+	public String summary(){
+		return String.format("n=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+			getCount(), getMean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+			percentile(99) / 1e6, percentile(99.9) / 1e6, getMax() / 1e6);
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Benchmarks for the menu operations
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures every operation behind the DBproject menu against a
+ * live database: add ship/captain/cruise, book cruise (new reservation,
+ * R to C upgrade, waitlist), available seats, repairs per ship, passengers
+ * by status and print reservations.  Each benchmark runs a warm-up of a
+ * tenth of its operations, then the measured operations spread over the
+ * requested number of threads, and reports throughput and latency
+ * percentiles.  The database can be re-seeded from code/data first, with
+ * every table replicated scale times under shifted ids.
+ *
+ * Rows created by the benchmarks use ids above the existing ones and are
+ * deleted afterwards.
+ *
+ */
+
+public class MenuBenchmark{
+
+	/**
+	 * One benchmarked operation; i is unique across threads and runs from 0
+	 * to the number of warm-up plus measured operations.
+	 */
+	interface Op{
+		void run(int i) throws Exception;
+	}
+
+	//seats of the ship the booking benchmarks use; the _SEATS domain maximum
+	private static final int BENCH_SEATS = 499;
+	//id shift between replicated copies of the seed data
+	static final int SCALE_ID_OFFSET = 100000;
+
+	private final DBproject esql;
+	private final int threads;
+	private final int ops;
+	private final int total;
+
+	private int[] customers;
+	private String[][] names;
+	private int[] cruises;
+	private int captain;
+	private int shipBase, captainBase, cruiseBase, ciidBase;
+	private final AtomicInteger nextShip = new AtomicInteger();
+	private final AtomicInteger nextCaptain = new AtomicInteger();
+	private final AtomicInteger nextCruise = new AtomicInteger();
+	private int benchShip;
+	private int[] openCruises;
+	private int[] fullCruises;
+	private int perCruise;
+
+	public MenuBenchmark(DBproject esql, int threads, int ops){
+		this.esql = esql;
+		this.threads = Math.max(1, threads);
+		this.ops = Math.max(1, ops);
+		this.total = this.ops + this.ops / 10;
+	}
+
+	/**
+	 * Method to run one benchmark and print its results.
+	 *
+	 * @param name the benchmark name
+	 * @param op the operation
+	 * @return the measured latencies
+	 */
+	public LatencyHistogram run(String name, Op op) throws InterruptedException {
+		int warmup = total - ops;
+		drive(op, 0, warmup, null);
+		LatencyHistogram latency = new LatencyHistogram();
+		long start = System.nanoTime();
+		long errors = drive(op, warmup, total, latency);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-20s %10.1f ops/s  errors=%d  %s",
+			name, latency.getCount() / seconds, errors, latency.summary()));
+		return latency;
+	}
+
+	private long drive(Op op, int from, int to, LatencyHistogram latency) throws InterruptedException {
+		AtomicInteger next = new AtomicInteger(from);
+		AtomicLong errors = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t){
+			workers[t] = new Thread(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < to){
+					long start = System.nanoTime();
+					try{
+						op.run(i);
+						if (latency != null)
+							latency.record(System.nanoTime() - start);
+					}catch (Exception e){
+						if (errors.getAndIncrement() == 0)
+							System.err.println(e.getMessage());
+					}
+				}
+			}, "bench-" + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		return errors.get();
+	}
+
+	/**
+	 * Method to read the ids the benchmarks draw from and create the ship
+	 * and cruises the booking benchmarks book on.
+	 */
+	public void setUp() throws SQLException {
+		List<Integer> ids = new ArrayList<Integer>();
+		List<String[]> people = new ArrayList<String[]>();
+		esql.streamQuery("SELECT id, fname, lname FROM Customer ORDER BY id", DBproject.FETCH_SIZE, rs -> {
+			ids.add(rs.getInt(1));
+			people.add(new String[]{ rs.getString(2).trim(), rs.getString(3).trim() });
+		});
+		customers = toArray(ids);
+		names = people.toArray(new String[0][]);
+		ids.clear();
+		esql.streamQuery("SELECT cnum FROM Cruise ORDER BY cnum", DBproject.FETCH_SIZE, rs -> ids.add(rs.getInt(1)));
+		cruises = toArray(ids);
+		if (customers.length == 0 || cruises.length == 0)
+			throw new SQLException("The database has no customers or cruises; seed it first");
+
+		captain = intValue("SELECT MIN(id) FROM Captain");
+		shipBase = intValue("SELECT COALESCE(MAX(id), 0) + 1 FROM Ship");
+		captainBase = intValue("SELECT COALESCE(MAX(id), 0) + 1 FROM Captain");
+		cruiseBase = intValue("SELECT COALESCE(MAX(cnum), 0) + 1 FROM Cruise");
+		ciidBase = intValue("SELECT COALESCE(MAX(ciid), 0) + 1 FROM CruiseInfo");
+		nextShip.set(shipBase);
+		nextCaptain.set(captainBase);
+		nextCruise.set(cruiseBase);
+
+		benchShip = nextShip.getAndIncrement();
+		esql.addShip(benchShip, "Bench", "BenchLiner", 1, BENCH_SEATS);
+
+		// every (customer, cruise) pair is booked once, so each open cruise
+		// takes at most one reservation per customer and never fills up
+		perCruise = Math.min(customers.length, BENCH_SEATS);
+		openCruises = benchCruises(total / perCruise + 1, 0);
+		fullCruises = benchCruises(total / customers.length + 1, BENCH_SEATS);
+	}
+
+	private int[] benchCruises(int count, int sold) throws SQLException {
+		int[] cnums = new int[count];
+		for (int i = 0; i < count; ++i){
+			int cnum = nextCruise.getAndIncrement();
+			esql.addCruise(cnum, 100, sold, 0, "01/01/2030", "08/01/2030", "BENCH", "BENCH");
+			esql.executeUpdate("INSERT INTO CruiseInfo VALUES(?, ?, ?, ?)", ciidBase + cnum - cruiseBase, cnum, captain, benchShip);
+			cnums[i] = cnum;
+		}
+		//the ship is only known once CruiseInfo is in
+		esql.added("Cruise", cnums);
+		return cnums;
+	}
+
+	/**
+	 * Method to delete every row the benchmarks created.
+	 */
+	public void tearDown() throws SQLException {
+		esql.executeUpdate("DELETE FROM Reservation WHERE cid >= ?", cruiseBase);
+		esql.executeUpdate("DELETE FROM CruiseInfo WHERE ciid >= ?", ciidBase);
+		esql.executeUpdate("DELETE FROM Cruise WHERE cnum >= ?", cruiseBase);
+		esql.executeUpdate("DELETE FROM Ship WHERE id >= ?", shipBase);
+		esql.executeUpdate("DELETE FROM Captain WHERE id >= ?", captainBase);
+		esql.reloadCaches();
+	}
+
+	private int intValue(String sql) throws SQLException {
+		return Integer.parseInt(esql.executeQueryAndReturnResult(sql).get(0).get(0));
+	}
+
+	private static int[] toArray(List<Integer> list){
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; ++i)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	private int randomCruise(){
+		return cruises[ThreadLocalRandom.current().nextInt(cruises.length)];
+	}
+
+	/**
+	 * Method to run the selected benchmarks in menu order.
+	 *
+	 * @param only the benchmark names to run, or null for all of them
+	 */
+	public void runAll(Set<String> only) throws Exception {
+		setUp();
+		try{
+			if (selected(only, "addShip"))
+				run("addShip", i -> esql.addShip(nextShip.getAndIncrement(), "Bench", "BenchLiner", 1, 100));
+			if (selected(only, "addCaptain"))
+				run("addCaptain", i -> esql.addCaptain(nextCaptain.getAndIncrement(), "Bench Captain", "Nowhere"));
+			if (selected(only, "addCruise"))
+				run("addCruise", i -> esql.addCruise(nextCruise.getAndIncrement(), 100, 0, 0, "01/01/2030", "08/01/2030", "BENCH", "BENCH"));
+			boolean booked = selected(only, "bookNew");
+			if (booked)
+				run("bookNew", i -> esql.bookCruise(customers[i % perCruise], openCruises[i / perCruise]));
+			// re-booking the pairs booked above moves each of them from R to C
+			if (booked && selected(only, "bookUpgrade"))
+				run("bookUpgrade", i -> esql.bookCruise(customers[i % perCruise], openCruises[i / perCruise]));
+			if (selected(only, "bookWaitlist"))
+				run("bookWaitlist", i -> esql.bookCruise(customers[i % customers.length], fullCruises[i / customers.length]));
+			if (selected(only, "availableSeats"))
+				run("availableSeats", i -> esql.availableSeats(randomCruise()));
+			if (selected(only, "repairsPerShip"))
+				run("repairsPerShip", i -> esql.executeQueryAndReturnResult(DBproject.REPAIRS_PER_SHIP_SQL));
+			if (selected(only, "passengersByStatus")){
+				String[] statuses = { "W", "R", "C" };
+				run("passengersByStatus", i -> esql.executeQueryAndReturnResult(DBproject.PASSENGERS_WITH_STATUS_SQL, statuses[i % 3]));
+			}
+			if (selected(only, "printReservations"))
+				run("printReservations", i -> {
+					String[] name = names[ThreadLocalRandom.current().nextInt(names.length)];
+					esql.streamQuery(DBproject.RESERVATIONS_BY_NAME_SQL, DBproject.FETCH_SIZE, rs -> {
+						for (int c = 1, n = rs.getMetaData().getColumnCount(); c <= n; ++c)
+							rs.getString(c);
+					}, name[0], name[1]);
+				});
+		}finally{
+			tearDown();
+		}
+	}
+
+	private static boolean selected(Set<String> only, String name){
+		return only == null || only.contains(name);
+	}
+
+	/**
+	 * Method to re-seed the database from a directory of CSV files, loading
+	 * scale copies of every table.  Copy k shifts every id and foreign key
+	 * by k * SCALE_ID_OFFSET so the copies do not collide and keep their
+	 * references.
+	 *
+	 * @param dir the directory holding the CSV files
+	 * @param scale the number of copies
+	 */
+	public static void seed(DBproject esql, File dir, int scale) throws SQLException, IOException {
+		BulkLoader loader = new BulkLoader(esql.getPool());
+		loader.truncateAll();
+		loader.loadAll(spec -> {
+			long start = System.nanoTime();
+			long rows = loader.copyRows(spec, new ScaledRows(new File(dir, spec.file), scale, idColumns(spec.table)));
+			BulkLoader.report(spec.table, rows, System.nanoTime() - start);
+			return rows;
+		});
+		esql.reloadCaches();
+	}
+
+	//positions of the id and foreign key columns in each CSV file
+	static int[] idColumns(String table){
+		if (table.equals("Reservation"))
+			return new int[]{ 0, 1, 2 };
+		if (table.equals("CruiseInfo"))
+			return new int[]{ 0, 1, 2, 3 };
+		if (table.equals("Repairs"))
+			return new int[]{ 0, 3, 4, 5 };
+		if (table.equals("Schedule"))
+			return new int[]{ 0, 1 };
+		return new int[]{ 0 };
+	}
+
+	/**
+	 * Rows of a CSV file repeated scale times with shifted ids.
+	 */
+	static final class ScaledRows implements BulkLoader.RowWriter{
+		private final File file;
+		private final int scale;
+		private final int[] idColumns;
+		private BufferedReader reader;
+		private int copy = -1;
+
+		ScaledRows(File file, int scale, int[] idColumns){
+			this.file = file;
+			this.scale = scale;
+			this.idColumns = idColumns;
+		}
+
+		public boolean next(StringBuilder row) throws IOException {
+			String line = null;
+			while (line == null){
+				if (reader != null)
+					line = reader.readLine();
+				if (line == null){
+					if (reader != null)
+						reader.close();
+					if (++copy >= scale)
+						return false;
+					reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+				}
+			}
+			if (copy == 0){
+				row.append(line);
+				return true;
+			}
+			String[] fields = line.split(",", -1);
+			for (int c : idColumns)
+				fields[c] = Integer.toString(Integer.parseInt(fields[c].trim()) + copy * SCALE_ID_OFFSET);
+			for (int i = 0; i < fields.length; ++i){
+				if (i > 0)
+					row.append(',');
+				row.append(fields[i]);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args <dbname> <port> <user> [--threads N] [--ops N] [--seed datadir] [--scale K]
+	 *             [--generate SF] [--only name,...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + MenuBenchmark.class.getName () +
+		            " <dbname> <port> <user> [--threads N] [--ops N] [--seed datadir] [--scale K] [--generate SF] [--only name,...]");
+			return;
+		}//end if
+		int threads = 1, ops = 1000, scale = 1;
+		double generate = 0;
+		String seedDir = null;
+		Set<String> only = null;
+		for (int i = 3; i + 1 < args.length; i += 2){
+			if (args[i].equals("--threads")) threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--ops")) ops = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--scale")) scale = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--seed")) seedDir = args[i + 1];
+			else if (args[i].equals("--generate")) generate = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("--only")) only = new HashSet<String>(Arrays.asList(args[i + 1].split(",")));
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			if (seedDir != null)
+				seed(esql, new File(seedDir), scale);
+			else if (generate > 0){
+				new DataGenerator(166, generate).load(new BulkLoader(esql.getPool()));
+				esql.reloadCaches();
+			}
+			System.out.println("threads=" + threads + " ops=" + ops + " seats.mode=" + esql.getSeatCache().getMode());
+			new MenuBenchmark(esql, threads, ops).runAll(only);
+			System.out.println(esql.getPool().stats());
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Database operation metrics
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects timings for every statement the client runs and for
+ * every business operation (a menu choice, a script command, an HTTP
+ * request).  Per query template, i.e. per SQL string with ? placeholders,
+ * it keeps a latency histogram, the rows fetched or changed and the
+ * errors; per operation it keeps a latency histogram and the number of
+ * round trips the operation needed.  Failures are also counted by
+ * SQLState, and the bytes of printed results are counted.
+ *
+ * Recording looks the template up in a concurrent map and updates atomic
+ * counters, so after the first use of a template nothing is allocated.
+ * The operation in progress on a thread is kept in a per-thread context
+ * object reused for every operation on that thread.
+ *
+ * The metrics can be dumped as text at a fixed interval (metrics.dumpSeconds)
+ * and written in the Prometheus text format to a file (metrics.prometheusFile)
+ * on the same interval, for a node exporter textfile collector to pick up.
+ *
+ */
+
+public final class Metrics{
+
+	private Metrics(){
+	}
+
+	//one SQL string with ? placeholders
+	private static final class Template{
+		final String sql;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Template(String sql){
+			this.sql = sql;
+		}
+	}
+
+	//one kind of business operation
+	private static final class Operation{
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder roundTrips = new LongAdder();
+		final AtomicLong maxRoundTrips = new AtomicLong();
+		final LongAdder failed = new LongAdder();
+
+		Operation(String name){
+			this.name = name;
+		}
+	}
+
+	//the operation running on a thread; reused for each operation on that thread
+	private static final class Context{
+		Operation operation;
+		int depth;
+		long start;
+		int roundTrips;
+		boolean failed;
+	}
+
+	private static final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	private static final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	private static final ConcurrentHashMap<String, LongAdder> errorsByState = new ConcurrentHashMap<String, LongAdder>();
+	private static final LongAdder bytesPrinted = new LongAdder();
+	private static final ThreadLocal<Context> context = ThreadLocal.withInitial(Context::new);
+
+	private static ScheduledExecutorService reporter = null;
+
+	private static Template template(String sql){
+		Template t = templates.get(sql);
+		return t != null ? t : templates.computeIfAbsent(sql, Template::new);
+	}
+
+	/**
+	 * Method to record one execution of a statement, i.e. one round trip.
+	 *
+	 * @param sql the statement text, with ? placeholders
+	 * @param startNanos System.nanoTime() before the statement was sent
+	 * @param rows the rows changed, or 0 when the caller counts fetched rows itself
+	 */
+	public static void executed(String sql, long startNanos, long rows){
+		Template t = template(sql);
+		t.latency.record(System.nanoTime() - startNanos);
+		if (rows > 0)
+			t.rows.add(rows);
+		roundTrips(1);
+	}
+
+	/**
+	 * Method to record the rows read from a statement's result.  A result
+	 * read through a cursor costs one more round trip per fetchSize rows.
+	 *
+	 * @param sql the statement text, with ? placeholders
+	 * @param rows the rows read
+	 * @param fetchSize the cursor fetch size, or 0 when the result was read at once
+	 */
+	public static void fetched(String sql, long rows, int fetchSize){
+		template(sql).rows.add(rows);
+		if (fetchSize > 0)
+			roundTrips((int) (rows / fetchSize));
+	}
+
+	/**
+	 * Method to record a failed statement.
+	 *
+	 * @param sql the statement text, with ? placeholders
+	 * @param e the failure
+	 */
+	public static void failed(String sql, SQLException e){
+		template(sql).errors.increment();
+		String state = e.getSQLState() == null ? "none" : e.getSQLState();
+		LongAdder n = errorsByState.get(state);
+		if (n == null)
+			n = errorsByState.computeIfAbsent(state, s -> new LongAdder());
+		n.increment();
+		Context c = context.get();
+		if (c.operation != null)
+			c.failed = true;
+	}
+
+	private static void roundTrips(int n){
+		Context c = context.get();
+		if (c.operation != null)
+			c.roundTrips += n;
+	}
+
+	public static void printed(long bytes){
+		bytesPrinted.add(bytes);
+	}
+
+	/**
+	 * Method to start timing a business operation on the calling thread.
+	 * Operations started inside another one are counted as part of it.
+	 *
+	 * @param name the operation, e.g. BookCruise
+	 */
+	public static void begin(String name){
+		Context c = context.get();
+		if (c.depth++ > 0)
+			return;
+		Operation op = operations.get(name);
+		c.operation = op != null ? op : operations.computeIfAbsent(name, Operation::new);
+		c.start = System.nanoTime();
+		c.roundTrips = 0;
+		c.failed = false;
+	}
+
+	/**
+	 * Method to finish the operation started by begin() on this thread.
+	 */
+	public static void end(){
+		Context c = context.get();
+		if (c.depth == 0 || --c.depth > 0)
+			return;
+		Operation op = c.operation;
+		c.operation = null;
+		op.latency.record(System.nanoTime() - c.start);
+		op.roundTrips.add(c.roundTrips);
+		long m = op.maxRoundTrips.get();
+		while (c.roundTrips > m && !op.maxRoundTrips.compareAndSet(m, c.roundTrips))
+			m = op.maxRoundTrips.get();
+		if (c.failed)
+			op.failed.increment();
+	}
+
+	/**
+	 * @return every metric as text, slowest templates first
+	 */
+	public static String dump(){
+		StringBuilder s = new StringBuilder(2048);
+		s.append("operations:\n");
+		for (Operation op : new TreeMap<String, Operation>(operations).values()){
+			long n = op.latency.getCount();
+			s.append(String.format("  %-24s failed=%d roundTrips avg=%.1f max=%d %s%n", op.name, op.failed.sum(),
+				n == 0 ? 0.0 : (double) op.roundTrips.sum() / n, op.maxRoundTrips.get(), op.latency.summary()));
+		}
+		s.append("queries:\n");
+		Template[] sorted = templates.values().toArray(new Template[0]);
+		Arrays.sort(sorted, (a, b) -> Long.compare(b.latency.getSum(), a.latency.getSum()));
+		for (Template t : sorted)
+			s.append(String.format("  rows=%d errors=%d %s%n    %s%n", t.rows.sum(), t.errors.sum(), t.latency.summary(), t.sql));
+		s.append("errors by SQLState: ").append(errorsByState()).append('\n');
+		s.append("bytes printed: ").append(bytesPrinted.sum()).append('\n');
+		return s.toString();
+	}
+
+	private static Map<String, Long> errorsByState(){
+		Map<String, Long> states = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : errorsByState.entrySet())
+			states.put(e.getKey(), e.getValue().sum());
+		return states;
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	public static String prometheus(){
+		StringBuilder s = new StringBuilder(4096);
+		s.append("# TYPE cruise_query_seconds summary\n");
+		for (Template t : templates.values())
+			summary(s, "cruise_query_seconds", "query", t.sql, t.latency);
+		s.append("# TYPE cruise_query_rows_total counter\n");
+		for (Template t : templates.values())
+			s.append("cruise_query_rows_total{query=").append(label(t.sql)).append("} ").append(t.rows.sum()).append('\n');
+		s.append("# TYPE cruise_query_errors_total counter\n");
+		for (Template t : templates.values())
+			s.append("cruise_query_errors_total{query=").append(label(t.sql)).append("} ").append(t.errors.sum()).append('\n');
+		s.append("# TYPE cruise_operation_seconds summary\n");
+		for (Operation op : operations.values())
+			summary(s, "cruise_operation_seconds", "operation", op.name, op.latency);
+		s.append("# TYPE cruise_operation_round_trips_total counter\n");
+		for (Operation op : operations.values())
+			s.append("cruise_operation_round_trips_total{operation=").append(label(op.name)).append("} ").append(op.roundTrips.sum()).append('\n');
+		s.append("# TYPE cruise_operation_failures_total counter\n");
+		for (Operation op : operations.values())
+			s.append("cruise_operation_failures_total{operation=").append(label(op.name)).append("} ").append(op.failed.sum()).append('\n');
+		s.append("# TYPE cruise_sql_errors_total counter\n");
+		for (Map.Entry<String, Long> e : errorsByState().entrySet())
+			s.append("cruise_sql_errors_total{sqlstate=").append(label(e.getKey())).append("} ").append(e.getValue()).append('\n');
+		s.append("# TYPE cruise_printed_bytes_total counter\n");
+		s.append("cruise_printed_bytes_total ").append(bytesPrinted.sum()).append('\n');
+		return s.toString();
+	}
+
+	private static void summary(StringBuilder s, String metric, String key, String value, LatencyHistogram h){
+		String l = label(value);
+		for (double q : new double[]{0.5, 0.9, 0.99, 0.999})
+			s.append(metric).append('{').append(key).append('=').append(l).append(",quantile=\"").append(q).append("\"} ")
+				.append(h.percentile(q * 100) / 1e9).append('\n');
+		s.append(metric).append("_sum{").append(key).append('=').append(l).append("} ").append(h.getSum() / 1e9).append('\n');
+		s.append(metric).append("_count{").append(key).append('=').append(l).append("} ").append(h.getCount()).append('\n');
+	}
+
+	private static String label(String value){
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+
+	/**
+	 * Method to start the periodic text dump to standard error
+	 * (metrics.dumpSeconds, 0 for none) and the Prometheus file
+	 * (metrics.prometheusFile, rewritten every metrics.intervalSeconds,
+	 * default 10).  Calling it again has no effect.
+	 */
+	public static synchronized void startReporting(){
+		long dumpSeconds = Long.getLong("metrics.dumpSeconds", 0L);
+		String file = System.getProperty("metrics.prometheusFile");
+		if (reporter != null || (dumpSeconds <= 0 && file == null))
+			return;
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		if (dumpSeconds > 0)
+			reporter.scheduleAtFixedRate(() -> System.err.print(dump()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+		if (file != null){
+			long interval = Long.getLong("metrics.intervalSeconds", 10L);
+			reporter.scheduleAtFixedRate(() -> writePrometheus(Paths.get(file)), interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Method to replace a file with the Prometheus metrics, through a
+	 * temporary file so a reader never sees half of it.
+	 *
+	 * @param file the target file
+	 */
+	public static void writePrometheus(Path file){
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try{
+			try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+				w.write(prometheus());
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch (IOException e){
+			System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Versioned schema migrations
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class applies the SQL files in code/sql/migrations on top of the
+ * schema built by create.sql.  A file named V&lt;version&gt;__&lt;name&gt;.sql
+ * is applied once, in version order, inside its own transaction, and
+ * recorded in the schema_migrations table with a checksum of its text.
+ * An advisory lock keeps two clients that start at the same time from
+ * applying the same migration twice.
+ *
+ * The check() method runs EXPLAIN on the queries behind the menu and
+ * reports the ones that still scan a whole table.
+ *
+ */
+
+public class Migrator{
+
+	private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+	//pg_advisory_lock key held while migrating
+	private static final long LOCK_KEY = 166011L;
+
+	/**
+	 * A migration file.
+	 */
+	public static final class Migration{
+		public final int version;
+		public final String name;
+		public final File file;
+
+		Migration(int version, String name, File file){
+			this.version = version;
+			this.name = name;
+			this.file = file;
+		}
+
+		public String toString(){
+			return "V" + version + "__" + name;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final File dir;
+
+	public Migrator(ConnectionPool pool, File dir){
+		this.pool = pool;
+		this.dir = dir;
+	}
+
+	/**
+	 * Method to build a migrator for the migrations.dir system property,
+	 * by default ../sql/migrations (relative to code/java, where run.sh runs).
+	 *
+	 * @param pool the pool to migrate through
+	 * @return the new migrator
+	 */
+	public static Migrator fromSystemProperties(ConnectionPool pool){
+		return new Migrator(pool, new File(System.getProperty("migrations.dir", "../sql/migrations")));
+	}
+
+	/**
+	 * @return the migration files in the directory, in version order
+	 */
+	public List<Migration> list(){
+		List<Migration> migrations = new ArrayList<Migration>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return migrations;
+		for (File f : files){
+			Matcher m = FILE_NAME.matcher(f.getName());
+			if (m.matches())
+				migrations.add(new Migration(Integer.parseInt(m.group(1)), m.group(2), f));
+		}
+		migrations.sort((a, b) -> Integer.compare(a.version, b.version));
+		for (int i = 1; i < migrations.size(); ++i){
+			if (migrations.get(i).version == migrations.get(i - 1).version)
+				throw new IllegalStateException("Two migrations with version " + migrations.get(i).version + " in " + dir);
+		}
+		return migrations;
+	}
+
+	/**
+	 * Method to apply every migration that has not been applied yet.
+	 *
+	 * @return the number of migrations applied by this call
+	 * @throws java.sql.SQLException when a migration fails; it is rolled back
+	 * @throws java.io.IOException when a migration file cannot be read
+	 */
+	public int migrate() throws SQLException, IOException {
+		List<Migration> migrations = list();
+		if (migrations.isEmpty()){
+			if (!dir.isDirectory())
+				System.out.println("No migrations directory at " + dir.getPath() + ", schema left as is");
+			return 0;
+		}
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		Connection c = conn.getConnection();
+		try (Statement stmt = c.createStatement()){
+			// locked first: two clients creating the table at once can fail on pg_type's unique index
+			stmt.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+			try{
+				stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+					"version INTEGER NOT NULL PRIMARY KEY, name TEXT NOT NULL, checksum CHAR(64) NOT NULL, " +
+					"applied_at TIMESTAMP NOT NULL DEFAULT now())");
+				Map<Integer, String> applied = applied(stmt);
+				int count = 0;
+				for (Migration m : migrations){
+					String sql = new String(Files.readAllBytes(m.file.toPath()), StandardCharsets.UTF_8);
+					String checksum = sha256(sql);
+					String previous = applied.get(m.version);
+					if (previous != null){
+						if (!previous.equals(checksum))
+							System.err.println("Warning: migration " + m + " changed after it was applied");
+						continue;
+					}
+					apply(c, stmt, m, sql, checksum);
+					++count;
+				}
+				return count;
+			}finally{
+				stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+			}
+		}finally{
+			pool.release(conn);
+		}
+	}//end migrate
+
+	private static Map<Integer, String> applied(Statement stmt) throws SQLException {
+		Map<Integer, String> applied = new HashMap<Integer, String>();
+		try (ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_migrations")){
+			while (rs.next())
+				applied.put(rs.getInt(1), rs.getString(2));
+		}
+		return applied;
+	}
+
+	private static void apply(Connection c, Statement stmt, Migration m, String sql, String checksum) throws SQLException {
+		long start = System.nanoTime();
+		c.setAutoCommit(false);
+		try{
+			stmt.execute(sql);
+			try (PreparedStatement record = c.prepareStatement(
+					"INSERT INTO schema_migrations (version, name, checksum) VALUES (?, ?, ?)")){
+				record.setInt(1, m.version);
+				record.setString(2, m.name);
+				record.setString(3, checksum);
+				record.executeUpdate();
+			}
+			c.commit();
+		}catch (SQLException e){
+			c.rollback();
+			throw new SQLException("Migration " + m + " failed: " + e.getMessage(), e.getSQLState(), e);
+		}finally{
+			c.setAutoCommit(true);
+		}
+		System.out.println(String.format("Applied migration %s in %.2fs", m, (System.nanoTime() - start) / 1e9));
+	}
+
+	private static String sha256(String text){
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		}catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A query checked by check(), the table it must not scan sequentially
+	 * and whether a sequential scan is a failure or only reported.
+	 */
+	private static final class CheckedQuery{
+		final String name;
+		final String sql;
+		final String table;
+		final boolean required;
+		final Object[] params;
+
+		CheckedQuery(String name, String sql, String table, boolean required, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.table = table;
+			this.required = required;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * Method to EXPLAIN the lookups behind the menu with parameters taken
+	 * from the loaded data and print each plan.  Load realistic volumes
+	 * first (e.g. DataGenerator at scale 120, about 1M reservations); on
+	 * the small sample data the planner prefers sequential scans anyway.
+	 * The two whole-table reports are printed but not counted as failures,
+	 * since reading every row is what they ask for.
+	 *
+	 * @return the number of required queries that scan a whole table
+	 * @throws java.sql.SQLException when a query cannot be explained
+	 */
+	public int check() throws SQLException {
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		try{
+			int ccid = 0, cid = 0, shipCruise = 0;
+			String fname = "", lname = "";
+			try (ResultSet rs = DBproject.query(conn, "SELECT ccid, cid FROM Reservation ORDER BY rnum LIMIT 1")){
+				if (rs.next()){
+					ccid = rs.getInt(1);
+					cid = rs.getInt(2);
+				}
+			}
+			try (ResultSet rs = DBproject.query(conn, "SELECT fname, lname FROM Customer WHERE id = ?", ccid)){
+				if (rs.next()){
+					fname = rs.getString(1).trim();
+					lname = rs.getString(2).trim();
+				}
+			}
+			try (ResultSet rs = DBproject.query(conn, "SELECT cruise_id FROM CruiseInfo ORDER BY ciid LIMIT 1")){
+				if (rs.next())
+					shipCruise = rs.getInt(1);
+			}
+
+			List<CheckedQuery> queries = Arrays.asList(
+				new CheckedQuery("book_cruise lookup", "SELECT rnum, status FROM Reservation WHERE ccid = ? AND cid = ? ORDER BY rnum LIMIT 1", "Reservation", true, ccid, cid),
+				new CheckedQuery("availableSeats", DBproject.AVAILABLE_SEATS_SQL, "CruiseInfo", true, shipCruise),
+				new CheckedQuery("Print", DBproject.RESERVATIONS_BY_NAME_SQL, "Customer", true, fname, lname),
+				new CheckedQuery("Print (reservations)", DBproject.RESERVATIONS_BY_NAME_SQL, "Reservation", true, fname, lname),
+				new CheckedQuery("waitlist of a cruise", "SELECT rnum, ccid FROM Reservation WHERE cid = ? AND status = 'W' ORDER BY rnum", "Reservation", true, cid),
+				new CheckedQuery("ListsTotalNumberOfRepairsPerShip", DBproject.REPAIRS_PER_SHIP_SQL, "Repairs", false),
+				new CheckedQuery("FindPassengersCountWithStatus", DBproject.PASSENGERS_WITH_STATUS_SQL, "Reservation", false, "W"));
+
+			int failures = 0;
+			for (CheckedQuery q : queries){
+				List<String> plan = new ArrayList<String>();
+				try (ResultSet rs = DBproject.query(conn, "EXPLAIN " + q.sql, q.params)){
+					while (rs.next())
+						plan.add(rs.getString(1));
+				}
+				boolean scans = false;
+				for (String line : plan){
+					if (line.contains("Seq Scan on " + q.table.toLowerCase()))
+						scans = true;
+				}
+				String verdict = !scans ? "OK" : q.required ? "FAIL" : "INFO";
+				if (scans && q.required)
+					++failures;
+				System.out.println(verdict + "  " + q.name + " (" + q.table + ")");
+				for (String line : plan)
+					System.out.println("      " + line);
+			}
+			System.out.println(failures == 0 ? "Every checked lookup uses an index" : failures + " lookup(s) scan a whole table");
+			return failures;
+		}finally{
+			pool.release(conn);
+		}
+	}//end check
+
+	/**
+	 * Applies pending migrations, then optionally checks the query plans.
+	 *
+	 * @param args <dbname> <port> <user> [--check]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + Migrator.class.getName () +
+		            " <dbname> <port> <user> [--check]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		// the DBproject constructor applies the pending migrations
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		int failures = 0;
+		try{
+			if (args.length > 3 && args[3].equals("--check"))
+				failures = fromSystemProperties(esql.getPool()).check();
+		}finally{
+			esql.cleanup();
+		}
+		if (failures > 0)
+			System.exit(1);
+	}
+}
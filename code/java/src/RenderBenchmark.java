@@ -0,0 +1,182 @@
+/*
+ * Benchmark for printing query results
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+/**
+ * This class prints one large result, shaped like the Print listing with
+ * blank padded CHAR columns, through each way the client has printed
+ * results and reports rows per second and bytes allocated per row:
+ *
+ *   stdout   System.out.print per column and println per row
+ *   writer   a 64 KB buffered PrintWriter, getString per column
+ *   aligned, csv, tsv   ResultRenderer
+ *
+ * Every run reads the rows through the same server-side cursor, so the
+ * differences are in the printing.  Output goes to a null stream unless
+ * --stdout is given, so the terminal does not set the pace.
+ *
+ */
+
+public class RenderBenchmark{
+
+	private static final String ROWS_SQL =
+		"SELECT g AS rnum, CAST('Jane' AS CHAR(24)) AS fname, CAST('Doe' AS CHAR(24)) AS lname, " +
+		"CAST('12 Harbor Way, Long Beach' AS CHAR(256)) AS address, CAST('+1 555 0100' AS CHAR(128)) AS phone, " +
+		"g % 5000 AS cid, CAST('R' AS CHAR(1)) AS status FROM generate_series(1, ?) g";
+
+	private static final String[] PATHS = {"stdout", "writer", "aligned", "csv", "tsv"};
+
+	private final DBproject esql;
+	private final int rows;
+	private final boolean toStdout;
+
+	public RenderBenchmark(DBproject esql, int rows, boolean toStdout){
+		this.esql = esql;
+		this.rows = rows;
+		this.toStdout = toStdout;
+	}
+
+	private OutputStream sink(){
+		return toStdout ? new FileOutputStream(FileDescriptor.out) : OutputStream.nullOutputStream();
+	}
+
+	/**
+	 * Method to print the result through one path and report the timing.
+	 *
+	 * @param path one of stdout, writer, aligned, csv or tsv
+	 * @param report false for a warm-up run
+	 */
+	public void run(String path, boolean report) throws Exception {
+		ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = threads.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		long printed;
+		try{
+			conn.getConnection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepare(ROWS_SQL);
+			DBproject.bind(stmt, rows);
+			stmt.setFetchSize(DBproject.FETCH_SIZE);
+			try (ResultSet rs = stmt.executeQuery()){
+				switch (path){
+					case "stdout": printed = printStdout(rs); break;
+					case "writer": printed = printWriter(rs); break;
+					default:
+						ResultRenderer renderer = new ResultRenderer(sink(), ResultRenderer.parseFormat(path), 1 << 16, DBproject.FETCH_SIZE);
+						printed = renderer.render(rs);
+				}
+			}
+		}finally{
+			esql.getPool().release(conn);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+		if (report)
+			System.err.println(String.format("%-8s %d rows in %.2fs, %.0f rows/s, %.0f bytes allocated per row",
+				path, printed, seconds, printed / seconds, (double) allocated / Math.max(1, printed)));
+	}
+
+	//the original loop: a print per column on a System.out-like stream
+	private long printStdout(ResultSet rs) throws Exception {
+		PrintStream ps = new PrintStream(new BufferedOutputStream(sink(), 8192), true);
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		long rowCount = 0;
+		boolean outputHeader = true;
+		while (rs.next()){
+			if (outputHeader){
+				for (int i = 1; i <= numCol; i++)
+					ps.print(rsmd.getColumnName(i) + "\t");
+				ps.println();
+				outputHeader = false;
+			}
+			for (int i = 1; i <= numCol; ++i)
+				ps.print(rs.getString(i) + "\t");
+			ps.println();
+			++rowCount;
+		}
+		ps.flush();
+		return rowCount;
+	}
+
+	//the buffered writer path printResult used before ResultRenderer
+	private long printWriter(ResultSet rs) throws Exception {
+		PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(sink()), 1 << 16), false);
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		long rowCount = 0;
+		boolean outputHeader = true;
+		while (rs.next()){
+			if (outputHeader){
+				for (int i = 1; i <= numCol; i++){
+					pw.print(rsmd.getColumnName(i));
+					pw.print('\t');
+				}
+				pw.println();
+				outputHeader = false;
+			}
+			for (int i = 1; i <= numCol; ++i){
+				pw.print(rs.getString(i));
+				pw.print('\t');
+			}
+			pw.println();
+			++rowCount;
+		}
+		pw.flush();
+		return rowCount;
+	}
+
+	/**
+	 * Prints the same result through every path, or the given ones.
+	 *
+	 * @param args <dbname> <port> <user> [rows] [--stdout] [path,...]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + RenderBenchmark.class.getName () +
+		            " <dbname> <port> <user> [rows] [--stdout] [stdout,writer,aligned,csv,tsv]");
+			return;
+		}//end if
+		int rows = 1000000;
+		boolean toStdout = false;
+		String[] paths = PATHS;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--stdout"))
+				toStdout = true;
+			else if (Character.isDigit(args[i].charAt(0)))
+				rows = Integer.parseInt(args[i]);
+			else
+				paths = args[i].split(",");
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			RenderBenchmark bench = new RenderBenchmark(esql, rows, toStdout);
+			// one untimed pass warms up the JIT and the statement cache
+			bench.run("tsv", false);
+			for (String path : paths)
+				bench.run(path, true);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
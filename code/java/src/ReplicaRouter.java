@@ -0,0 +1,448 @@
+/*
+ * Read replica routing
+ * ====================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class sends read-only statements to streaming replicas of the
+ * primary and leaves every write on the primary pool.  Each replica has
+ * its own ConnectionPool; reads go round robin over the healthy ones and
+ * to the primary when none is healthy.  A background check reads the
+ * primary's WAL position and each replica's replay position every
+ * checkInterval; a replica is healthy while it answers, is still in
+ * recovery and is at most maxLagBytes of WAL behind.  A replica whose
+ * connection fails during a read is marked down at once and the read is
+ * run again on the primary.
+ *
+ * Reads see the caller's own writes according to the consistency mode.
+ * The session is the client the router belongs to, whichever thread does
+ * the work.  A caller that serves several clients, such as HttpApi, binds
+ * a session per client to the thread handling it, and work handed to
+ * another thread runs with the session bound where it was handed over:
+ *
+ *   EVENTUAL   reads always go to a replica and may miss recent writes
+ *   PIN        after a write, the session reads from the primary for pinMillis
+ *   LSN        after a write, the session reads from a replica only once it
+ *              has replayed the write's WAL position, waiting up to
+ *              lsnWaitMillis for one to catch up before using the primary
+ *
+ * LSN costs one extra round trip per write, to read the position.
+ *
+ */
+
+public class ReplicaRouter implements AutoCloseable{
+	public enum Consistency { EVENTUAL, PIN, LSN }
+
+	private static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::TEXT";
+	private static final String REPLICA_SQL = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()::TEXT";
+	private static final String REPLAY_SQL = "SELECT pg_last_wal_replay_lsn()::TEXT";
+
+	/**
+	 * One replica and what the last check found out about it.
+	 */
+	private static final class Replica{
+		final String url;
+		//opened by the first successful check, so a replica that is down at startup is picked up later
+		volatile ConnectionPool pool = null;
+		volatile boolean healthy = false;
+		volatile long replayLsn = 0;
+		volatile long lagBytes = -1;
+		volatile String lastError = null;
+		final LongAdder reads = new LongAdder();
+		final LongAdder failures = new LongAdder();
+
+		Replica(String url){
+			this.url = url;
+		}
+	}
+
+	/**
+	 * What one client wrote last.  Shared by the threads doing its work.
+	 */
+	public static final class Session{
+		private volatile long pinnedUntil = 0;
+		private volatile long writeLsn = 0;
+
+		private void pin(long until){
+			// another thread may have pinned it for longer already
+			synchronized (this){
+				if (until - pinnedUntil > 0)
+					pinnedUntil = until;
+			}
+		}
+
+		private void advance(long lsn){
+			synchronized (this){
+				if (lsn > writeLsn)
+					writeLsn = lsn;
+			}
+		}
+	}
+
+	private final ConnectionPool primary;
+	private final String user;
+	private final String passwd;
+	private final Replica[] replicas;
+	private final Consistency consistency;
+	private final long pinNanos;
+	private final long maxLagBytes;
+	private final long lsnWaitNanos;
+	private final ScheduledExecutorService checker;
+	private final AtomicInteger next = new AtomicInteger();
+	//the client's own session, and the one a caller bound to the thread instead
+	private final Session shared = new Session();
+	private final ThreadLocal<Session> bound = new ThreadLocal<Session>();
+	private volatile long primaryLsn = 0;
+
+	private final LongAdder primaryReads = new LongAdder();
+	private final LongAdder pinnedReads = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+	private final LongAdder lsnWaits = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+
+	/**
+	 * @param primary the pool every write and fallback read uses
+	 * @param replicaUrls the JDBC URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param consistency how reads see the session's own writes
+	 * @param pinMillis how long a session reads from the primary after a write, in PIN mode
+	 * @param maxLagBytes the most WAL a healthy replica may be behind
+	 * @param lsnWaitMillis how long a read waits for a replica to catch up, in LSN mode
+	 * @param checkIntervalMillis the pause between health checks
+	 */
+	public ReplicaRouter(ConnectionPool primary, List<String> replicaUrls, String user, String passwd, Consistency consistency,
+			long pinMillis, long maxLagBytes, long lsnWaitMillis, long checkIntervalMillis){
+		this.primary = primary;
+		this.user = user;
+		this.passwd = passwd;
+		this.replicas = new Replica[replicaUrls.size()];
+		for (int i = 0; i < replicas.length; ++i)
+			replicas[i] = new Replica(replicaUrls.get(i));
+		this.consistency = consistency;
+		this.pinNanos = TimeUnit.MILLISECONDS.toNanos(pinMillis);
+		this.maxLagBytes = maxLagBytes;
+		this.lsnWaitNanos = TimeUnit.MILLISECONDS.toNanos(lsnWaitMillis);
+
+		// the first check runs before this returns, so reads can use replicas at once
+		check();
+		checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "replica-check");
+			t.setDaemon(true);
+			return t;
+		});
+		checker.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to build a router from the replicas.consistency (eventual|pin|lsn,
+	 * default pin), replicas.pinMs (5000), replicas.maxLagBytes (16 MB),
+	 * replicas.lsnWaitMs (200) and replicas.checkMs (1000) system properties.
+	 *
+	 * @param primary the primary pool
+	 * @param replicaUrls the JDBC URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @return the running router
+	 */
+	public static ReplicaRouter fromSystemProperties(ConnectionPool primary, List<String> replicaUrls, String user, String passwd){
+		return new ReplicaRouter(primary, replicaUrls, user, passwd,
+			Consistency.valueOf(System.getProperty("replicas.consistency", "pin").toUpperCase()),
+			Long.getLong("replicas.pinMs", 5000L),
+			Long.getLong("replicas.maxLagBytes", 16L << 20),
+			Long.getLong("replicas.lsnWaitMs", 200L),
+			Long.getLong("replicas.checkMs", 1000L));
+	}
+
+	/**
+	 * Method to turn a WAL position as Postgres prints it (hi/lo in hex)
+	 * into a number that orders the same way.
+	 *
+	 * @param lsn the position, e.g. 0/16B3748, or null
+	 * @return the position as a long, 0 for null
+	 */
+	static long parseLsn(String lsn){
+		if (lsn == null)
+			return 0;
+		int slash = lsn.indexOf('/');
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+
+	//reads the primary's position, then each replica's
+	private void check(){
+		try{
+			ConnectionPool.PooledConnection conn = primary.borrow();
+			try (ResultSet rs = DBproject.query(conn, PRIMARY_LSN_SQL)){
+				rs.next();
+				primaryLsn = parseLsn(rs.getString(1));
+			}finally{
+				primary.release(conn);
+			}
+		}catch (SQLException e){
+			// the replicas' lag is measured against the last position read
+		}
+		for (Replica r : replicas)
+			check(r);
+	}
+
+	private void check(Replica r){
+		try{
+			if (r.pool == null)
+				r.pool = new ConnectionPool(r.url, user, passwd, 1, primary.getMaxSize(), 60000L, 5000L, 64, 1000L);
+			ConnectionPool.PooledConnection conn = r.pool.borrow();
+			try (ResultSet rs = DBproject.query(conn, REPLICA_SQL)){
+				rs.next();
+				boolean standby = rs.getBoolean(1);
+				r.replayLsn = parseLsn(rs.getString(2));
+				r.lagBytes = Math.max(0, primaryLsn - r.replayLsn);
+				// a promoted replica has left the primary's timeline
+				r.healthy = standby && r.lagBytes <= maxLagBytes;
+				r.lastError = standby ? null : "not in recovery";
+			}finally{
+				r.pool.release(conn);
+			}
+		}catch (SQLException e){
+			r.healthy = false;
+			r.lastError = e.getMessage();
+		}
+	}
+
+	/**
+	 * @return a session for one more client of this router, to bind() to
+	 *         the threads doing its work
+	 */
+	public Session newSession(){
+		return new Session();
+	}
+
+	/**
+	 * @return the session bound to the calling thread, or the router's own
+	 */
+	public Session current(){
+		Session s = bound.get();
+		return s == null ? shared : s;
+	}
+
+	/**
+	 * Method to make the calling thread's reads and writes count for a
+	 * session until the previous binding is restored.
+	 *
+	 * @param s the session, or null for the router's own
+	 * @return the session bound before, to pass to bind() when done
+	 */
+	public Session bind(Session s){
+		Session previous = bound.get();
+		if (s == null)
+			bound.remove();
+		else
+			bound.set(s);
+		return previous;
+	}
+
+	/**
+	 * Method to borrow a connection for a read-only statement: a healthy
+	 * replica that satisfies the session's consistency, or else the
+	 * primary.  Hand it back with release().
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when no connection could be borrowed
+	 */
+	public ConnectionPool.PooledConnection borrowRead() throws SQLException {
+		Session s = current();
+		if (System.nanoTime() - s.pinnedUntil < 0){
+			pinnedReads.increment();
+			return primary.borrow();
+		}
+		long deadline = System.nanoTime() + lsnWaitNanos;
+		int start = next.getAndIncrement();
+		for (int i = 0; i < replicas.length; ++i){
+			Replica r = replicas[Math.floorMod(start + i, replicas.length)];
+			ConnectionPool pool = r.pool;
+			if (!r.healthy || pool == null)
+				continue;
+			ConnectionPool.PooledConnection conn;
+			try{
+				conn = pool.borrow();
+			}catch (SQLException e){
+				r.failures.increment();
+				continue;
+			}
+			if (consistency == Consistency.LSN && s.writeLsn > r.replayLsn && !awaitReplay(r, conn, s.writeLsn, deadline)){
+				pool.release(conn);
+				continue;
+			}
+			r.reads.increment();
+			return conn;
+		}
+		if (replicas.length > 0)
+			fallbacks.increment();
+		primaryReads.increment();
+		return primary.borrow();
+	}//end borrowRead
+
+	//polls the replica until it has replayed lsn or the deadline passes
+	private boolean awaitReplay(Replica r, ConnectionPool.PooledConnection conn, long lsn, long deadline){
+		lsnWaits.increment();
+		try{
+			while (true){
+				try (ResultSet rs = DBproject.query(conn, REPLAY_SQL)){
+					rs.next();
+					long replayed = parseLsn(rs.getString(1));
+					if (replayed > r.replayLsn)
+						r.replayLsn = replayed;
+					if (replayed >= lsn)
+						return true;
+				}
+				if (System.nanoTime() - deadline >= 0)
+					return false;
+				Thread.sleep(2);
+			}
+		}catch (SQLException e){
+			return false;
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Method to record that the calling thread's session committed a write
+	 * on conn, so its following reads see it.
+	 *
+	 * @param conn the primary connection the write was made on
+	 */
+	public void wrote(ConnectionPool.PooledConnection conn){
+		wrote(conn, Collections.singleton(current()));
+	}
+
+	/**
+	 * Method to record that one commit on conn wrote on behalf of several
+	 * sessions, as a batch of queued requests does.
+	 *
+	 * @param conn the primary connection the write was made on
+	 * @param sessions the sessions the write belongs to
+	 */
+	public void wrote(ConnectionPool.PooledConnection conn, Collection<Session> sessions){
+		if (sessions.isEmpty())
+			return;
+		writes.increment();
+		if (consistency == Consistency.PIN){
+			long until = System.nanoTime() + pinNanos;
+			for (Session s : sessions)
+				s.pin(until);
+		}else if (consistency == Consistency.LSN){
+			try (ResultSet rs = DBproject.query(conn, PRIMARY_LSN_SQL)){
+				rs.next();
+				long lsn = parseLsn(rs.getString(1));
+				for (Session s : sessions)
+					s.advance(lsn);
+			}catch (SQLException e){
+				// without the position the write is only safe to read on the primary
+				long until = System.nanoTime() + pinNanos;
+				for (Session s : sessions)
+					s.pin(until);
+			}
+		}
+	}
+
+	/**
+	 * Method to decide whether a failed read should be run again on the
+	 * primary.  That is the case when it ran on a replica and failed
+	 * because the connection broke or the server is shutting down or in
+	 * recovery conflict; the replica is marked down until the next check
+	 * finds it healthy.
+	 *
+	 * @param conn the connection the read ran on
+	 * @param e the failure
+	 * @return true if the caller should retry on the primary
+	 */
+	public boolean failedOver(ConnectionPool.PooledConnection conn, SQLException e){
+		if (conn.getPool() == primary)
+			return false;
+		String state = e.getSQLState();
+		// 08: connection exception, 57P: operator intervention, 40001: canceled by a recovery conflict
+		if (state == null || !(state.startsWith("08") || state.startsWith("57P") || state.equals("40001")))
+			return false;
+		for (Replica r : replicas){
+			if (r.pool == conn.getPool()){
+				r.healthy = false;
+				r.failures.increment();
+				r.lastError = e.getMessage();
+			}
+		}
+		fallbacks.increment();
+		return true;
+	}
+
+	/**
+	 * @return the number of replicas the last check found healthy
+	 */
+	public int getHealthy(){
+		int n = 0;
+		for (Replica r : replicas)
+			if (r.healthy)
+				++n;
+		return n;
+	}
+
+	/**
+	 * Method to stop the health checks and close the replica pools.
+	 */
+	public void close(){
+		checker.shutdownNow();
+		for (Replica r : replicas)
+			if (r.pool != null)
+				r.pool.close();
+	}
+
+	/**
+	 * @return one line for the router and one per replica
+	 */
+	public String stats(){
+		StringBuilder s = new StringBuilder(String.format(
+			"replicas (%s): healthy=%d/%d writes=%d primaryReads=%d pinnedReads=%d fallbacks=%d lsnWaits=%d",
+			consistency, getHealthy(), replicas.length, writes.sum(), primaryReads.sum(), pinnedReads.sum(),
+			fallbacks.sum(), lsnWaits.sum()));
+		for (Replica r : replicas){
+			s.append(String.format("%n  %s %s reads=%d failures=%d lag=%s", r.url, r.healthy ? "up" : "down",
+				r.reads.sum(), r.failures.sum(), r.lagBytes < 0 ? "?" : r.lagBytes + "B"));
+			if (r.lastError != null)
+				s.append(" (").append(r.lastError).append(')');
+		}
+		return s.toString();
+	}
+
+	/**
+	 * @param spec comma separated host:port or port entries, e.g. localhost:9998,9997
+	 * @param dbname the database name
+	 * @param params the URL parameters the primary uses, starting with ?
+	 * @return the JDBC URLs
+	 */
+	public static List<String> urls(String spec, String dbname, String params){
+		List<String> urls = new ArrayList<String>();
+		for (String entry : spec.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+			String hostPort = entry.indexOf(':') < 0 ? "localhost:" + entry : entry;
+			urls.add("jdbc:postgresql://" + hostPort + "/" + dbname + params);
+		}
+		return urls;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Report counter maintenance
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class checks the report counters against the base tables and
+ * rebuilds them.  Triggers (migrations/V002) keep reservation_status_counts
+ * and ship_repair_counts in step with every change to Reservation and
+ * Repairs, so the repairs-per-ship and passengers-by-status reports read a
+ * few counter rows instead of grouping the whole table.  Reservation's
+ * triggers run once per statement and add its summed changes to the slot
+ * of the writing transaction, locking that slot's rows in status order;
+ * Repairs' run once per row.  verify() finds
+ * drift, e.g. after the triggers were disabled for a manual load, and
+ * rebuild() recomputes both tables in one transaction.
+ *
+ */
+
+public class ReportCounters{
+
+	private static final String RESERVATION_COUNTS_SQL =
+		"SELECT status, SUM(total) FROM reservation_status_counts GROUP BY status";
+	private static final String RESERVATION_BASE_SQL =
+		"SELECT status, COUNT(*) FROM Reservation WHERE status IS NOT NULL GROUP BY status";
+	private static final String REPAIR_COUNTS_SQL =
+		"SELECT ship_id, total FROM ship_repair_counts WHERE total <> 0";
+	private static final String REPAIR_BASE_SQL =
+		"SELECT ship_id, COUNT(*) FROM Repairs GROUP BY ship_id";
+
+	private final ConnectionPool pool;
+
+	public ReportCounters(ConnectionPool pool){
+		this.pool = pool;
+	}
+
+	/**
+	 * Method to compare the counters with a full count of the base tables
+	 * and print every difference.  Both sides are read in one repeatable
+	 * read snapshot.
+	 *
+	 * @return the number of counters that differ from the base tables
+	 * @throws java.sql.SQLException when failed to read the counters
+	 */
+	public int verify() throws SQLException {
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		Connection c = conn.getConnection();
+		int isolation = c.getTransactionIsolation();
+		try{
+			c.setAutoCommit(false);
+			c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			int diffs = compare("status", read(c, RESERVATION_COUNTS_SQL), read(c, RESERVATION_BASE_SQL))
+				+ compare("ship", read(c, REPAIR_COUNTS_SQL), read(c, REPAIR_BASE_SQL));
+			System.out.println(diffs == 0 ? "Report counters match the base tables" : diffs + " report counter(s) differ");
+			return diffs;
+		}finally{
+			c.rollback();
+			c.setTransactionIsolation(isolation);
+			pool.release(conn);
+		}
+	}//end verify
+
+	private static Map<String, Long> read(Connection c, String sql) throws SQLException {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		try (Statement stmt = c.createStatement();
+			 ResultSet rs = stmt.executeQuery(sql)){
+			while (rs.next())
+				counts.put(rs.getString(1).trim(), rs.getLong(2));
+		}
+		return counts;
+	}
+
+	private static int compare(String kind, Map<String, Long> counters, Map<String, Long> base){
+		Map<String, Long> keys = new TreeMap<String, Long>(counters);
+		keys.putAll(base);
+		int diffs = 0;
+		for (String key : keys.keySet()){
+			long counted = counters.getOrDefault(key, 0L);
+			long actual = base.getOrDefault(key, 0L);
+			if (counted != actual){
+				System.out.println(String.format("%s %s: counter=%d actual=%d", kind, key, counted, actual));
+				++diffs;
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * Method to recompute both counter tables from the base tables.  Writers
+	 * to Reservation and Repairs wait until the rebuild commits, so no change
+	 * is lost between the count and the swap.
+	 *
+	 * @throws java.sql.SQLException when the rebuild failed; it is rolled back
+	 */
+	public void rebuild() throws SQLException {
+		long start = System.nanoTime();
+		ConnectionPool.PooledConnection conn = pool.borrow();
+		Connection c = conn.getConnection();
+		try (Statement stmt = c.createStatement()){
+			c.setAutoCommit(false);
+			stmt.execute("LOCK TABLE Reservation, Repairs IN SHARE MODE");
+			stmt.execute("UPDATE reservation_status_counts SET total = 0");
+			stmt.execute("UPDATE reservation_status_counts RC SET total = R.total " +
+				"FROM (SELECT status, rnum & 15 AS slot, COUNT(*) AS total FROM Reservation " +
+				"WHERE status IS NOT NULL GROUP BY status, rnum & 15) R " +
+				"WHERE RC.status = R.status AND RC.slot = R.slot");
+			stmt.execute("DELETE FROM ship_repair_counts");
+			stmt.execute("INSERT INTO ship_repair_counts (ship_id, total) " + REPAIR_BASE_SQL);
+			c.commit();
+		}catch (SQLException e){
+			c.rollback();
+			throw e;
+		}finally{
+			pool.release(conn);
+		}
+		System.out.println(String.format("Rebuilt report counters in %.2fs", (System.nanoTime() - start) / 1e9));
+	}//end rebuild
+
+	/**
+	 * Verifies or rebuilds the report counters.
+	 *
+	 * @param args <dbname> <port> <user> <verify|rebuild>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4 || !(args[3].equals("verify") || args[3].equals("rebuild"))) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ReportCounters.class.getName () +
+		            " <dbname> <port> <user> <verify|rebuild>");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		int diffs = 0;
+		try{
+			ReportCounters counters = new ReportCounters(esql.getPool());
+			if (args[3].equals("rebuild"))
+				counters.rebuild();
+			diffs = counters.verify();
+		}finally{
+			esql.cleanup();
+		}
+		if (diffs > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * In-memory reservation index
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class keeps every reservation in memory as packed columns: int
+ * arrays for rnum, ccid and cid and a byte array for the status, one slot
+ * per reservation.  Two more int arrays chain the slots of the same
+ * customer and of the same cruise, newest first, and an open-addressing
+ * int map holds the head of each chain.  A reservation costs 21 bytes
+ * plus its share of the two maps, against a few hundred bytes as a row of
+ * List&lt;List&lt;String&gt;&gt;, so 10M reservations take a few hundred MB
+ * instead of several GB.
+ *
+ * Lookups by customer, by (customer, cruise) and counts by status are
+ * answered without a round trip.  DBproject.bookCruise() applies every
+ * booking it makes; writes by other clients are picked up by reload().
+ *
+ */
+
+public class ReservationIndex{
+
+	/**
+	 * Callback for the reservations of a customer or cruise, called under
+	 * the read lock, so it must not write to the index.
+	 */
+	public interface Visitor{
+		void reservation(int rnum, int ccid, int cid, char status);
+	}
+
+	private static final int NONE = -1;
+
+	//the columns and chains; replaced as a whole by reload()
+	private static final class Store{
+		int[] rnums, ccids, cids, nextByCustomer, nextByCruise;
+		byte[] statuses;
+		int size = 0;
+		final IntIntMap byCustomer;
+		final IntIntMap byCruise;
+		//reservations per status, indexed by statusIndex()
+		final long[] counts = new long[3];
+
+		Store(int capacity){
+			capacity = Math.max(16, capacity);
+			rnums = new int[capacity];
+			ccids = new int[capacity];
+			cids = new int[capacity];
+			nextByCustomer = new int[capacity];
+			nextByCruise = new int[capacity];
+			statuses = new byte[capacity];
+			byCustomer = new IntIntMap(capacity / 4);
+			byCruise = new IntIntMap(capacity / 64);
+		}
+
+		void add(int rnum, int ccid, int cid, char status){
+			if (size == rnums.length){
+				int capacity = size * 2;
+				rnums = Arrays.copyOf(rnums, capacity);
+				ccids = Arrays.copyOf(ccids, capacity);
+				cids = Arrays.copyOf(cids, capacity);
+				nextByCustomer = Arrays.copyOf(nextByCustomer, capacity);
+				nextByCruise = Arrays.copyOf(nextByCruise, capacity);
+				statuses = Arrays.copyOf(statuses, capacity);
+			}
+			int slot = size++;
+			rnums[slot] = rnum;
+			ccids[slot] = ccid;
+			cids[slot] = cid;
+			statuses[slot] = (byte) status;
+			nextByCustomer[slot] = byCustomer.get(ccid);
+			byCustomer.put(ccid, slot);
+			nextByCruise[slot] = byCruise.get(cid);
+			byCruise.put(cid, slot);
+			count(status, 1);
+		}
+
+		//slot of a reservation, found through the customer's chain
+		int find(int rnum, int ccid){
+			for (int s = byCustomer.get(ccid); s != NONE; s = nextByCustomer[s]){
+				if (rnums[s] == rnum)
+					return s;
+			}
+			return NONE;
+		}
+
+		void setStatus(int slot, char status){
+			count((char) statuses[slot], -1);
+			statuses[slot] = (byte) status;
+			count(status, 1);
+		}
+
+		void count(char status, int delta){
+			int i = statusIndex(status);
+			if (i >= 0)
+				counts[i] += delta;
+		}
+
+		long bytes(){
+			return 21L * rnums.length + byCustomer.bytes() + byCruise.bytes();
+		}
+	}
+
+	private static int statusIndex(char status){
+		switch (status){
+			case 'W': return 0;
+			case 'C': return 1;
+			case 'R': return 2;
+			default: return -1;
+		}
+	}
+
+	private final StampedLock lock = new StampedLock();
+	private Store store = new Store(16);
+	//writes made while reload() reads the table, replayed onto the new store
+	private List<int[]> pending = null;
+
+	/**
+	 * Method to apply a reservation written to the database.  A new rnum is
+	 * added; an rnum already indexed gets the new status.
+	 *
+	 * @param rnum the reservation number
+	 * @param ccid the customer id
+	 * @param cid the cruise number
+	 * @param status W, C or R
+	 */
+	public void put(int rnum, int ccid, int cid, char status){
+		long stamp = lock.writeLock();
+		try{
+			write(store, rnum, ccid, cid, status);
+			if (pending != null)
+				pending.add(new int[]{rnum, ccid, cid, status});
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private static void write(Store s, int rnum, int ccid, int cid, char status){
+		int slot = s.find(rnum, ccid);
+		if (slot == NONE)
+			s.add(rnum, ccid, cid, status);
+		else
+			s.setStatus(slot, status);
+	}
+
+	/**
+	 * Method to apply the outcome of DBproject.bookCruise().
+	 *
+	 * @param booking the committed booking
+	 */
+	public void apply(Booking booking){
+		if (booking.changed())
+			put(booking.rnum, booking.customerId, booking.cruiseNum, booking.status);
+	}
+
+	/**
+	 * Method to replace the index with the current contents of Reservation,
+	 * read with one streamed query.  Readers keep using the old index until
+	 * the new one is complete; bookings applied meanwhile are carried over.
+	 *
+	 * @param esql the database to read
+	 * @return the number of reservations loaded
+	 * @throws java.sql.SQLException when failed to read the table
+	 */
+	public long reload(DBproject esql) throws SQLException {
+		long stamp = lock.writeLock();
+		try{
+			pending = new ArrayList<int[]>();
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		Store fresh = null;
+		try{
+			Store loading = new Store(Math.max(16, size() + size() / 4));
+			esql.streamQuery("SELECT rnum, ccid, cid, status FROM Reservation ORDER BY rnum", 10000, rs -> {
+				String status = rs.getString(4);
+				loading.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), status == null ? ' ' : status.charAt(0));
+			});
+			fresh = loading;
+		}finally{
+			stamp = lock.writeLock();
+			try{
+				if (fresh != null){
+					for (int[] w : pending)
+						write(fresh, w[0], w[1], w[2], (char) w[3]);
+					store = fresh;
+				}
+				pending = null;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		return size();
+	}//end reload
+
+	/**
+	 * Method to visit the reservations of a customer, newest first.
+	 *
+	 * @param ccid the customer id
+	 * @param visitor called once per reservation
+	 * @return the number of reservations visited
+	 */
+	public int forCustomer(int ccid, Visitor visitor){
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			int n = 0;
+			for (int slot = s.byCustomer.get(ccid); slot != NONE; slot = s.nextByCustomer[slot], ++n)
+				visitor.reservation(s.rnums[slot], s.ccids[slot], s.cids[slot], (char) s.statuses[slot]);
+			return n;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Method to visit the reservations on a cruise, newest first.
+	 *
+	 * @param cid the cruise number
+	 * @param visitor called once per reservation
+	 * @return the number of reservations visited
+	 */
+	public int forCruise(int cid, Visitor visitor){
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			int n = 0;
+			for (int slot = s.byCruise.get(cid); slot != NONE; slot = s.nextByCruise[slot], ++n)
+				visitor.reservation(s.rnums[slot], s.ccids[slot], s.cids[slot], (char) s.statuses[slot]);
+			return n;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param ccid the customer id
+	 * @param cid the cruise number
+	 * @return true if the customer has a reservation on the cruise
+	 */
+	public boolean contains(int ccid, int cid){
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			for (int slot = s.byCustomer.get(ccid); slot != NONE; slot = s.nextByCustomer[slot]){
+				if (s.cids[slot] == cid)
+					return true;
+			}
+			return false;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param status W, C or R
+	 * @return the number of reservations with that status
+	 */
+	public long countByStatus(char status){
+		int i = statusIndex(status);
+		if (i < 0)
+			return 0;
+		long stamp = lock.readLock();
+		try{
+			return store.counts[i];
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int size(){
+		long stamp = lock.readLock();
+		try{
+			return store.size;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the bytes held by the columns, chains and maps
+	 */
+	public long memoryBytes(){
+		long stamp = lock.readLock();
+		try{
+			return store.bytes();
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return a one-line summary of the index
+	 */
+	public String stats(){
+		long stamp = lock.readLock();
+		try{
+			Store s = store;
+			return String.format("reservation index: reservations=%d customers=%d cruises=%d W=%d C=%d R=%d memory=%.1fMB",
+				s.size, s.byCustomer.size, s.byCruise.size, s.counts[0], s.counts[1], s.counts[2], s.bytes() / 1048576.0);
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+}
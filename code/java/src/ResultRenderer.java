@@ -0,0 +1,438 @@
+/*
+ * Query result renderer
+ * =====================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * This class writes a result set as an aligned table, CSV or TSV through
+ * one byte buffer that it flushes to the output stream only when full and
+ * at the end.  Nothing is synchronized per value.
+ *
+ * Values are copied into a reused row buffer as UTF-8 bytes.  Text columns
+ * are read with getBytes(), which hands back the driver's own bytes
+ * without building a String, and the blank padding of CHAR columns is
+ * dropped by not copying it.  Integer columns are read with getLong() and
+ * formatted straight into the buffer.  Other types go through getString().
+ *
+ * An aligned table needs the column widths before the first row is
+ * written, so the first window rows are held in the row buffer and
+ * measured; later rows reuse those widths and a longer value simply
+ * pushes its line out.
+ *
+ */
+
+public class ResultRenderer{
+	public enum Format { ALIGNED, CSV, TSV }
+
+	//how a column is read
+	private static final int TEXT = 0, INTEGER = 1, OTHER = 2;
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream os;
+	private final Format format;
+	private final int window;
+	private final byte[] buf;
+	private int pos = 0;
+	private long written = 0;
+
+	//cell bytes of the buffered rows, and where each cell starts and ends
+	private byte[] cells = new byte[1 << 14];
+	private int cellsLength = 0;
+	private int[] starts = new int[256];
+	private int[] ends = new int[256];
+
+	private int numCol;
+	private int[] kinds;
+	private byte[][] headers;
+	private int[] widths;
+
+	/**
+	 * @param os where the rendered text goes
+	 * @param format the layout
+	 * @param bufferSize the bytes buffered before a write to os
+	 * @param window the rows measured for the aligned column widths
+	 */
+	public ResultRenderer(OutputStream os, Format format, int bufferSize, int window){
+		this.os = os;
+		this.format = format;
+		this.buf = new byte[Math.max(1024, bufferSize)];
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Method to build a renderer from the output.format (tsv) system
+	 * property, with a 64 KB buffer and a 1000 row window.
+	 *
+	 * @param os where the rendered text goes
+	 * @return the renderer
+	 */
+	public static ResultRenderer fromSystemProperties(OutputStream os){
+		return new ResultRenderer(os, parseFormat(System.getProperty("output.format", "tsv")), 1 << 16, DBproject.FETCH_SIZE);
+	}
+
+	/**
+	 * @param name aligned, csv or tsv, in any case
+	 * @return the format
+	 */
+	public static Format parseFormat(String name){
+		return Format.valueOf(name.toUpperCase());
+	}
+
+	/**
+	 * @return the bytes written since the renderer was created
+	 */
+	public long getWritten(){
+		return written + pos;
+	}
+
+	/**
+	 * Method to write a result set, header first, and flush it to the
+	 * output stream.  Nothing is written for an empty result.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to read the result set
+	 * @throws java.io.IOException when failed to write
+	 */
+	public int render(ResultSet rs) throws SQLException, IOException {
+		describe(rs.getMetaData());
+		int rowCount = 0;
+		try{
+			if (format == Format.ALIGNED){
+				int buffered = 0;
+				cellsLength = 0;
+				while (buffered < window && rs.next()){
+					readRow(rs, buffered++);
+				}
+				if (buffered == 0)
+					return 0;
+				measure(buffered);
+				writeHeader();
+				for (int r = 0; r < buffered; ++r)
+					writeRow(r);
+				rowCount = buffered;
+			}
+			// past the window one row is held at a time
+			while (rs.next()){
+				cellsLength = 0;
+				readRow(rs, 0);
+				if (rowCount == 0)
+					writeHeader();
+				writeRow(0);
+				++rowCount;
+			}
+			return rowCount;
+		}finally{
+			flush();
+		}
+	}//end render
+
+	private void describe(ResultSetMetaData rsmd) throws SQLException {
+		numCol = rsmd.getColumnCount();
+		kinds = new int[numCol];
+		headers = new byte[numCol][];
+		for (int i = 0; i < numCol; ++i){
+			switch (rsmd.getColumnType(i + 1)){
+				case Types.CHAR: case Types.VARCHAR: case Types.LONGVARCHAR:
+					kinds[i] = TEXT; break;
+				case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+					kinds[i] = INTEGER; break;
+				default:
+					kinds[i] = OTHER;
+			}
+			headers[i] = rsmd.getColumnLabel(i + 1).getBytes(StandardCharsets.UTF_8);
+		}
+		if (starts.length < numCol * (format == Format.ALIGNED ? window : 1)){
+			int n = numCol * (format == Format.ALIGNED ? window : 1);
+			starts = new int[n];
+			ends = new int[n];
+		}
+	}
+
+	//copies the current row into the row buffer as cell r
+	private void readRow(ResultSet rs, int r) throws SQLException {
+		int base = r * numCol;
+		for (int i = 0; i < numCol; ++i){
+			int start = cellsLength;
+			switch (kinds[i]){
+				case TEXT:{
+					byte[] b = rs.getBytes(i + 1);
+					if (b == null){
+						start = -1;
+						break;
+					}
+					int n = b.length;
+					while (n > 0 && b[n - 1] == ' ')
+						--n;
+					ensureCells(n);
+					System.arraycopy(b, 0, cells, cellsLength, n);
+					cellsLength += n;
+					break;
+				}
+				case INTEGER:{
+					long v = rs.getLong(i + 1);
+					if (rs.wasNull()){
+						start = -1;
+						break;
+					}
+					ensureCells(20);
+					cellsLength = formatLong(v, cells, cellsLength);
+					break;
+				}
+				default:{
+					String s = rs.getString(i + 1);
+					if (s == null){
+						start = -1;
+						break;
+					}
+					int n = s.length();
+					while (n > 0 && s.charAt(n - 1) == ' ')
+						--n;
+					ensureCells(3 * n);
+					cellsLength = encode(s, n, cells, cellsLength);
+				}
+			}
+			starts[base + i] = start;
+			ends[base + i] = cellsLength;
+		}
+	}
+
+	private void ensureCells(int more){
+		if (cellsLength + more > cells.length)
+			cells = Arrays.copyOf(cells, Math.max(cells.length * 2, cellsLength + more));
+	}
+
+	//writes v in decimal at off and returns the end offset
+	private static int formatLong(long v, byte[] b, int off){
+		if (v == Long.MIN_VALUE){
+			byte[] min = Long.toString(v).getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(min, 0, b, off, min.length);
+			return off + min.length;
+		}
+		if (v < 0){
+			b[off++] = '-';
+			v = -v;
+		}
+		int end = off;
+		long t = v;
+		do{
+			++end;
+			t /= 10;
+		}while (t != 0);
+		for (int p = end - 1; p >= off; --p){
+			b[p] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return end;
+	}
+
+	//writes the first n chars of s as UTF-8 at off and returns the end offset
+	private static int encode(String s, int n, byte[] b, int off){
+		for (int i = 0; i < n; ++i){
+			int c = s.charAt(i);
+			if (Character.isHighSurrogate((char) c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+				c = Character.toCodePoint((char) c, s.charAt(++i));
+			if (c < 0x80){
+				b[off++] = (byte) c;
+			}else if (c < 0x800){
+				b[off++] = (byte) (0xC0 | c >> 6);
+				b[off++] = (byte) (0x80 | c & 0x3F);
+			}else if (c < 0x10000){
+				b[off++] = (byte) (0xE0 | c >> 12);
+				b[off++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[off++] = (byte) (0x80 | c & 0x3F);
+			}else{
+				b[off++] = (byte) (0xF0 | c >> 18);
+				b[off++] = (byte) (0x80 | c >> 12 & 0x3F);
+				b[off++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[off++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return off;
+	}
+
+	//display width of UTF-8 bytes: one per character, continuation bytes skipped
+	private static int width(byte[] b, int start, int end){
+		int w = 0;
+		for (int i = start; i < end; ++i)
+			if ((b[i] & 0xC0) != 0x80)
+				++w;
+		return w;
+	}
+
+	private void measure(int rows){
+		widths = new int[numCol];
+		for (int i = 0; i < numCol; ++i)
+			widths[i] = width(headers[i], 0, headers[i].length);
+		for (int r = 0; r < rows; ++r)
+			for (int i = 0; i < numCol; ++i){
+				int k = r * numCol + i;
+				int w = starts[k] < 0 ? NULL.length : width(cells, starts[k], ends[k]);
+				if (w > widths[i])
+					widths[i] = w;
+			}
+	}
+
+	private void writeHeader() throws IOException {
+		switch (format){
+			case ALIGNED:
+				for (int i = 0; i < numCol; ++i){
+					if (i > 0)
+						put(" | ");
+					padded(headers[i], 0, headers[i].length, widths[i], false, i == numCol - 1);
+				}
+				put('\n');
+				for (int i = 0; i < numCol; ++i){
+					if (i > 0)
+						put("-+-");
+					for (int w = 0; w < widths[i]; ++w)
+						put('-');
+				}
+				put('\n');
+				break;
+			case CSV:
+				for (int i = 0; i < numCol; ++i){
+					if (i > 0)
+						put(',');
+					csv(headers[i], 0, headers[i].length);
+				}
+				put('\n');
+				break;
+			default:
+				for (int i = 0; i < numCol; ++i){
+					if (i > 0)
+						put('\t');
+					tsv(headers[i], 0, headers[i].length);
+				}
+				put('\n');
+		}
+	}
+
+	private void writeRow(int r) throws IOException {
+		int base = r * numCol;
+		for (int i = 0; i < numCol; ++i){
+			int start = starts[base + i], end = ends[base + i];
+			switch (format){
+				case ALIGNED:
+					if (i > 0)
+						put(" | ");
+					if (start < 0)
+						padded(NULL, 0, NULL.length, widths[i], false, i == numCol - 1);
+					else
+						padded(cells, start, end, widths[i], kinds[i] == INTEGER, i == numCol - 1);
+					break;
+				case CSV:
+					if (i > 0)
+						put(',');
+					// a null is an empty field
+					if (start >= 0)
+						csv(cells, start, end);
+					break;
+				default:
+					if (i > 0)
+						put('\t');
+					if (start < 0)
+						put(NULL, 0, NULL.length);
+					else
+						tsv(cells, start, end);
+			}
+		}
+		put('\n');
+	}
+
+	//writes a value padded to width, numbers on the right; the last column gets no trailing blanks
+	private void padded(byte[] b, int start, int end, int w, boolean right, boolean last) throws IOException {
+		int pad = w - width(b, start, end);
+		if (right)
+			for (; pad > 0; --pad)
+				put(' ');
+		put(b, start, end - start);
+		if (!last)
+			for (; pad > 0; --pad)
+				put(' ');
+	}
+
+	//quotes a CSV field that holds a comma, quote or line break
+	private void csv(byte[] b, int start, int end) throws IOException {
+		boolean quote = false;
+		for (int i = start; i < end && !quote; ++i)
+			quote = b[i] == ',' || b[i] == '"' || b[i] == '\n' || b[i] == '\r';
+		if (!quote){
+			put(b, start, end - start);
+			return;
+		}
+		put('"');
+		for (int i = start; i < end; ++i){
+			if (b[i] == '"')
+				put('"');
+			put(b[i]);
+		}
+		put('"');
+	}
+
+	//escapes tabs, line breaks and backslashes the way COPY's text format does
+	private void tsv(byte[] b, int start, int end) throws IOException {
+		for (int i = start; i < end; ++i){
+			byte c = b[i];
+			switch (c){
+				case '\t': put('\\'); put('t'); break;
+				case '\n': put('\\'); put('n'); break;
+				case '\r': put('\\'); put('r'); break;
+				case '\\': put('\\'); put('\\'); break;
+				default: put(c);
+			}
+		}
+	}
+
+	private void put(int b) throws IOException {
+		if (pos == buf.length)
+			drain();
+		buf[pos++] = (byte) b;
+	}
+
+	private void put(String ascii) throws IOException {
+		for (int i = 0; i < ascii.length(); ++i)
+			put(ascii.charAt(i));
+	}
+
+	private void put(byte[] b, int off, int len) throws IOException {
+		while (len > 0){
+			if (pos == buf.length)
+				drain();
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(b, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void drain() throws IOException {
+		os.write(buf, 0, pos);
+		written += pos;
+		pos = 0;
+	}
+
+	/**
+	 * Method to write out the buffered bytes and flush the output stream.
+	 *
+	 * @throws java.io.IOException when failed to write
+	 */
+	public void flush() throws IOException {
+		drain();
+		os.flush();
+	}
+}
@@ -0,0 +1,500 @@
+/*
+ * Ship and captain scheduling conflicts
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class finds ships and captains that are assigned, through
+ * CruiseInfo, to two cruises at once, and ships assigned to a cruise while
+ * they are under repair.  Every assignment contributes the cruise's
+ * actual dates (Cruise.actual_departure_date to actual_arrival_date) and
+ * each of its Schedule rows; actual dates are only compared with actual
+ * dates and scheduled with scheduled.  A cruise occupies the days
+ * [departure, arrival), at least one day, so a ship or captain may start
+ * a cruise on the day the last one arrives.  A repair occupies its day.
+ *
+ * scan() checks the whole fleet.  The intervals are counting-sorted into
+ * one group per (ship or captain, actual or scheduled), each group is
+ * sorted by start and swept with a list of the intervals still open, and
+ * the groups are split over a fork/join pool.  Every overlapping pair is
+ * reported, except two rows of the same cruise and two repairs.
+ *
+ * check() tests one new assignment against an interval tree per group,
+ * built from the sorted groups of the last scan, and add() records it.
+ *
+ */
+
+public class ScheduleConflicts{
+	public enum Resource { SHIP, CAPTAIN }
+	public enum Window { SCHEDULED, ACTUAL }
+
+	private static final String ACTUAL_SQL =
+		"SELECT CI.cruise_id, CI.ship_id, CI.captain_id, C.actual_departure_date, C.actual_arrival_date " +
+		"FROM CruiseInfo CI, Cruise C WHERE C.cnum = CI.cruise_id";
+	private static final String SCHEDULED_SQL =
+		"SELECT CI.cruise_id, CI.ship_id, CI.captain_id, S.departure_time, S.arrival_time " +
+		"FROM CruiseInfo CI, Schedule S WHERE S.cruiseNum = CI.cruise_id";
+	private static final String REPAIRS_SQL = "SELECT rid, ship_id, repair_date FROM Repairs";
+	private static final String CRUISE_ACTUAL_SQL =
+		"SELECT actual_departure_date, actual_arrival_date FROM Cruise WHERE cnum = ?";
+	private static final String CRUISE_SCHEDULED_SQL =
+		"SELECT departure_time, arrival_time FROM Schedule WHERE cruiseNum = ?";
+
+	//groups with fewer intervals than this are swept by one task together
+	private static final int SPLIT = 1 << 16;
+	//a repair is not tied to a window; it joins the ship's groups of both
+	private static final int REPAIR = -1;
+
+	/**
+	 * Two intervals of one ship or captain that overlap.
+	 */
+	public static final class Conflict{
+		public final Resource resource;
+		public final int resourceId;
+		public final Window window;
+		public final int cruise;
+		//another cruise, or a repair when repair is true
+		public final int other;
+		public final boolean repair;
+		//the shared days, inclusive
+		public final LocalDate from, to;
+
+		Conflict(Resource resource, int resourceId, Window window, int cruise, int other, boolean repair, int from, int to){
+			this.resource = resource;
+			this.resourceId = resourceId;
+			this.window = window;
+			this.cruise = cruise;
+			this.other = other;
+			this.repair = repair;
+			this.from = LocalDate.ofEpochDay(from);
+			this.to = LocalDate.ofEpochDay(to - 1);
+		}
+
+		public String toString(){
+			String who = (resource == Resource.SHIP ? "ship " : "captain ") + resourceId + " (" + window.name().toLowerCase() + "): ";
+			if (repair)
+				return who + "cruise " + cruise + " overlaps repair " + other + " on " + from;
+			return who + "cruise " + cruise + " overlaps cruise " + other + " from " + from + " to " + to;
+		}
+	}
+
+	//the intervals, column by column; window is REPAIR for repairs
+	private int[] start = new int[1024], end = new int[1024], id = new int[1024], window = new int[1024];
+	//the two groups each interval belongs to
+	private int[] groupA = new int[1024], groupB = new int[1024];
+	private int size = 0;
+	private int minDay = Integer.MAX_VALUE;
+
+	//dense group numbers by (resource, window, id), and the reverse
+	private final Map<Long, Integer> groups = new HashMap<Long, Integer>();
+	private long[] groupKeys = new long[64];
+
+	//after scan(): (start - minDay, interval) per group member, sorted within each group
+	private long[] sorted = null;
+	private int[] offsets = null;
+	//built from sorted on the first check(), then kept up to date by add()
+	private IntervalForest forest = null;
+
+	public synchronized int size(){
+		return size;
+	}
+
+	public synchronized int groupCount(){
+		return groups.size();
+	}
+
+	private int group(Resource resource, Window window, int resourceId){
+		long key = ((long) (resource.ordinal() * 2 + window.ordinal()) << 32) | (resourceId & 0xFFFFFFFFL);
+		Integer g = groups.get(key);
+		if (g == null){
+			g = groups.size();
+			groups.put(key, g);
+			if (g == groupKeys.length)
+				groupKeys = Arrays.copyOf(groupKeys, g * 2);
+			groupKeys[g] = key;
+		}
+		return g;
+	}
+
+	private static int days(LocalDate date){
+		return (int) date.toEpochDay();
+	}
+
+	private int append(int s, int e, int ident, int win, int a, int b){
+		if (size == start.length){
+			int capacity = size * 2;
+			start = Arrays.copyOf(start, capacity);
+			end = Arrays.copyOf(end, capacity);
+			id = Arrays.copyOf(id, capacity);
+			window = Arrays.copyOf(window, capacity);
+			groupA = Arrays.copyOf(groupA, capacity);
+			groupB = Arrays.copyOf(groupB, capacity);
+		}
+		int i = size++;
+		start[i] = s;
+		end[i] = e;
+		id[i] = ident;
+		window[i] = win;
+		groupA[i] = a;
+		groupB[i] = b;
+		minDay = Math.min(minDay, s);
+		if (forest != null){
+			forest.insert(a, forest.node(i, s, e));
+			forest.insert(b, forest.node(i, s, e));
+		}
+		return i;
+	}
+
+	/**
+	 * Method to record a cruise on a ship with a captain in one window.
+	 *
+	 * @param cnum the cruise number
+	 * @param ship the ship id
+	 * @param captain the captain id
+	 * @param window ACTUAL for the Cruise dates, SCHEDULED for a Schedule row
+	 * @param departure the first day
+	 * @param arrival the day it arrives
+	 */
+	public synchronized void add(int cnum, int ship, int captain, Window window, LocalDate departure, LocalDate arrival){
+		add(cnum, ship, captain, window, days(departure), days(arrival));
+	}
+
+	private void add(int cnum, int ship, int captain, Window w, int departure, int arrival){
+		append(departure, Math.max(arrival, departure + 1), cnum, w.ordinal(),
+			group(Resource.SHIP, w, ship), group(Resource.CAPTAIN, w, captain));
+	}
+
+	/**
+	 * Method to record a repair of a ship.
+	 *
+	 * @param rid the repair id
+	 * @param ship the ship id
+	 * @param date the day of the repair
+	 */
+	public synchronized void addRepair(int rid, int ship, LocalDate date){
+		addRepair(rid, ship, days(date));
+	}
+
+	private void addRepair(int rid, int ship, int day){
+		append(day, day + 1, rid, REPAIR, group(Resource.SHIP, Window.SCHEDULED, ship), group(Resource.SHIP, Window.ACTUAL, ship));
+	}
+
+	/**
+	 * Method to read every assignment and repair with three streamed queries.
+	 *
+	 * @param esql the database to read
+	 * @throws java.sql.SQLException when failed to read the tables
+	 */
+	public synchronized void load(DBproject esql) throws SQLException {
+		esql.streamQuery(ACTUAL_SQL, 10000, rs -> add(rs.getInt(1), rs.getInt(2), rs.getInt(3), Window.ACTUAL,
+			days(rs.getDate(4).toLocalDate()), days(rs.getDate(5).toLocalDate())));
+		esql.streamQuery(SCHEDULED_SQL, 10000, rs -> add(rs.getInt(1), rs.getInt(2), rs.getInt(3), Window.SCHEDULED,
+			days(rs.getDate(4).toLocalDate()), days(rs.getDate(5).toLocalDate())));
+		esql.streamQuery(REPAIRS_SQL, 10000, rs -> addRepair(rs.getInt(1), rs.getInt(2), days(rs.getDate(3).toLocalDate())));
+	}
+
+	/**
+	 * Method to find every conflict among the recorded intervals.
+	 *
+	 * @return the conflicts, grouped by ship or captain and in start order within one
+	 */
+	public synchronized List<Conflict> scan(){
+		int groupCount = groups.size();
+		// counting sort of the group members by group
+		offsets = new int[groupCount + 1];
+		for (int i = 0; i < size; ++i){
+			++offsets[groupA[i] + 1];
+			++offsets[groupB[i] + 1];
+		}
+		for (int g = 0; g < groupCount; ++g)
+			offsets[g + 1] += offsets[g];
+		int[] next = Arrays.copyOf(offsets, groupCount);
+		sorted = new long[2 * size];
+		for (int i = 0; i < size; ++i){
+			long key = ((long) (start[i] - minDay) << 32) | i;
+			sorted[next[groupA[i]]++] = key;
+			sorted[next[groupB[i]]++] = key;
+		}
+		forest = null;
+		return ForkJoinPool.commonPool().invoke(new Sweep(0, groupCount));
+	}//end scan
+
+	//sorts and sweeps the groups from..to-1, splitting them while they are large
+	private final class Sweep extends RecursiveTask<List<Conflict>>{
+		private static final long serialVersionUID = 1L;
+		final int from, to;
+
+		Sweep(int from, int to){
+			this.from = from;
+			this.to = to;
+		}
+
+		protected List<Conflict> compute(){
+			if (to - from > 1 && offsets[to] - offsets[from] > SPLIT){
+				// split where half the members are on each side
+				int half = (offsets[from] + offsets[to]) >>> 1;
+				int mid = Arrays.binarySearch(offsets, from, to + 1, half);
+				mid = Math.min(to - 1, Math.max(from + 1, mid < 0 ? -mid - 1 : mid));
+				Sweep left = new Sweep(from, mid);
+				left.fork();
+				List<Conflict> found = new Sweep(mid, to).compute();
+				List<Conflict> before = left.join();
+				before.addAll(found);
+				return before;
+			}
+			List<Conflict> found = new ArrayList<Conflict>();
+			int[] open = new int[16];
+			for (int g = from; g < to; ++g){
+				Arrays.sort(sorted, offsets[g], offsets[g + 1]);
+				int count = 0;
+				for (int k = offsets[g]; k < offsets[g + 1]; ++k){
+					int i = (int) sorted[k];
+					int s = start[i];
+					// drops the intervals that ended before this one starts
+					int kept = 0;
+					for (int j = 0; j < count; ++j)
+						if (end[open[j]] > s)
+							open[kept++] = open[j];
+					count = kept;
+					for (int j = 0; j < count; ++j)
+						report(g, open[j], i, found);
+					if (count == open.length)
+						open = Arrays.copyOf(open, count * 2);
+					open[count++] = i;
+				}
+			}
+			return found;
+		}
+	}
+
+	private void report(int g, int a, int b, List<Conflict> found){
+		boolean repairA = window[a] == REPAIR, repairB = window[b] == REPAIR;
+		if (repairA && repairB)
+			return;
+		if (!repairA && !repairB && id[a] == id[b])
+			return;
+		if (repairA){
+			int t = a;
+			a = b;
+			b = t;
+		}
+		long key = groupKeys[g];
+		int kind = (int) (key >>> 32);
+		found.add(new Conflict(Resource.values()[kind / 2], (int) key, Window.values()[kind % 2], id[a], id[b],
+			repairA || repairB, Math.max(start[a], start[b]), Math.min(end[a], end[b])));
+	}
+
+	private void buildForest(){
+		if (sorted == null)
+			scan();
+		int groupCount = offsets.length - 1;
+		IntervalForest f = new IntervalForest(sorted.length + sorted.length / 8);
+		for (int g = 0; g < groupCount; ++g){
+			int first = f.size;
+			for (int k = offsets[g]; k < offsets[g + 1]; ++k){
+				int i = (int) sorted[k];
+				f.node(i, start[i], end[i]);
+			}
+			f.build(g, first, f.size);
+		}
+		forest = f;
+	}
+
+	/**
+	 * Method to find the conflicts a new assignment would cause in one
+	 * window, without recording it.
+	 *
+	 * @param cnum the cruise number
+	 * @param ship the ship id
+	 * @param captain the captain id
+	 * @param w ACTUAL or SCHEDULED
+	 * @param departure the first day
+	 * @param arrival the day it arrives
+	 * @return the conflicts, ship first
+	 */
+	public synchronized List<Conflict> check(int cnum, int ship, int captain, Window w, LocalDate departure, LocalDate arrival){
+		if (forest == null)
+			buildForest();
+		int s = days(departure), e = Math.max(days(arrival), s + 1);
+		List<Conflict> found = new ArrayList<Conflict>();
+		check(cnum, Resource.SHIP, w, ship, s, e, found);
+		check(cnum, Resource.CAPTAIN, w, captain, s, e, found);
+		return found;
+	}
+
+	private void check(int cnum, Resource resource, Window w, int resourceId, int s, int e, List<Conflict> found){
+		long key = ((long) (resource.ordinal() * 2 + w.ordinal()) << 32) | (resourceId & 0xFFFFFFFFL);
+		Integer g = groups.get(key);
+		if (g == null)
+			return;
+		forest.overlapping(g, s, e, i -> {
+			if (window[i] == REPAIR || id[i] != cnum)
+				found.add(new Conflict(resource, resourceId, w, cnum, id[i], window[i] == REPAIR,
+					Math.max(s, start[i]), Math.min(e, end[i])));
+		});
+	}
+
+	/**
+	 * Method to check assigning a ship and captain to an existing cruise,
+	 * in both windows, reading its dates from Cruise and Schedule.
+	 *
+	 * @param esql the database to read
+	 * @param cnum the cruise number
+	 * @param ship the ship id
+	 * @param captain the captain id
+	 * @return the conflicts the assignment would cause
+	 * @throws java.sql.SQLException when failed to read the cruise
+	 */
+	public List<Conflict> checkAssignment(DBproject esql, int cnum, int ship, int captain) throws SQLException {
+		List<Conflict> found = new ArrayList<Conflict>();
+		for (List<String> row : esql.executeQueryAndReturnResult(CRUISE_ACTUAL_SQL, cnum))
+			found.addAll(check(cnum, ship, captain, Window.ACTUAL, LocalDate.parse(row.get(0)), LocalDate.parse(row.get(1))));
+		for (List<String> row : esql.executeQueryAndReturnResult(CRUISE_SCHEDULED_SQL, cnum))
+			found.addAll(check(cnum, ship, captain, Window.SCHEDULED, LocalDate.parse(row.get(0)), LocalDate.parse(row.get(1))));
+		return found;
+	}
+
+	/**
+	 * @return a one-line summary of what is recorded
+	 */
+	public synchronized String stats(){
+		return String.format("schedule: intervals=%d groups=%d trees=%s",
+			size, groups.size(), forest == null ? "not built" : String.format("%.1fMB", forest.bytes() / 1048576.0));
+	}
+
+	//the counts per resource and window
+	private static String summary(List<Conflict> conflicts){
+		int[] counts = new int[6];
+		for (Conflict c : conflicts)
+			++counts[c.repair ? 4 + c.window.ordinal() : c.resource.ordinal() * 2 + c.window.ordinal()];
+		return String.format("ship %d/%d, captain %d/%d, repair %d/%d (scheduled/actual)",
+			counts[0], counts[1], counts[2], counts[3], counts[4], counts[5]);
+	}
+
+	/**
+	 * Fills the detector with assignments spread over ships and captains, a
+	 * few of them overlapping on purpose, as if they had been loaded.
+	 */
+	private static void synthetic(ScheduleConflicts detector, int assignments, Random random){
+		int ships = Math.max(1, assignments / 100);
+		int[] free = new int[ships];
+		int first = days(LocalDate.of(2020, 1, 1));
+		for (int s = 0; s < ships; ++s)
+			free[s] = first + random.nextInt(30);
+		for (int cnum = 0; cnum < assignments; ++cnum){
+			int ship = random.nextInt(ships);
+			int departure = free[ship] + random.nextInt(5);
+			// about one in a thousand leaves before the ship is back
+			if (random.nextInt(1000) == 0)
+				departure -= 2;
+			int arrival = departure + 3 + random.nextInt(12);
+			// about one in a hundred arrives a day or two late
+			int delay = random.nextInt(100) == 0 ? 1 + random.nextInt(2) : 0;
+			free[ship] = arrival + delay;
+			// each ship has its own captain, except about one cruise in a thousand
+			int captain = random.nextInt(1000) == 0 ? random.nextInt(ships) : ship;
+			detector.add(cnum, ship, captain, Window.SCHEDULED, departure, arrival);
+			detector.add(cnum, ship, captain, Window.ACTUAL, departure, arrival + delay);
+		}
+		for (int rid = 0; rid < assignments / 1000; ++rid){
+			int ship = random.nextInt(ships);
+			detector.addRepair(rid, ship, first + random.nextInt(Math.max(1, free[ship] - first)));
+		}
+	}
+
+	/**
+	 * Scans the database, or a synthetic fleet, prints the conflicts and
+	 * times the scan and the incremental checks.
+	 *
+	 * @param args <dbname> <port> <user> [--limit N] [--check <cnum> <ship> <captain>]
+	 *             or --synthetic <assignments> [checks]
+	 */
+	public static void main(String[] args) throws Exception {
+		boolean synthetic = args.length > 1 && args[0].equals("--synthetic");
+		if (!synthetic && args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ScheduleConflicts.class.getName () +
+		            " <dbname> <port> <user> [--limit N] [--check <cnum> <ship> <captain>]" +
+		            " | --synthetic <assignments> [checks]");
+			return;
+		}//end if
+		ScheduleConflicts detector = new ScheduleConflicts();
+		if (synthetic){
+			Random random = new Random(42);
+			long start = System.nanoTime();
+			synthetic(detector, Integer.parseInt(args[1]), random);
+			System.out.println(String.format("generated %d intervals in %.2fs", detector.size(), (System.nanoTime() - start) / 1e9));
+			report(detector, 20);
+			int checks = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+			int ships = detector.groupCount() / 4;
+			start = System.nanoTime();
+			detector.check(0, 0, 0, Window.ACTUAL, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+			System.out.println(String.format("built interval trees in %.2fs  %s", (System.nanoTime() - start) / 1e9, detector.stats()));
+			long found = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < checks; ++i){
+				LocalDate departure = LocalDate.of(2020, 1, 1).plusDays(random.nextInt(3650));
+				found += detector.check(-1, random.nextInt(ships), random.nextInt(ships), Window.ACTUAL,
+					departure, departure.plusDays(3 + random.nextInt(12))).size();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("%d incremental checks in %.2fs, %.1fus each, %d conflicts found",
+				checks, seconds, seconds * 1e6 / Math.max(1, checks), found));
+			return;
+		}
+
+		int limit = 100;
+		int[] assignment = null;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--limit") && i + 1 < args.length)
+				limit = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--check") && i + 3 < args.length)
+				assignment = new int[]{Integer.parseInt(args[++i]), Integer.parseInt(args[++i]), Integer.parseInt(args[++i])};
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			long start = System.nanoTime();
+			detector.load(esql);
+			System.out.println(String.format("loaded %d intervals in %.2fs", detector.size(), (System.nanoTime() - start) / 1e9));
+			report(detector, limit);
+			if (assignment != null){
+				List<Conflict> found = detector.checkAssignment(esql, assignment[0], assignment[1], assignment[2]);
+				System.out.println("assigning ship " + assignment[1] + " and captain " + assignment[2] + " to cruise "
+					+ assignment[0] + ": " + (found.isEmpty() ? "no conflicts" : found.size() + " conflicts"));
+				for (Conflict c : found)
+					System.out.println("  " + c);
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	private static void report(ScheduleConflicts detector, int limit){
+		long start = System.nanoTime();
+		List<Conflict> conflicts = detector.scan();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (int i = 0; i < Math.min(limit, conflicts.size()); ++i)
+			System.out.println(conflicts.get(i));
+		if (conflicts.size() > limit)
+			System.out.println("... " + (conflicts.size() - limit) + " more");
+		System.out.println(String.format("scanned %d intervals in %d groups in %.2fs: %d conflicts, %s",
+			detector.size(), detector.groupCount(), seconds, conflicts.size(), summary(conflicts)));
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * Non-interactive command mode
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class runs menu operations from a stream of commands, one per line,
+ * through the same DBproject methods the menu uses:
+ *
+ * <pre>
+ *   ship &lt;id&gt; &lt;make&gt; &lt;model&gt; &lt;age&gt; &lt;seats&gt;
+ *   captain &lt;id&gt; &lt;full name&gt; &lt;nationality&gt;
+ *   cruise &lt;cnum&gt; &lt;cost&gt; &lt;sold&gt; &lt;stops&gt; &lt;DD/MM/YYYY&gt; &lt;DD/MM/YYYY&gt; &lt;arrival port&gt; &lt;departure port&gt;
+ *   book &lt;customer id&gt; &lt;cnum&gt;
+ *   seats &lt;cnum&gt;
+ *   repairs
+ *   status &lt;W|C|R&gt;
+ *   delete &lt;Ship|Captain&gt; &lt;id&gt;
+ *   print &lt;first name&gt; &lt;last name&gt;
+ * </pre>
+ *
+ * Arguments are separated by blanks; an argument with blanks is written in
+ * double quotes.  Blank lines and lines starting with # are skipped.
+ *
+ * Up to the given number of commands run at once.  A command only waits
+ * for the earlier commands that touch the same customer, cruise, ship or
+ * captain, so e.g. bookings of different cruises overlap.  The reports
+ * (repairs, status, print) and delete wait for every earlier command, and
+ * every later command waits for them.  Results are written in input order as CSV or
+ * JSON lines; throughput and latency per command go to standard error.
+ *
+ * With read replicas, each run is one session: a command reads what the
+ * earlier commands of the script wrote, whichever worker ran them.
+ *
+ */
+
+public class ScriptRunner{
+
+	public enum Format { CSV, JSON }
+
+	//result of one command, written in input order
+	private static final class Result{
+		final long line;
+		final String command;
+		final long nanos;
+		final String[] columns;
+		final List<String[]> rows;
+		final String error;
+
+		Result(long line, String command, long nanos, String[] columns, List<String[]> rows, String error){
+			this.line = line;
+			this.command = command;
+			this.nanos = nanos;
+			this.columns = columns;
+			this.rows = rows;
+			this.error = error;
+		}
+	}
+
+	//thrown for a malformed command line
+	private static final class UsageException extends Exception{
+		private static final long serialVersionUID = 1L;
+
+		UsageException(String message){
+			super(message);
+		}
+	}
+
+	private final DBproject esql;
+	private final Format format;
+	private final int window;
+	private final PrintWriter out;
+
+	private final Map<String, LatencyHistogram> latency = new TreeMap<String, LatencyHistogram>();
+	private long commands = 0;
+	private long errors = 0;
+
+	//last pending command per key and the last report, for ordering
+	private final Map<String, CompletableFuture<Result>> lastByKey = new HashMap<String, CompletableFuture<Result>>();
+	private final List<CompletableFuture<Result>> sinceBarrier = new ArrayList<CompletableFuture<Result>>();
+	private CompletableFuture<Result> barrier = CompletableFuture.completedFuture(null);
+
+	public ScriptRunner(DBproject esql, Format format, int window, PrintWriter out){
+		this.esql = esql;
+		this.format = format;
+		this.window = Math.max(1, window);
+		this.out = out;
+	}
+
+	/**
+	 * Method to run every command of a stream and write the results.
+	 *
+	 * @param commands the command lines
+	 * @return the number of commands that failed
+	 * @throws java.io.IOException when reading the commands fails
+	 */
+	public long run(BufferedReader commands) throws IOException {
+		ExecutorService workers = BookingService.newWorkerExecutor(window);
+		ReplicaRouter router = esql.getReplicaRouter();
+		//the run's replica session, null without replicas
+		ReplicaRouter.Session session = router == null ? null : router.newSession();
+		ArrayDeque<CompletableFuture<Result>> inFlight = new ArrayDeque<CompletableFuture<Result>>();
+		long start = System.nanoTime();
+		try{
+			if (format == Format.CSV)
+				out.println("line,command,ok,ms,values");
+			String text;
+			long line = 0;
+			while ((text = commands.readLine()) != null){
+				++line;
+				text = text.trim();
+				if (text.isEmpty() || text.startsWith("#"))
+					continue;
+				if (inFlight.size() >= window)
+					write(inFlight.poll().join());
+				inFlight.add(submit(workers, session, line, text));
+			}
+			while (!inFlight.isEmpty())
+				write(inFlight.poll().join());
+		}finally{
+			workers.shutdown();
+			out.flush();
+		}
+		report(System.nanoTime() - start);
+		return errors;
+	}//end run
+
+	private CompletableFuture<Result> submit(ExecutorService workers, ReplicaRouter.Session session, long line, String text){
+		List<String> args;
+		try{
+			args = tokenize(text);
+		}catch (UsageException e){
+			return CompletableFuture.completedFuture(new Result(line, "?", 0, null, null, e.getMessage()));
+		}
+		String command = args.get(0).toLowerCase();
+		//reports read many rows and deleting a ship changes the seats of its cruises
+		boolean report = command.equals("repairs") || command.equals("status") || command.equals("print") || command.equals("delete");
+		List<String> keys = report ? Collections.<String>emptyList() : keys(command, args);
+
+		List<CompletableFuture<Result>> before = new ArrayList<CompletableFuture<Result>>();
+		before.add(barrier);
+		if (report){
+			before.addAll(sinceBarrier);
+		}else{
+			for (String key : keys){
+				CompletableFuture<Result> previous = lastByKey.get(key);
+				if (previous != null)
+					before.add(previous);
+			}
+		}
+		CompletableFuture<Result> result = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+			.thenApplyAsync(ignored -> execute(line, command, args, session), workers);
+
+		if (sinceBarrier.size() > 4 * window)
+			prune();
+		if (report){
+			barrier = result;
+			sinceBarrier.clear();
+			lastByKey.clear();
+		}else{
+			sinceBarrier.add(result);
+			for (String key : keys)
+				lastByKey.put(key, result);
+		}
+		return result;
+	}
+
+	//forgets finished commands so a long script without reports stays in constant memory
+	private void prune(){
+		sinceBarrier.removeIf(CompletableFuture::isDone);
+		lastByKey.values().removeIf(CompletableFuture::isDone);
+	}
+
+	//the rows a command reads or writes, as ordering keys
+	private static List<String> keys(String command, List<String> args){
+		String first = args.size() > 1 ? args.get(1) : "";
+		switch (command){
+			case "book": return Arrays.asList("customer:" + first, "cruise:" + (args.size() > 2 ? args.get(2) : ""));
+			case "seats": case "cruise": return Collections.singletonList("cruise:" + first);
+			case "ship": return Collections.singletonList("ship:" + first);
+			case "captain": return Collections.singletonList("captain:" + first);
+			default: return Collections.emptyList();
+		}
+	}
+
+	private Result execute(long line, String command, List<String> args, ReplicaRouter.Session session){
+		long start = System.nanoTime();
+		String[] columns = null;
+		List<String[]> rows = new ArrayList<String[]>();
+		String error = null;
+		ReplicaRouter router = esql.getReplicaRouter();
+		ReplicaRouter.Session previous = router == null ? null : router.bind(session);
+		Metrics.begin("script:" + command);
+		try{
+			switch (command){
+				case "ship":
+					expect(args, 6, "ship <id> <make> <model> <age> <seats>");
+					columns = new String[]{"rows"};
+					rows.add(values(esql.addShip(integer(args, 1), args.get(2), args.get(3), integer(args, 4), integer(args, 5))));
+					break;
+				case "captain":
+					expect(args, 4, "captain <id> <full name> <nationality>");
+					columns = new String[]{"rows"};
+					rows.add(values(esql.addCaptain(integer(args, 1), args.get(2), args.get(3))));
+					break;
+				case "cruise":
+					expect(args, 9, "cruise <cnum> <cost> <sold> <stops> <departure> <arrival> <arrival port> <departure port>");
+					columns = new String[]{"rows"};
+					rows.add(values(esql.addCruise(integer(args, 1), integer(args, 2), integer(args, 3), integer(args, 4),
+						args.get(5), args.get(6), args.get(7), args.get(8))));
+					break;
+				case "book":{
+					expect(args, 3, "book <customer id> <cnum>");
+					columns = new String[]{"rnum", "previous", "status", "available"};
+					Booking b = esql.bookCruise(integer(args, 1), integer(args, 2));
+					if (b == null)
+						error = "customer or cruise does not exist";
+					else
+						rows.add(values(b.rnum, b.previous, b.status, b.available == SeatCache.NO_SHIP ? "" : b.available));
+					break;
+				}
+				case "seats":{
+					expect(args, 2, "seats <cnum>");
+					columns = new String[]{"num_available"};
+					int seats = esql.availableSeats(integer(args, 1));
+					if (seats != SeatCache.NO_SHIP)
+						rows.add(values(seats));
+					break;
+				}
+				case "repairs":
+					expect(args, 1, "repairs");
+					columns = new String[]{"ship_id", "total_repairs"};
+					addRows(rows, esql.executeQueryAndReturnResult(DBproject.REPAIRS_PER_SHIP_SQL));
+					break;
+				case "status":
+					expect(args, 2, "status <W|C|R>");
+					columns = new String[]{"status", "total"};
+					addRows(rows, esql.executeQueryAndReturnResult(DBproject.PASSENGERS_WITH_STATUS_SQL, args.get(1)));
+					break;
+				case "delete":
+					expect(args, 3, "delete <Ship|Captain> <id>");
+					columns = new String[]{"rows"};
+					rows.add(values(esql.deleteRecord(args.get(1), integer(args, 2))));
+					break;
+				case "print":
+					expect(args, 3, "print <first name> <last name>");
+					columns = null;
+					addRows(rows, esql.executeQueryAndReturnResult(DBproject.RESERVATIONS_BY_NAME_SQL, args.get(1), args.get(2)));
+					break;
+				default:
+					error = "unknown command " + command;
+			}
+		}catch (UsageException | IllegalArgumentException | SQLException e){
+			error = e.getMessage();
+		}catch (RuntimeException e){
+			//a bug must fail this command, not the whole run in join()
+			error = e.toString();
+		}finally{
+			Metrics.end();
+			if (router != null)
+				router.bind(previous);
+		}
+		return new Result(line, command, System.nanoTime() - start, columns, rows, error);
+	}
+
+	private static void expect(List<String> args, int count, String usage) throws UsageException {
+		if (args.size() != count)
+			throw new UsageException("usage: " + usage);
+	}
+
+	private static int integer(List<String> args, int i) throws UsageException {
+		String value = args.get(i);
+		if (value.isEmpty() || value.length() > 10 || !DBproject.isInteger(value) || Long.parseLong(value) > Integer.MAX_VALUE)
+			throw new UsageException("not a valid id or number: " + value);
+		return Integer.parseInt(value);
+	}
+
+	private static String[] values(Object... values){
+		String[] row = new String[values.length];
+		for (int i = 0; i < values.length; ++i)
+			row[i] = String.valueOf(values[i]);
+		return row;
+	}
+
+	private static void addRows(List<String[]> rows, List<List<String>> result){
+		for (List<String> record : result){
+			String[] row = new String[record.size()];
+			for (int i = 0; i < row.length; ++i)
+				row[i] = record.get(i) == null ? null : record.get(i).trim();
+			rows.add(row);
+		}
+	}
+
+	//splits on blanks, keeping "quoted arguments" together
+	static List<String> tokenize(String text) throws UsageException {
+		List<String> args = new ArrayList<String>();
+		StringBuilder arg = new StringBuilder();
+		boolean quoted = false, any = false;
+		for (int i = 0; i < text.length(); ++i){
+			char c = text.charAt(i);
+			if (c == '"'){
+				quoted = !quoted;
+				any = true;
+			}else if (!quoted && Character.isWhitespace(c)){
+				if (any)
+					args.add(arg.toString());
+				arg.setLength(0);
+				any = false;
+			}else{
+				arg.append(c);
+				any = true;
+			}
+		}
+		if (quoted)
+			throw new UsageException("unterminated quote");
+		if (any)
+			args.add(arg.toString());
+		return args;
+	}
+
+	private void write(Result r){
+		++commands;
+		if (r.error != null)
+			++errors;
+		LatencyHistogram h = latency.get(r.command);
+		if (h == null){
+			h = new LatencyHistogram();
+			latency.put(r.command, h);
+		}
+		h.record(r.nanos);
+
+		String ms = String.format("%.3f", r.nanos / 1e6);
+		if (format == Format.CSV){
+			if (r.error != null){
+				out.println(r.line + "," + csv(r.command) + ",false," + ms + "," + csv(r.error));
+			}else if (r.rows.isEmpty()){
+				out.println(r.line + "," + csv(r.command) + ",true," + ms);
+			}else{
+				for (String[] row : r.rows){
+					out.print(r.line + "," + csv(r.command) + ",true," + ms);
+					for (String v : row)
+						out.print("," + csv(v));
+					out.println();
+				}
+			}
+			return;
+		}
+		StringBuilder json = new StringBuilder(128);
+		json.append("{\"line\":").append(r.line)
+			.append(",\"command\":").append(Json.quote(r.command))
+			.append(",\"ok\":").append(r.error == null)
+			.append(",\"ms\":").append(ms);
+		if (r.error != null){
+			json.append(",\"error\":").append(Json.quote(r.error));
+		}else{
+			if (r.columns != null){
+				json.append(",\"columns\":[");
+				for (int i = 0; i < r.columns.length; ++i)
+					json.append(i == 0 ? "" : ",").append(Json.quote(r.columns[i]));
+				json.append(']');
+			}
+			json.append(",\"rows\":[");
+			for (int j = 0; j < r.rows.size(); ++j){
+				json.append(j == 0 ? "[" : ",[");
+				String[] row = r.rows.get(j);
+				for (int i = 0; i < row.length; ++i)
+					json.append(i == 0 ? "" : ",").append(Json.quote(row[i]));
+				json.append(']');
+			}
+			json.append(']');
+		}
+		out.println(json.append('}'));
+	}
+
+	private static String csv(String value){
+		if (value == null)
+			return "";
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+			return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private void report(long nanos){
+		double seconds = nanos / 1e9;
+		System.err.println(String.format("script: %d commands, %d failed, %.2fs, %.0f commands/s",
+			commands, errors, seconds, seconds == 0 ? 0.0 : commands / seconds));
+		for (Map.Entry<String, LatencyHistogram> e : latency.entrySet())
+			System.err.println(String.format("  %-8s %s", e.getKey(), e.getValue().summary()));
+	}
+}
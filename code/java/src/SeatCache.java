@@ -0,0 +1,301 @@
+/*
+ * Seat availability cache
+ * =======================
+ */
+
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class caches the number of available seats (ship seats minus
+ * Cruise.num_sold) per cruise number in an int-keyed open-addressing table
+ * backed by primitive arrays, so a lookup is a few array reads under an
+ * optimistic lock and does not allocate.
+ *
+ * In CACHED mode an entry is served until it is older than the TTL.  In
+ * STRICT mode every lookup misses, so callers always read the database and
+ * write the fresh value back.  Writers (bookings, cruise changes) update or
+ * invalidate entries once their transaction has committed.
+ *
+ * Writers race: a promoter, a group of bookings and a cache fill may put
+ * their values in any order.  Each writer takes a version() before it reads
+ * or writes the database and passes it to put().  A put is refused when the
+ * entry (or the whole cache) was invalidated after that version, since the
+ * value may predate the change that caused the invalidation.  While an entry
+ * is fresh, a put never raises it: num_sold only grows, so the lower count
+ * is the newer one.  Changes that free seats (a ship deleted, a cruise
+ * reassigned, a reload) always invalidate first.
+ *
+ */
+
+public class SeatCache{
+	public enum Mode { STRICT, CACHED }
+
+	//returned by get() when the value has to be read from the database
+	public static final int MISSING = Integer.MIN_VALUE;
+	//cached value for a cruise that has no ship assigned in CruiseInfo
+	public static final int NO_SHIP = Integer.MIN_VALUE + 1;
+
+	private static final int EMPTY = -1;
+
+	private final Mode mode;
+	private final long ttlNanos;
+	private final StampedLock lock = new StampedLock();
+
+	//the three arrays are swapped together on resize so an optimistic reader
+	//always sees a consistent set
+	private static final class Table{
+		final int[] keys;
+		final int[] values;
+		//System.nanoTime() when the entry was stored, 0 when invalidated
+		final long[] stamps;
+		//version() of the last invalidation of the entry
+		final long[] invalidated;
+
+		Table(int capacity){
+			keys = new int[capacity];
+			values = new int[capacity];
+			stamps = new long[capacity];
+			invalidated = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+		}
+	}
+
+	private volatile Table table;
+	private int size = 0;
+
+	//raised by every invalidation, under the write lock
+	private volatile long version = 1;
+	//version of the last invalidateAll()
+	private long allInvalidated = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public SeatCache(Mode mode, long ttlMillis, int expectedSize){
+		this.mode = mode;
+		this.ttlNanos = ttlMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		table = new Table(Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1);
+	}
+
+	/**
+	 * Method to build a cache from the seats.mode (strict|cached, default
+	 * cached) and seats.ttlMs (default 5000, 0 for no expiry) system properties.
+	 *
+	 * @return the new cache
+	 */
+	public static SeatCache fromSystemProperties(){
+		Mode mode = "strict".equalsIgnoreCase(System.getProperty("seats.mode")) ? Mode.STRICT : Mode.CACHED;
+		return new SeatCache(mode, Long.getLong("seats.ttlMs", 5000L), 4096);
+	}
+
+	private static int slot(int key, int mask){
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	public Mode getMode(){
+		return mode;
+	}
+
+	/**
+	 * Method to look up the available seats of a cruise.
+	 *
+	 * @param cnum the cruise number
+	 * @return the cached seats, NO_SHIP, or MISSING when the caller must read
+	 *         the database (always the case in STRICT mode)
+	 */
+	public int get(int cnum){
+		if (mode == Mode.STRICT){
+			misses.increment();
+			return MISSING;
+		}
+		long now = System.nanoTime();
+		long stamp = lock.tryOptimisticRead();
+		int result = find(cnum, now);
+		if (!lock.validate(stamp)){
+			stamp = lock.readLock();
+			try{
+				result = find(cnum, now);
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		if (result == MISSING)
+			misses.increment();
+		else
+			hits.increment();
+		return result;
+	}
+
+	private int find(int cnum, long now){
+		Table t = table;
+		int mask = t.keys.length - 1;
+		for (int i = slot(cnum, mask), n = 0; n <= mask; i = (i + 1) & mask, ++n){
+			int key = t.keys[i];
+			if (key == EMPTY)
+				return MISSING;
+			if (key == cnum){
+				long stored = t.stamps[i];
+				return stored == 0 || now - stored > ttlNanos ? MISSING : t.values[i];
+			}
+		}
+		return MISSING;
+	}
+
+	/**
+	 * @return the version to pass to put(), taken before the database is
+	 *         read or written
+	 */
+	public long version(){
+		return version;
+	}
+
+	/**
+	 * Method to store the available seats of a cruise after they were read
+	 * from, or committed to, the database.
+	 *
+	 * @param cnum the cruise number
+	 * @param seats the available seats, or NO_SHIP
+	 * @param since the version() taken before the value was read
+	 * @return the seats now cached, which is lower than seats when a newer
+	 *         count was already cached, or MISSING when the value was refused
+	 */
+	public int put(int cnum, int seats, long since){
+		int stored;
+		long stamp = lock.writeLock();
+		try{
+			stored = store(cnum, seats, since, System.nanoTime());
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		if (stored == MISSING)
+			refused.increment();
+		else
+			writes.increment();
+		return stored;
+	}
+
+	private int store(int cnum, int seats, long since, long now){
+		if (since < allInvalidated)
+			return MISSING;
+		if ((size + 1) * 2 > table.keys.length)
+			grow();
+		Table t = table;
+		int i = index(t, cnum);
+		if (t.keys[i] == EMPTY){
+			++size;
+		}else{
+			if (since < t.invalidated[i])
+				return MISSING;
+			long stored = t.stamps[i];
+			int cached = t.values[i];
+			boolean fresh = stored != 0 && now - stored <= ttlNanos;
+			if (fresh && cached != NO_SHIP && seats != NO_SHIP && cached < seats)
+				seats = cached;
+		}
+		t.keys[i] = cnum;
+		t.values[i] = seats;
+		t.stamps[i] = now == 0 ? 1 : now;
+		return seats;
+	}
+
+	//the slot holding cnum, or the empty slot where it belongs
+	private static int index(Table t, int cnum){
+		int mask = t.keys.length - 1;
+		int i = slot(cnum, mask);
+		while (t.keys[i] != EMPTY && t.keys[i] != cnum)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void grow(){
+		Table old = table;
+		Table t = new Table(old.keys.length * 2);
+		for (int i = 0; i < old.keys.length; ++i){
+			if (old.keys[i] != EMPTY){
+				int j = index(t, old.keys[i]);
+				t.keys[j] = old.keys[i];
+				t.values[j] = old.values[i];
+				t.stamps[j] = old.stamps[i];
+				t.invalidated[j] = old.invalidated[i];
+			}
+		}
+		table = t;
+	}
+
+	/**
+	 * Method to mark a cruise's entry stale so the next lookup reads the database.
+	 *
+	 * @param cnum the cruise number
+	 */
+	public void invalidate(int cnum){
+		long stamp = lock.writeLock();
+		try{
+			//an entry is kept even for a cruise not cached yet, so a fill that
+			//read before this invalidation cannot store its value afterwards
+			if ((size + 1) * 2 > table.keys.length)
+				grow();
+			Table t = table;
+			int i = index(t, cnum);
+			if (t.keys[i] == EMPTY){
+				t.keys[i] = cnum;
+				++size;
+			}
+			t.stamps[i] = 0;
+			t.invalidated[i] = ++version;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		invalidations.increment();
+	}
+
+	/**
+	 * Method to mark every entry stale, e.g. after a ship was deleted.
+	 */
+	public void invalidateAll(){
+		long stamp = lock.writeLock();
+		try{
+			Arrays.fill(table.stamps, 0L);
+			allInvalidated = ++version;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+		invalidations.increment();
+	}
+
+	public int size(){
+		long stamp = lock.readLock();
+		try{
+			return size;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public long getHits(){ return hits.sum(); }
+	public long getMisses(){ return misses.sum(); }
+
+	/**
+	 * @return the fraction of lookups answered from the cache
+	 */
+	public double getHitRate(){
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	/**
+	 * @return a one-line summary of the cache metrics
+	 */
+	public String stats(){
+		return String.format("seats cache (%s): entries=%d hits=%d misses=%d hitRate=%.1f%% writes=%d refused=%d invalidations=%d",
+			mode, size(), hits.sum(), misses.sum(), getHitRate() * 100, writes.sum(), refused.sum(), invalidations.sum());
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Slow query log
+ * ==============
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class logs every statement that takes longer than a threshold,
+ * with its bound parameters, to a local file that is rotated by size.
+ * A sampled share of the slow statements is run again on another pooled
+ * connection under EXPLAIN (ANALYZE, BUFFERS), inside a transaction that
+ * is rolled back, and the plan is written to the same file.  Slow
+ * statements are also aggregated by normalized text (literals replaced
+ * by ?, blanks collapsed) so the worst offenders can be listed.
+ *
+ * Statements that call a function other than a known read-only built-in,
+ * e.g. SELECT ... FROM book_cruise(?, ?), are never explained: the function
+ * would run again for real, take its row locks and use up sequence values,
+ * and the plan would only show a Function Scan.  Writes are explained only
+ * when slowlog.explainWrites is set.
+ *
+ * The log is off unless slowlog.thresholdMs is set.  A statement under
+ * the threshold costs one comparison.  Plans are captured by a single
+ * background thread with a short queue; when it falls behind, plans are
+ * skipped rather than slowing the caller down.
+ *
+ */
+
+public final class SlowQueryLog{
+
+	private SlowQueryLog(){
+	}
+
+	//slow statements with the same normalized text
+	private static final class Offender{
+		final String sql;
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		volatile String slowestParams = "";
+
+		Offender(String sql){
+			this.sql = sql;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Offender> offenders = new ConcurrentHashMap<String, Offender>();
+	private static final LongAdder explained = new LongAdder();
+	private static final LongAdder explainsSkipped = new LongAdder();
+
+	//words that may stand before '(' in a statement that is safe to run again:
+	//keywords and read-only built-in functions
+	private static final Set<String> SAFE_CALLS = new HashSet<String>(Arrays.asList(
+		"select", "from", "where", "and", "or", "not", "in", "exists", "any", "all", "some", "as", "on",
+		"join", "using", "by", "over", "filter", "within", "values", "case", "when", "then", "else",
+		"union", "intersect", "except", "lateral", "into", "table", "row", "array", "is", "distinct",
+		"count", "sum", "min", "max", "avg", "bool_and", "bool_or", "array_agg", "string_agg",
+		"row_number", "rank", "dense_rank", "lag", "lead", "first_value", "last_value",
+		"coalesce", "nullif", "greatest", "least", "cast", "extract", "date_trunc", "date_part",
+		"lower", "upper", "trim", "ltrim", "rtrim", "length", "char_length", "substring", "position",
+		"concat", "to_char", "to_date", "to_timestamp", "now", "abs", "round", "floor", "ceil", "mod",
+		"unnest", "generate_series", "cardinality", "array_length"));
+
+	//Long.MAX_VALUE until start() turns the log on
+	private static volatile long thresholdNanos = Long.MAX_VALUE;
+	private static double explainSample;
+	private static boolean explainWrites;
+	private static int explainTimeoutSeconds;
+	private static ConnectionPool pool;
+	private static ThreadPoolExecutor explainer;
+
+	private static Path file;
+	private static long maxBytes;
+	private static int keepFiles;
+	private static BufferedWriter writer;
+	private static long written;
+
+	/**
+	 * Method to turn the log on from the slowlog.thresholdMs (off when
+	 * unset), slowlog.file (slow-queries.log), slowlog.maxBytes (10 MB),
+	 * slowlog.files (5 rotated files kept), slowlog.explainSample (0, the
+	 * share of slow statements explained), slowlog.explainWrites (false)
+	 * and slowlog.explainTimeoutSeconds (30) system properties.  Calling it
+	 * again has no effect.
+	 *
+	 * @param connections the pool plans are captured on
+	 */
+	public static synchronized void start(ConnectionPool connections){
+		String threshold = System.getProperty("slowlog.thresholdMs");
+		if (threshold == null || explainer != null)
+			return;
+		pool = connections;
+		file = Paths.get(System.getProperty("slowlog.file", "slow-queries.log"));
+		maxBytes = Long.getLong("slowlog.maxBytes", 10L << 20);
+		keepFiles = Integer.getInteger("slowlog.files", 5);
+		explainSample = Double.parseDouble(System.getProperty("slowlog.explainSample", "0"));
+		explainWrites = Boolean.getBoolean("slowlog.explainWrites");
+		explainTimeoutSeconds = Integer.getInteger("slowlog.explainTimeoutSeconds", 30);
+		explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(16), r -> {
+			Thread t = new Thread(r, "slowlog-explain");
+			t.setDaemon(true);
+			return t;
+		}, (r, executor) -> explainsSkipped.increment());
+		thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(threshold));
+	}
+
+	/**
+	 * @return whether start() turned the log on
+	 */
+	public static boolean isEnabled(){
+		return thresholdNanos != Long.MAX_VALUE;
+	}
+
+	/**
+	 * Method to log a statement if it took longer than the threshold.
+	 *
+	 * @param sql the statement text, with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @param startNanos System.nanoTime() before the statement was sent
+	 */
+	public static void observe(String sql, Object[] params, long startNanos){
+		long nanos = System.nanoTime() - startNanos;
+		if (nanos < thresholdNanos)
+			return;
+		String bound = format(params);
+		String normalized = normalize(sql);
+		Offender o = offenders.get(normalized);
+		if (o == null)
+			o = offenders.computeIfAbsent(normalized, Offender::new);
+		o.count.increment();
+		o.totalNanos.add(nanos);
+		long m = o.maxNanos.get();
+		while (nanos > m){
+			if (o.maxNanos.compareAndSet(m, nanos)){
+				o.slowestParams = bound;
+				break;
+			}
+			m = o.maxNanos.get();
+		}
+		append(String.format("%s slow %.3f ms on %s%n  %s%n  params %s%n", Instant.now(),
+			nanos / 1e6, Thread.currentThread().getName(), sql, bound));
+		if (explainSample > 0 && ThreadLocalRandom.current().nextDouble() < explainSample
+				&& !callsFunction(sql) && (explainWrites || isRead(sql))){
+			Object[] copy = params == null ? new Object[0] : params.clone();
+			explainer.execute(() -> explain(sql, copy, bound));
+		}
+	}
+
+	//EXPLAIN ANALYZE runs the statement, so only reads are explained unless asked
+	private static boolean isRead(String sql){
+		String s = sql.stripLeading();
+		return s.regionMatches(true, 0, "SELECT", 0, 6) || s.regionMatches(true, 0, "WITH", 0, 4);
+	}
+
+	/**
+	 * Method to find out whether a statement calls a function that is not
+	 * in SAFE_CALLS, i.e. a word outside string literals followed by '('.
+	 * A CTE column list such as WITH d(a, b) counts as a call too, which
+	 * only means that statement is not explained.
+	 *
+	 * @param sql the statement text
+	 * @return true if running the statement again may have side effects
+	 */
+	static boolean callsFunction(String sql){
+		String previous = "";
+		int n = sql.length();
+		for (int i = 0; i < n; ){
+			char c = sql.charAt(i);
+			if (c == '\'' || c == '"'){
+				//a quoted identifier may still be called, so it counts as a word
+				int end = sql.indexOf(c, i + 1);
+				if (end < 0)
+					return false;
+				previous = c == '"' ? sql.substring(i + 1, end) : "";
+				i = end + 1;
+			}else if (Character.isLetter(c) || c == '_'){
+				int start = i;
+				while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '.' || sql.charAt(i) == '$'))
+					++i;
+				//INSERT INTO t (a, b) names columns, not arguments
+				previous = previous.equals("into") ? "" : sql.substring(start, i).toLowerCase();
+			}else if (c == '('){
+				if (!previous.isEmpty() && !SAFE_CALLS.contains(previous))
+					return true;
+				previous = "";
+				++i;
+			}else{
+				if (!Character.isWhitespace(c))
+					previous = "";
+				++i;
+			}
+		}
+		return false;
+	}
+
+	private static void explain(String sql, Object[] params, String bound){
+		StringBuilder plan = new StringBuilder(1024);
+		plan.append(Instant.now()).append(" plan for\n  ").append(sql).append("\n  params ").append(bound).append('\n');
+		ConnectionPool.PooledConnection conn = null;
+		try{
+			conn = pool.borrow();
+			// the statement runs for real; release() rolls back whatever it changed
+			conn.getConnection().setAutoCommit(false);
+			try (PreparedStatement stmt = conn.getConnection().prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql)){
+				stmt.setQueryTimeout(explainTimeoutSeconds);
+				DBproject.bind(stmt, params);
+				try (ResultSet rs = stmt.executeQuery()){
+					while (rs.next())
+						plan.append("    ").append(rs.getString(1)).append('\n');
+				}
+			}
+			explained.increment();
+		}catch (SQLException e){
+			plan.append("    EXPLAIN failed: ").append(e.getMessage()).append('\n');
+		}finally{
+			if (conn != null)
+				pool.release(conn);
+		}
+		append(plan.toString());
+	}
+
+	private static String format(Object[] params){
+		if (params == null || params.length == 0)
+			return "[]";
+		StringBuilder s = new StringBuilder(16 * params.length).append('[');
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0)
+				s.append(", ");
+			Object p = params[i];
+			if (p == null){
+				s.append("null");
+			}else if (p instanceof Number || p instanceof Boolean){
+				s.append(p);
+			}else{
+				String v = p.toString();
+				if (v.length() > 200)
+					v = v.substring(0, 200) + "...";
+				s.append('\'').append(v.replace("'", "''")).append('\'');
+			}
+		}
+		return s.append(']').toString();
+	}
+
+	/**
+	 * Method to reduce a statement to the shape it shares with others:
+	 * string and number literals become ?, runs of blanks become one
+	 * blank and keywords and names are lower-cased.
+	 *
+	 * @param sql the statement text
+	 * @return the normalized text
+	 */
+	public static String normalize(String sql){
+		StringBuilder s = new StringBuilder(sql.length());
+		int n = sql.length();
+		for (int i = 0; i < n; ++i){
+			char c = sql.charAt(i);
+			if (c == '\''){
+				// skips to the closing quote; '' is a quote inside the literal
+				for (++i; i < n; ++i){
+					if (sql.charAt(i) != '\'')
+						continue;
+					if (i + 1 < n && sql.charAt(i + 1) == '\'')
+						++i;
+					else
+						break;
+				}
+				s.append('?');
+			}else if (Character.isDigit(c) && (s.length() == 0 || !Character.isLetterOrDigit(s.charAt(s.length() - 1)) && s.charAt(s.length() - 1) != '_')){
+				while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+					++i;
+				s.append('?');
+			}else if (Character.isWhitespace(c)){
+				while (i + 1 < n && Character.isWhitespace(sql.charAt(i + 1)))
+					++i;
+				if (s.length() > 0)
+					s.append(' ');
+			}else{
+				s.append(Character.toLowerCase(c));
+			}
+		}
+		int end = s.length();
+		while (end > 0 && s.charAt(end - 1) == ' ')
+			--end;
+		s.setLength(end);
+		return s.toString();
+	}
+
+	//appends to the log file, rotating it to file.1 ... file.N when it grows past maxBytes
+	private static synchronized void append(String entry){
+		try{
+			if (writer == null){
+				writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				written = Files.size(file);
+			}
+			writer.write(entry);
+			writer.flush();
+			written += entry.length();
+			if (written >= maxBytes)
+				rotate();
+		}catch (IOException e){
+			System.err.println("Could not write the slow query log " + file + ": " + e.getMessage());
+		}
+	}
+
+	private static void rotate() throws IOException {
+		writer.close();
+		writer = null;
+		for (int i = keepFiles - 1; i >= 1; --i){
+			Path from = file.resolveSibling(file.getFileName() + "." + i);
+			if (Files.exists(from))
+				Files.move(from, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (keepFiles > 0)
+			Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		else
+			Files.delete(file);
+	}
+
+	/**
+	 * @param top the number of statements to list
+	 * @return the slow statements with the most total time, worst first
+	 */
+	public static String report(int top){
+		Offender[] sorted = offenders.values().toArray(new Offender[0]);
+		Arrays.sort(sorted, (a, b) -> Long.compare(b.totalNanos.sum(), a.totalNanos.sum()));
+		StringBuilder s = new StringBuilder(1024);
+		s.append(String.format("slow queries (over %d ms): %d shapes, %d plans captured, %d plans skipped%n",
+			TimeUnit.NANOSECONDS.toMillis(thresholdNanos), sorted.length, explained.sum(), explainsSkipped.sum()));
+		for (int i = 0; i < sorted.length && i < top; ++i){
+			Offender o = sorted[i];
+			long n = o.count.sum();
+			s.append(String.format("  count=%d total=%.1fms avg=%.1fms max=%.1fms slowest params %s%n    %s%n",
+				n, o.totalNanos.sum() / 1e6, o.totalNanos.sum() / 1e6 / n, o.maxNanos.get() / 1e6, o.slowestParams, o.sql));
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Method to stop capturing plans and close the log file.
+	 */
+	public static synchronized void close(){
+		if (explainer != null)
+			explainer.shutdownNow();
+		try{
+			if (writer != null)
+				writer.close();
+		}catch (IOException e){
+			// ignored.
+		}
+		writer = null;
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Waitlist promotion
+ * ==================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class moves waitlisted reservations to 'R' when seats free up on
+ * their cruise, oldest rnum first.  A pass walks every cruise that has a
+ * free seat and a waitlist in cnum order, a batch of cruises per
+ * transaction, through the promote_waitlist function (migrations/V003):
+ * one statement ranks the waitlist, updates the reservations and raises
+ * Cruise.num_sold for the whole batch.  Cruises a booking holds locked
+ * are skipped and retried by the next pass.  The seat cache, the search
+ * index and the reservation index are updated with the promoted rows.
+ *
+ * Before each pass the backlog, i.e. the reservations that could be
+ * promoted right now, is counted so stats() shows how far behind the
+ * promoter is.  Several clients may run promoters at once.
+ *
+ */
+
+public class WaitlistPromoter{
+
+	private static final String PROMOTE_SQL =
+		"SELECT o_cid, o_available, o_rnums, o_ccids FROM promote_waitlist(?, ?)";
+	private static final String BACKLOG_SQL =
+		"SELECT o_cruises, o_reservations FROM waitlist_backlog()";
+
+	private final DBproject esql;
+	private final int batchCruises;
+	private final long intervalMillis;
+	private ScheduledExecutorService scheduler = null;
+
+	private final LongAdder passes = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder promoted = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LatencyHistogram passLatency = new LatencyHistogram();
+	private final AtomicLong backlogCruises = new AtomicLong();
+	private final AtomicLong backlogReservations = new AtomicLong();
+	private volatile long lastPassEnd = 0;
+
+	/**
+	 * @param esql the database, whose seat cache and reservation index are kept in step
+	 * @param batchCruises the cruises handled per transaction
+	 * @param intervalMillis the pause between passes when started in the background
+	 */
+	public WaitlistPromoter(DBproject esql, int batchCruises, long intervalMillis){
+		if (batchCruises < 1)
+			throw new IllegalArgumentException("batchCruises must be at least 1");
+		this.esql = esql;
+		this.batchCruises = batchCruises;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Method to build a promoter from the waitlist.batch (1000) and
+	 * waitlist.intervalMs (5000) system properties.
+	 *
+	 * @param esql the database
+	 * @return the promoter, not started yet
+	 */
+	public static WaitlistPromoter fromSystemProperties(DBproject esql){
+		return new WaitlistPromoter(esql, Integer.getInteger("waitlist.batch", 1000),
+			Long.getLong("waitlist.intervalMs", 5000L));
+	}
+
+	/**
+	 * Method to run passes on a background thread, intervalMillis apart.
+	 * Calling it again has no effect.
+	 */
+	public synchronized void start(){
+		if (scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "waitlist-promoter");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try{
+				runPass();
+			}catch (SQLException e){
+				// counted by runPass; the next pass starts over
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to stop the background passes, letting a running one finish.
+	 */
+	public synchronized void close(){
+		if (scheduler != null)
+			scheduler.shutdown();
+		scheduler = null;
+	}
+
+	/**
+	 * Method to promote every waitlisted reservation that fits, one batch of
+	 * cruises per transaction.  A batch that fails is rolled back on its own;
+	 * earlier batches stay committed.
+	 *
+	 * @return the number of reservations promoted
+	 * @throws java.sql.SQLException when a batch failed
+	 */
+	public long runPass() throws SQLException {
+		long start = System.nanoTime();
+		long count = 0;
+		Metrics.begin("WaitlistPromotion");
+		try{
+			readBacklog();
+			int after = Integer.MIN_VALUE;
+			int rows;
+			do{
+				rows = 0;
+				long since = esql.getSeatCache().version();
+				ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+				//autocommit is on, so each call is its own transaction
+				try{
+					try (ResultSet rs = DBproject.query(conn, PROMOTE_SQL, after, batchCruises)){
+						while (rs.next()){
+							++rows;
+							after = rs.getInt(1);
+							count += apply(rs, since);
+						}
+					}
+					if (rows > 0)
+						esql.wrote(conn);
+				}finally{
+					esql.getPool().release(conn);
+				}
+				batches.increment();
+			}while (rows == batchCruises);
+			passes.increment();
+			return count;
+		}catch (SQLException e){
+			failures.increment();
+			throw e;
+		}finally{
+			promoted.add(count);
+			Metrics.end();
+			passLatency.record(System.nanoTime() - start);
+			lastPassEnd = System.currentTimeMillis();
+		}
+	}//end runPass
+
+	//updates the seat cache and reservation index with one cruise's promotions
+	private int apply(ResultSet rs, long since) throws SQLException {
+		int cnum = rs.getInt(1);
+		int available = rs.getInt(2);
+		if (rs.wasNull()){
+			skipped.increment();
+			return 0;
+		}
+		esql.seatsChanged(cnum, available, since);
+		Array rnums = rs.getArray(3);
+		if (rnums == null)
+			return 0;
+		Integer[] r = (Integer[]) rnums.getArray();
+		Integer[] c = (Integer[]) rs.getArray(4).getArray();
+		ReservationIndex index = esql.getReservationIndex();
+		if (index != null)
+			for (int i = 0; i < r.length; ++i)
+				index.put(r[i], c[i], cnum, 'R');
+		return r.length;
+	}
+
+	private void readBacklog() throws SQLException {
+		ConnectionPool.PooledConnection conn = esql.getPool().borrow();
+		try (ResultSet rs = DBproject.query(conn, BACKLOG_SQL)){
+			rs.next();
+			backlogCruises.set(rs.getLong(1));
+			backlogReservations.set(rs.getLong(2));
+		}finally{
+			esql.getPool().release(conn);
+		}
+	}
+
+	public long getPromoted(){ return promoted.sum(); }
+	public long getPasses(){ return passes.sum(); }
+	public long getSkipped(){ return skipped.sum(); }
+
+	/**
+	 * @return the reservations that could be promoted when the last pass started
+	 */
+	public long getBacklog(){ return backlogReservations.get(); }
+
+	public String stats(){
+		long last = lastPassEnd;
+		return String.format("waitlist: promoted=%d passes=%d batches=%d skippedCruises=%d failures=%d " +
+			"backlog=%d reservations on %d cruises lastPass=%s pass %s",
+			promoted.sum(), passes.sum(), batches.sum(), skipped.sum(), failures.sum(),
+			backlogReservations.get(), backlogCruises.get(),
+			last == 0 ? "never" : (System.currentTimeMillis() - last) + "ms ago", passLatency.summary());
+	}
+
+	/**
+	 * Runs one promotion pass, or keeps running passes with --watch.
+	 *
+	 * @param args <dbname> <port> <user> [--watch]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || (args.length > 3 && !args[3].equals("--watch"))) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + WaitlistPromoter.class.getName () +
+		            " <dbname> <port> <user> [--watch]");
+			return;
+		}//end if
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			WaitlistPromoter promoter = fromSystemProperties(esql);
+			if (args.length > 3){
+				promoter.start();
+				while (true){
+					Thread.sleep(Math.max(1000L, promoter.intervalMillis));
+					System.out.println(promoter.stats());
+				}
+			}
+			promoter.runPass();
+			System.out.println(promoter.stats());
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
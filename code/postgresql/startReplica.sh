@@ -0,0 +1,32 @@
+#! /bin/bash
+# Starts a streaming replica of the instance started by startPostgreSQL.sh,
+# for trying out read replicas (-Dreplicas=localhost:9998). Run it after
+# startPostgreSQL.sh and createPostgreDB.sh, from the same shell.
+folder=/tmp/$USER
+export REPLICA_PGDATA=$folder/myReplica/data
+export REPLICA_PGSOCKETS=$folder/myReplica/sockets
+export REPLICA_PGPORT=${REPLICA_PGPORT:-9998}
+
+echo $folder/myReplica
+
+#Clear folder
+rm -rf $folder/myReplica
+
+#Initialize folders
+mkdir -p $REPLICA_PGDATA
+mkdir -p $REPLICA_PGSOCKETS
+chmod 700 $REPLICA_PGDATA
+
+#Copy the primary; -R writes the settings that make the copy follow it
+echo "Copying the primary on port $PGPORT ... "
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_PGDATA -R -X stream
+
+sleep 1
+#Start the replica
+pg_ctl -o "-c unix_socket_directories=$REPLICA_PGSOCKETS -p $REPLICA_PGPORT -c hot_standby=on" -D $REPLICA_PGDATA -l $folder/replica_logfile start
+
+sleep 1
+echo "Replication status on the primary:"
+psql -h localhost -p $PGPORT -d postgres -c "SELECT client_addr, state, sent_lsn, replay_lsn FROM pg_stat_replication"
+echo "Replica in recovery:"
+psql -h localhost -p $REPLICA_PGPORT -d postgres -c "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()"
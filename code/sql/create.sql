@@ -1,3 +1,6 @@
+DROP TABLE IF EXISTS schema_migrations;--migrations are re-applied to a rebuilt schema
+DROP TABLE IF EXISTS reservation_status_counts;--report counters, see migrations/V002
+DROP TABLE IF EXISTS ship_repair_counts;
 DROP TABLE IF EXISTS Customer CASCADE;--OK
 DROP TABLE IF EXISTS Cruise CASCADE;--OK
 DROP TABLE IF EXISTS Captain CASCADE;--OK
@@ -217,4 +220,4 @@ COPY Schedule (
 	arrival_time
 )
 FROM 'schedule.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
@@ -0,0 +1,46 @@
+-----------------------------------------------------
+-- V001: indexes for the booking and report queries --
+-----------------------------------------------------
+-- create.sql only declares primary keys, so every lookup below used to be
+-- a sequential scan.
+
+-- book_cruise: Reservation WHERE ccid = ? AND cid = ?
+-- The seeded data has customers with more than one reservation on the same
+-- cruise, so the index is only made unique when the data allows it;
+-- book_cruise locks the Cruise row, so no new duplicates are created either way.
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM Reservation GROUP BY ccid, cid HAVING COUNT(*) > 1) THEN
+		RAISE NOTICE 'Reservation has duplicate (ccid, cid) pairs; creating a non-unique index';
+		CREATE INDEX reservation_ccid_cid_idx ON Reservation (ccid, cid);
+	ELSE
+		CREATE UNIQUE INDEX reservation_ccid_cid_idx ON Reservation (ccid, cid);
+	END IF;
+END
+$$;
+
+-- FindPassengersCountWithStatus: COUNT(ccid) WHERE status = ? as an index-only scan
+CREATE INDEX reservation_status_ccid_idx ON Reservation (status, ccid);
+
+-- per-status reservations of a cruise in rnum order (waitlist first come, first served)
+CREATE INDEX reservation_w_cid_rnum_idx ON Reservation (cid, rnum) WHERE status = 'W';
+CREATE INDEX reservation_r_cid_rnum_idx ON Reservation (cid, rnum) WHERE status = 'R';
+CREATE INDEX reservation_c_cid_rnum_idx ON Reservation (cid, rnum) WHERE status = 'C';
+
+-- seat query and book_cruise: CruiseInfo.cruise_id -> ship_id without a heap visit
+CREATE INDEX cruiseinfo_cruise_ship_idx ON CruiseInfo (cruise_id, ship_id);
+
+-- ListsTotalNumberOfRepairsPerShip: GROUP BY ship_id over an index-only scan
+CREATE INDEX repairs_ship_rid_idx ON Repairs (ship_id, rid);
+
+-- Print: Customer WHERE fname = ? AND lname = ?
+CREATE INDEX customer_lname_fname_idx ON Customer (lname, fname);
+
+-- Schedule lookups by cruise
+CREATE INDEX schedule_cruisenum_idx ON Schedule (cruiseNum);
+
+ANALYZE Reservation;
+ANALYZE CruiseInfo;
+ANALYZE Repairs;
+ANALYZE Customer;
+ANALYZE Schedule;
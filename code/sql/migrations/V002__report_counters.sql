@@ -0,0 +1,137 @@
+------------------------------------------------------
+-- V002: incrementally maintained report counters --
+------------------------------------------------------
+-- ListsTotalNumberOfRepairsPerShip and FindPassengersCountWithStatus read
+-- these tables instead of grouping Repairs and Reservation on every call.
+-- Triggers keep them in step with every insert, update, delete and
+-- truncate, whichever client makes the change; ReportCounters verifies
+-- and rebuilds them.
+
+-- reservations per status, spread over 16 slots so concurrent bookings do
+-- not all update the same row; a report sums 16 rows. The initial counts
+-- are spread by rnum & 15, but which slot holds a reservation does not
+-- matter: reports and ReportCounters.verify sum the slots per status.
+CREATE TABLE reservation_status_counts
+(
+	status CHAR(1) NOT NULL,
+	slot INTEGER NOT NULL,
+	total BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY (status, slot)
+);
+
+INSERT INTO reservation_status_counts (status, slot, total)
+SELECT s.status, g.slot, COALESCE(r.total, 0)
+FROM (VALUES ('W'), ('C'), ('R')) AS s (status)
+CROSS JOIN generate_series(0, 15) AS g (slot)
+LEFT JOIN (SELECT status, rnum & 15 AS slot, COUNT(*) AS total
+           FROM Reservation WHERE status IS NOT NULL
+           GROUP BY status, rnum & 15) r
+	ON r.status = s.status AND r.slot = g.slot;
+
+-- Maintained per statement, not per row: a multi-row INSERT or UPDATE of
+-- Reservation (book_cruises, promote_waitlist) would otherwise lock
+-- counter rows in the order its rows were written, and two such
+-- statements could deadlock on them. Each transaction writes to one
+-- slot, txid & 15. Before its first change it locks all three rows of
+-- that slot in status order, so two transactions either share no counter
+-- row or take the shared ones in the same order. The deltas of a
+-- statement are summed per status and applied with one UPDATE.
+CREATE OR REPLACE FUNCTION reservation_status_counts_stmt() RETURNS TRIGGER
+AS $$
+DECLARE
+	v_slot INTEGER := (txid_current() & 15)::INTEGER;
+	v_w BIGINT := 0;
+	v_c BIGINT := 0;
+	v_r BIGINT := 0;
+BEGIN
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		SELECT COUNT(*) FILTER (WHERE status = 'W'), COUNT(*) FILTER (WHERE status = 'C'),
+		       COUNT(*) FILTER (WHERE status = 'R')
+		INTO v_w, v_c, v_r
+		FROM new_rows;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		SELECT v_w - COUNT(*) FILTER (WHERE status = 'W'), v_c - COUNT(*) FILTER (WHERE status = 'C'),
+		       v_r - COUNT(*) FILTER (WHERE status = 'R')
+		INTO v_w, v_c, v_r
+		FROM old_rows;
+	END IF;
+	IF v_w = 0 AND v_c = 0 AND v_r = 0 THEN
+		RETURN NULL;
+	END IF;
+
+	PERFORM 1 FROM reservation_status_counts WHERE slot = v_slot ORDER BY status FOR UPDATE;
+	UPDATE reservation_status_counts
+	SET total = total + CASE status WHEN 'W' THEN v_w WHEN 'C' THEN v_c ELSE v_r END
+	WHERE slot = v_slot
+	  AND CASE status WHEN 'W' THEN v_w WHEN 'C' THEN v_c ELSE v_r END <> 0;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- one trigger per event, since a trigger with transition tables may only
+-- fire on one event and may not list columns (PostgreSQL 10 or later)
+CREATE TRIGGER reservation_status_counts_insert
+AFTER INSERT ON Reservation REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE reservation_status_counts_stmt();
+
+CREATE TRIGGER reservation_status_counts_update
+AFTER UPDATE ON Reservation REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE reservation_status_counts_stmt();
+
+CREATE TRIGGER reservation_status_counts_delete
+AFTER DELETE ON Reservation REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE reservation_status_counts_stmt();
+
+-- repairs per ship; a ship gets a row with its first repair
+CREATE TABLE ship_repair_counts
+(
+	ship_id INTEGER NOT NULL,
+	total BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY (ship_id)
+);
+
+INSERT INTO ship_repair_counts (ship_id, total)
+SELECT ship_id, COUNT(*) FROM Repairs GROUP BY ship_id;
+
+CREATE OR REPLACE FUNCTION ship_repair_counts_row() RETURNS TRIGGER
+AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		UPDATE ship_repair_counts SET total = total - 1 WHERE ship_id = OLD.ship_id;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO ship_repair_counts (ship_id, total) VALUES (NEW.ship_id, 1)
+		ON CONFLICT (ship_id) DO UPDATE SET total = ship_repair_counts.total + 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER ship_repair_counts_row
+AFTER INSERT OR DELETE OR UPDATE OF ship_id ON Repairs
+FOR EACH ROW EXECUTE PROCEDURE ship_repair_counts_row();
+
+-- TRUNCATE fires none of the triggers above (BulkLoader truncates before
+-- loading). It zeroes every slot, locking them in (slot, status) order,
+-- which agrees with the status order a writer uses within its one slot.
+CREATE OR REPLACE FUNCTION report_counts_truncate() RETURNS TRIGGER
+AS $$
+BEGIN
+	IF TG_TABLE_NAME = 'reservation' THEN
+		PERFORM 1 FROM reservation_status_counts ORDER BY slot, status FOR UPDATE;
+		UPDATE reservation_status_counts SET total = 0;
+	ELSE
+		DELETE FROM ship_repair_counts;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER reservation_status_counts_truncate
+AFTER TRUNCATE ON Reservation
+FOR EACH STATEMENT EXECUTE PROCEDURE report_counts_truncate();
+
+CREATE TRIGGER ship_repair_counts_truncate
+AFTER TRUNCATE ON Repairs
+FOR EACH STATEMENT EXECUTE PROCEDURE report_counts_truncate();
@@ -0,0 +1,89 @@
+---------------------------------------------
+-- V003: set-based waitlist promotion --
+---------------------------------------------
+-- Promotes waitlisted ('W') reservations to 'R' on cruises that have free
+-- seats, oldest rnum first, for up to p_cruises cruises with cnum > p_after
+-- in one transaction. Cruise rows another transaction holds (a booking in
+-- book_cruise) are skipped rather than waited for and are picked up by the
+-- next pass. Cruise.num_sold is raised by the number promoted under the
+-- same row lock, so a cruise is never oversold.
+--
+-- One row is returned per candidate cruise, in cnum order:
+--   o_cid        the cruise
+--   o_available  seats left afterwards, NULL when the cruise was skipped
+--   o_rnums      the promoted reservations, oldest first (NULL for none)
+--   o_ccids      their customers, in the same order
+-- The caller passes the last o_cid as p_after to continue the pass.
+CREATE OR REPLACE FUNCTION promote_waitlist(p_after INTEGER, p_cruises INTEGER)
+RETURNS TABLE (o_cid INTEGER, o_available INTEGER, o_rnums INTEGER[], o_ccids INTEGER[])
+AS $$
+DECLARE
+	v_candidates INTEGER[];
+	v_locked INTEGER[];
+BEGIN
+	-- reservation_w_cid_rnum_idx answers the EXISTS from the index alone
+	SELECT array_agg(K.cnum ORDER BY K.cnum) INTO v_candidates
+	FROM (SELECT C.cnum
+	      FROM Cruise C, CruiseInfo CI, Ship S
+	      WHERE C.cnum > p_after AND CI.cruise_id = C.cnum AND S.id = CI.ship_id
+	        AND EXISTS (SELECT 1 FROM Reservation W WHERE W.cid = C.cnum AND W.status = 'W')
+	      GROUP BY C.cnum
+	      HAVING MAX(S.seats) > C.num_sold
+	      ORDER BY C.cnum
+	      LIMIT p_cruises) K;
+	IF v_candidates IS NULL THEN
+		RETURN;
+	END IF;
+
+	SELECT array_agg(L.cnum) INTO v_locked
+	FROM (SELECT cnum FROM Cruise WHERE cnum = ANY (v_candidates)
+	      ORDER BY cnum FOR UPDATE SKIP LOCKED) L;
+
+	-- a new statement sees num_sold as committed before the locks were taken
+	RETURN QUERY
+	WITH free AS (
+		SELECT C.cnum, MAX(S.seats) - C.num_sold AS seats
+		FROM Cruise C, CruiseInfo CI, Ship S
+		WHERE C.cnum = ANY (v_locked) AND CI.cruise_id = C.cnum AND S.id = CI.ship_id
+		GROUP BY C.cnum
+	), ranked AS (
+		SELECT W.rnum, W.cid, row_number() OVER (PARTITION BY W.cid ORDER BY W.rnum) AS position
+		FROM Reservation W
+		WHERE W.cid = ANY (v_locked) AND W.status = 'W'
+	), promoted AS (
+		UPDATE Reservation R SET status = 'R'
+		FROM ranked K, free F
+		WHERE R.rnum = K.rnum AND F.cnum = K.cid AND K.position <= F.seats
+		RETURNING R.rnum, R.ccid, R.cid
+	), per_cruise AS (
+		SELECT P.cid, COUNT(*)::INTEGER AS n,
+		       array_agg(P.rnum ORDER BY P.rnum) AS rnums, array_agg(P.ccid ORDER BY P.rnum) AS ccids
+		FROM promoted P
+		GROUP BY P.cid
+	), sold AS (
+		UPDATE Cruise C SET num_sold = C.num_sold + PC.n
+		FROM per_cruise PC
+		WHERE C.cnum = PC.cid
+		RETURNING C.cnum
+	)
+	SELECT K.cnum, F.seats - COALESCE(PC.n, 0), PC.rnums, PC.ccids
+	FROM unnest(v_candidates) AS K (cnum)
+	LEFT JOIN free F ON F.cnum = K.cnum
+	LEFT JOIN per_cruise PC ON PC.cid = K.cnum
+	ORDER BY K.cnum;
+END;
+$$ LANGUAGE plpgsql;
+
+-- reservations that could be promoted right now, i.e. how far behind the
+-- promoter is: per cruise the smaller of its free seats and its waitlist
+CREATE OR REPLACE FUNCTION waitlist_backlog(OUT o_cruises BIGINT, OUT o_reservations BIGINT)
+AS $$
+	SELECT COUNT(*), COALESCE(SUM(LEAST(F.seats, F.waiting)), 0)
+	FROM (SELECT MAX(S.seats) - C.num_sold AS seats,
+	             (SELECT COUNT(*) FROM Reservation W WHERE W.cid = C.cnum AND W.status = 'W') AS waiting
+	      FROM Cruise C, CruiseInfo CI, Ship S
+	      WHERE CI.cruise_id = C.cnum AND S.id = CI.ship_id
+	      GROUP BY C.cnum
+	      HAVING MAX(S.seats) > C.num_sold) F
+	WHERE F.waiting > 0;
+$$ LANGUAGE sql STABLE;
@@ -0,0 +1,82 @@
+----------------------------------------
+-- V004: many bookings in one call --
+----------------------------------------
+-- Books request i = (p_ccids[i], p_cids[i]) for every i in one statement,
+-- with the same W/R/C rules as book_cruise:
+--   no reservation -> 'R' if a seat is free, otherwise 'W'
+--   'W'            -> 'R' if a seat is free, otherwise stays 'W'
+--   'R'            -> 'C'
+--   'C'            -> stays 'C'
+-- The Cruise rows of the batch are locked in cnum order, so batches and
+-- single bookings never deadlock. On each cruise the free seats go to the
+-- requests that need one in array order. New reservations are inserted
+-- with one multi-row INSERT and num_sold is raised once per cruise by the
+-- seats granted. Each (customer, cruise) pair must appear at most once per
+-- call; GroupCommitWriter moves repeats to its next batch.
+--
+-- One row is returned per request whose customer and cruise exist, in
+-- array order; o_i is the 1-based position of the request and o_available
+-- the seats left on its cruise after the batch, NULL when it has no ship.
+CREATE OR REPLACE FUNCTION book_cruises(p_ccids INTEGER[], p_cids INTEGER[])
+RETURNS TABLE (o_i INTEGER, o_rnum INTEGER, o_previous CHAR(1), o_status CHAR(1), o_available INTEGER)
+AS $$
+BEGIN
+	PERFORM 1 FROM Cruise WHERE cnum = ANY (p_cids) ORDER BY cnum FOR UPDATE;
+
+	-- a new statement sees num_sold as committed before the locks were taken
+	RETURN QUERY
+	WITH req AS (
+		SELECT r.i::INTEGER AS i, r.ccid, r.cid
+		FROM unnest(p_ccids, p_cids) WITH ORDINALITY AS r (ccid, cid, i)
+		WHERE EXISTS (SELECT 1 FROM Cruise C WHERE C.cnum = r.cid)
+		  AND EXISTS (SELECT 1 FROM Customer U WHERE U.id = r.ccid)
+	), prev AS (
+		SELECT q.i, q.ccid, q.cid, p.rnum, p.status,
+		       p.status IS NULL OR p.status = 'W' AS seeker
+		FROM req q
+		LEFT JOIN LATERAL (SELECT R.rnum, R.status FROM Reservation R
+		                   WHERE R.ccid = q.ccid AND R.cid = q.cid
+		                   ORDER BY R.rnum LIMIT 1) p ON true
+	), free AS (
+		SELECT C.cnum, MAX(S.seats) - C.num_sold AS seats
+		FROM Cruise C, CruiseInfo CI, Ship S
+		WHERE C.cnum = ANY (p_cids) AND CI.cruise_id = C.cnum AND S.id = CI.ship_id
+		GROUP BY C.cnum
+	), decided AS (
+		SELECT p.i, p.ccid, p.cid, p.rnum, p.status AS previous,
+		       CAST(CASE WHEN NOT p.seeker THEN 'C'
+		                 WHEN row_number() OVER (PARTITION BY p.cid, p.seeker ORDER BY p.i) <= COALESCE(F.seats, 0) THEN 'R'
+		                 ELSE 'W' END AS CHAR(1)) AS status
+		FROM prev p
+		LEFT JOIN free F ON F.cnum = p.cid
+	), inserted AS (
+		INSERT INTO Reservation (rnum, ccid, cid, status)
+		SELECT nextval('reservation_rnum_seq'), d.ccid, d.cid, d.status
+		FROM decided d
+		WHERE d.rnum IS NULL
+		ORDER BY d.i
+		RETURNING rnum, ccid, cid
+	), changed AS (
+		UPDATE Reservation R SET status = d.status
+		FROM decided d
+		WHERE d.rnum IS NOT NULL AND R.rnum = d.rnum AND d.status <> d.previous
+		RETURNING R.rnum
+	), granted AS (
+		SELECT d.cid, COUNT(*)::INTEGER AS n
+		FROM decided d
+		WHERE d.status = 'R' AND (d.previous IS NULL OR d.previous = 'W')
+		GROUP BY d.cid
+	), sold AS (
+		UPDATE Cruise C SET num_sold = C.num_sold + G.n
+		FROM granted G
+		WHERE C.cnum = G.cid
+		RETURNING C.cnum
+	)
+	SELECT d.i, COALESCE(d.rnum, I.rnum), d.previous, d.status, F.seats - COALESCE(G.n, 0)
+	FROM decided d
+	LEFT JOIN inserted I ON d.rnum IS NULL AND I.ccid = d.ccid AND I.cid = d.cid
+	LEFT JOIN free F ON F.cnum = d.cid
+	LEFT JOIN granted G ON G.cid = d.cid
+	ORDER BY d.i;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,155 @@
+-------------------------------------------------
+-- V005: change notifications for client caches --
+-------------------------------------------------
+-- Every statement that changes a table from create.sql sends NOTIFY on
+-- the channel 'changes', so clients holding cached rows (ChangeListener)
+-- can drop the keys another client wrote. Payloads are
+--
+--   <table>:<op>:<keys>:<epoch ms>
+--
+-- with op one of I, U, D, T (truncate), keys a comma separated list of
+-- the keys the statement touched, and the time the trigger ran on the
+-- server clock. A statement touching more than the trigger's limit of
+-- keys, and every TRUNCATE, sends '*' instead, meaning "reload the table".
+-- Long key lists are split over several notifications of at most 500
+-- keys, well below the 8000 byte payload limit.
+--
+-- The key is the one the client caches by: the primary key for most
+-- tables, the cruise for CruiseInfo and Schedule. The triggers are
+-- statement-level with transition tables (PostgreSQL 10 or later), so a
+-- multi-row booking or a COPY sends one notification, not one per row.
+-- NOTIFY is delivered when the transaction commits and dropped when it
+-- rolls back.
+CREATE OR REPLACE FUNCTION notify_changes() RETURNS TRIGGER
+AS $$
+DECLARE
+	v_key TEXT := TG_ARGV[0];
+	v_limit INTEGER := TG_ARGV[1]::INTEGER;
+	v_prefix TEXT := lower(TG_TABLE_NAME) || ':' || left(TG_OP, 1) || ':';
+	v_suffix TEXT := ':' || (extract(epoch FROM clock_timestamp()) * 1000)::BIGINT;
+	v_keys TEXT;
+	v_count INTEGER;
+	v_chunk TEXT;
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		PERFORM pg_notify('changes', v_prefix || '*' || v_suffix);
+		RETURN NULL;
+	END IF;
+
+	-- the transition tables are only visible to dynamic SQL by name
+	v_keys := CASE TG_OP
+		WHEN 'INSERT' THEN format('SELECT %I AS k FROM new_rows', v_key)
+		WHEN 'DELETE' THEN format('SELECT %I AS k FROM old_rows', v_key)
+		ELSE format('SELECT %I AS k FROM old_rows UNION SELECT %I FROM new_rows', v_key, v_key)
+	END;
+	EXECUTE format('SELECT COUNT(DISTINCT k) FROM (%s) s', v_keys) INTO v_count;
+	IF v_count = 0 THEN
+		RETURN NULL;
+	ELSIF v_count > v_limit THEN
+		PERFORM pg_notify('changes', v_prefix || '*' || v_suffix);
+		RETURN NULL;
+	END IF;
+
+	FOR v_chunk IN EXECUTE format(
+		'SELECT string_agg(k::TEXT, '','' ORDER BY k) FROM ' ||
+		'(SELECT k, (row_number() OVER (ORDER BY k) - 1) / 500 AS g FROM (SELECT DISTINCT k FROM (%s) s) d) c ' ||
+		'GROUP BY g ORDER BY g', v_keys)
+	LOOP
+		PERFORM pg_notify('changes', v_prefix || v_chunk || v_suffix);
+	END LOOP;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A transaction that sent NOTIFY takes a global lock while it commits, so
+-- with these triggers installed every commit of every client that writes
+-- these tables is serialized on that lock, whether or not anyone listens.
+-- They are therefore only installed while a client listens:
+-- add_change_listener() installs them, and remove_change_listener() drops
+-- them when the last listener leaves. ChangeListener calls both on its
+-- LISTEN connection. Each listener holds a session-level shared advisory
+-- lock, so a listener whose connection is lost stops counting at once.
+-- A listener that is gone without remove_change_listener() leaves the
+-- triggers in place until the next listener leaves; an operator can drop
+-- them with SELECT disable_change_notifications().
+CREATE OR REPLACE FUNCTION change_notification_tables()
+RETURNS TABLE (tbl TEXT, key TEXT)
+AS $$
+	VALUES
+		('customer', 'id'), ('captain', 'id'), ('ship', 'id'), ('technician', 'id'),
+		('cruise', 'cnum'), ('reservation', 'rnum'), ('cruiseinfo', 'cruise_id'),
+		('repairs', 'rid'), ('schedule', 'cruisenum');
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Returns false when the triggers were already installed. Serialized with
+-- an advisory lock so two clients starting at once do not both create them.
+CREATE OR REPLACE FUNCTION enable_change_notifications() RETURNS BOOLEAN
+AS $$
+DECLARE
+	t RECORD;
+BEGIN
+	PERFORM pg_advisory_xact_lock(hashtext('change_notifications'));
+	IF EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'reservation_notify_insert' AND NOT tgisinternal) THEN
+		RETURN false;
+	END IF;
+	-- one trigger per table and event, since a trigger with transition
+	-- tables may only fire on one event
+	FOR t IN SELECT * FROM change_notification_tables()
+	LOOP
+		EXECUTE format('CREATE TRIGGER %I AFTER INSERT ON %I REFERENCING NEW TABLE AS new_rows ' ||
+			'FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes(%L, 10000)', t.tbl || '_notify_insert', t.tbl, t.key);
+		EXECUTE format('CREATE TRIGGER %I AFTER UPDATE ON %I REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows ' ||
+			'FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes(%L, 10000)', t.tbl || '_notify_update', t.tbl, t.key);
+		EXECUTE format('CREATE TRIGGER %I AFTER DELETE ON %I REFERENCING OLD TABLE AS old_rows ' ||
+			'FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes(%L, 10000)', t.tbl || '_notify_delete', t.tbl, t.key);
+		EXECUTE format('CREATE TRIGGER %I AFTER TRUNCATE ON %I ' ||
+			'FOR EACH STATEMENT EXECUTE PROCEDURE notify_changes(%L, 10000)', t.tbl || '_notify_truncate', t.tbl, t.key);
+	END LOOP;
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION disable_change_notifications() RETURNS VOID
+AS $$
+DECLARE
+	t RECORD;
+BEGIN
+	PERFORM pg_advisory_xact_lock(hashtext('change_notifications'));
+	FOR t IN SELECT * FROM change_notification_tables()
+	LOOP
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_notify_insert', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_notify_update', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_notify_delete', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_notify_truncate', t.tbl);
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Registers the calling session as a listener until it calls
+-- remove_change_listener() or ends. The shared lock is taken before the
+-- triggers are installed, so a leaving listener cannot drop them after
+-- this returns.
+CREATE OR REPLACE FUNCTION add_change_listener() RETURNS BOOLEAN
+AS $$
+BEGIN
+	PERFORM pg_advisory_lock_shared(hashtext('change_listeners'));
+	RETURN enable_change_notifications();
+END;
+$$ LANGUAGE plpgsql;
+
+-- Returns true when the caller was the last listener and the triggers
+-- were dropped. The exclusive lock is only granted when no other session
+-- holds the shared one, and a listener arriving meanwhile waits for it
+-- and installs the triggers again.
+CREATE OR REPLACE FUNCTION remove_change_listener() RETURNS BOOLEAN
+AS $$
+BEGIN
+	PERFORM pg_advisory_unlock_shared(hashtext('change_listeners'));
+	IF NOT pg_try_advisory_lock(hashtext('change_listeners')) THEN
+		RETURN false;
+	END IF;
+	PERFORM disable_change_notifications();
+	PERFORM pg_advisory_unlock(hashtext('change_listeners'));
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
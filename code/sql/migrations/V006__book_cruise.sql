@@ -0,0 +1,66 @@
+-----------------------------------------------
+-- V006: reservation numbers and book_cruise --
+-----------------------------------------------
+-- Both used to exist only in create.sql, so a database created before them
+-- never got them from the migrations. Written to apply on top of either.
+
+-- rnum is taken from a sequence so concurrent clients never hand out the
+-- same number; it starts after the highest rnum loaded, and never goes
+-- back on a database that already had the sequence.
+CREATE SEQUENCE IF NOT EXISTS reservation_rnum_seq OWNED BY Reservation.rnum;
+SELECT setval('reservation_rnum_seq',
+	GREATEST((SELECT COALESCE(MAX(rnum), 0) + 1 FROM Reservation),
+		(SELECT last_value + CASE WHEN is_called THEN 1 ELSE 0 END FROM reservation_rnum_seq)),
+	false);
+ALTER TABLE Reservation ALTER COLUMN rnum SET DEFAULT nextval('reservation_rnum_seq');
+
+-- Books cruise p_cid for customer p_ccid in one transaction:
+--   no reservation -> 'R' if a seat is free, otherwise 'W'
+--   'W'            -> 'R' if a seat is free, otherwise stays 'W'
+--   'R'            -> 'C'
+--   'C'            -> stays 'C'
+-- A seat is taken with a conditional UPDATE of Cruise.num_sold, so the
+-- check and the increment happen on the locked Cruise row and a cruise is
+-- never oversold. The Cruise row lock also serializes bookings of the same
+-- cruise so a customer cannot get two reservations by booking twice at once.
+-- o_status is NULL when the customer or the cruise does not exist.
+CREATE OR REPLACE FUNCTION book_cruise(p_ccid INTEGER, p_cid INTEGER,
+	OUT o_rnum INTEGER, OUT o_previous CHAR(1), OUT o_status CHAR(1), OUT o_available INTEGER)
+AS $$
+BEGIN
+	PERFORM 1 FROM Cruise WHERE cnum = p_cid FOR UPDATE;
+	IF NOT FOUND OR NOT EXISTS (SELECT 1 FROM Customer WHERE id = p_ccid) THEN
+		RETURN;
+	END IF;
+
+	SELECT rnum, status INTO o_rnum, o_previous
+	FROM Reservation
+	WHERE ccid = p_ccid AND cid = p_cid
+	ORDER BY rnum
+	LIMIT 1;
+
+	IF o_previous = 'R' THEN
+		o_status := 'C';
+	ELSIF o_previous = 'C' THEN
+		o_status := 'C';
+	ELSE
+		UPDATE Cruise C SET num_sold = C.num_sold + 1
+		FROM CruiseInfo CI, Ship S
+		WHERE C.cnum = p_cid AND CI.cruise_id = C.cnum AND S.id = CI.ship_id AND C.num_sold < S.seats;
+		o_status := CASE WHEN FOUND THEN 'R' ELSE 'W' END;
+	END IF;
+
+	IF o_previous IS NULL THEN
+		o_rnum := nextval('reservation_rnum_seq');
+		INSERT INTO Reservation (rnum, ccid, cid, status) VALUES (o_rnum, p_ccid, p_cid, o_status);
+	ELSIF o_status <> o_previous THEN
+		UPDATE Reservation SET status = o_status WHERE rnum = o_rnum;
+	END IF;
+
+	-- NULL when the cruise has no ship assigned
+	SELECT MAX(S.seats) - C.num_sold INTO o_available
+	FROM Cruise C, CruiseInfo CI, Ship S
+	WHERE C.cnum = p_cid AND CI.cruise_id = C.cnum AND S.id = CI.ship_id
+	GROUP BY C.num_sold;
+END;
+$$ LANGUAGE plpgsql;